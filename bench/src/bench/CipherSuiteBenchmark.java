@@ -0,0 +1,88 @@
+package bench;
+
+import crypto.ByteCipher;
+import crypto.CipherSuite;
+import crypto.LinkCipher;
+import link.instructions.FrameIntegrity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the encryption and decryption of instruction data by each cipher suite, as a link's LinkCipher performs
+ * them. CHACHA20_POLY1305 requires Java 11 or later - on earlier JVMs its benchmarks fail during setup.
+ * Since a receiving LinkCipher rejects anything it has already received, decryption cycles through distinct encrypted
+ * copies of the data, replacing the receiver whenever it returns to the first - which costs a key derivation per cycle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherSuiteBenchmark {
+
+    //the encrypted copies are limited to this many, and to this many bytes between them
+    private static final int MAX_COPIES = 4096;
+    private static final int MAX_COPY_BYTES = 64 << 20;
+
+    @Param({"64", "4096", "65536", "1048000"})
+    public int size;
+
+    @Param({"LEGACY_XOR", "AES_256_GCM", "CHACHA20_POLY1305"})
+    public CipherSuite cipherSuite;
+
+    private byte[] sessionKey;
+    private byte[] keySalt;
+    private LinkCipher sender;
+    private LinkCipher receiver;
+    private byte[] data;
+    private byte[][] encryptedCopies;
+    private int nextCopy = 0;
+    private ByteBuffer destination;
+
+    @Setup
+    public void setUp() {
+        if (!cipherSuite.isAvailable())
+            throw new IllegalStateException(cipherSuite + " is unavailable on this JVM.");
+        sessionKey = ByteCipher.generateKey();
+        keySalt = LinkCipher.generateKeySalt();
+        sender = new LinkCipher(cipherSuite, sessionKey, keySalt, true);
+        receiver = new LinkCipher(cipherSuite, sessionKey, keySalt, false);
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+        destination = ByteBuffer.allocate(size + sender.getOverhead());
+        encryptedCopies = new byte[Math.max(1, Math.min(MAX_COPIES, MAX_COPY_BYTES / size))][];
+        for (int i = 0; i < encryptedCopies.length; ++i)
+            encryptedCopies[i] = encrypt().array().clone();
+    }
+
+    @Benchmark
+    public ByteBuffer encrypt() {
+        destination.clear();
+        sender.encrypt(data, destination, FrameIntegrity.BYTE_SUM, 0);
+        return destination;
+    }
+
+    @Benchmark
+    public byte[] decrypt() {
+        if (nextCopy == encryptedCopies.length) {
+            nextCopy = 0;
+            receiver = new LinkCipher(cipherSuite, sessionKey, keySalt, false);
+        }
+        byte[] encryptedData = encryptedCopies[nextCopy++];
+        return receiver.decrypt(encryptedData, 0, encryptedData.length, 0);
+    }
+}
@@ -0,0 +1,42 @@
+package bench;
+
+import link.instructions.InstructionCodec;
+import link.instructions.InstructionCodecRegistry;
+import link.instructions.InstructionDatum;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * As MessageInstructionDatum, but transmitted by a registered codec, for comparison with Java serialization.
+ */
+class CodecMessageInstructionDatum extends InstructionDatum {
+
+    static final int TYPE_ID = InstructionCodecRegistry.RESERVED_TYPE_ID_COUNT;
+
+    static {
+        InstructionCodecRegistry.register(
+                TYPE_ID,
+                CodecMessageInstructionDatum.class,
+                new InstructionCodec<CodecMessageInstructionDatum>() {
+                    @Override
+                    public void write(CodecMessageInstructionDatum instructionDatum, DataOutput out)
+                            throws IOException {
+                        InstructionCodecRegistry.writeBytes(instructionDatum.DATA, out);
+                    }
+
+                    @Override
+                    public CodecMessageInstructionDatum read(DataInput in) throws IOException {
+                        return new CodecMessageInstructionDatum(InstructionCodecRegistry.readBytes(in));
+                    }
+                }
+        );
+    }
+
+    final byte[] DATA;
+
+    CodecMessageInstructionDatum(byte[] data) {
+        DATA = data;
+    }
+}
@@ -0,0 +1,61 @@
+package bench;
+
+import link.DataHandler;
+import link.DataLink;
+import link.instructions.InstructionDatum;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Either returns every instruction it receives to its sender, or counts them, so that a benchmark thread may wait for
+ * the replies to what it transmitted.
+ */
+final class EchoHandler extends DataHandler {
+
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final boolean echo;
+    private final AtomicLong receivedCount = new AtomicLong(0);
+
+    private EchoHandler(boolean echo) {
+        this.echo = echo;
+    }
+
+    static EchoHandler echoing() {
+        return new EchoHandler(true);
+    }
+
+    static EchoHandler counting() {
+        return new EchoHandler(false);
+    }
+
+    long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    /**
+     * Spin until the specified number of instructions have been received in total.
+     * @throws IllegalStateException if they are not received within the timeout, so a lost instruction fails the
+     * benchmark rather than stalling it.
+     */
+    void awaitReceived(long count) {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (receivedCount.get() < count) {
+            if (System.nanoTime() - deadline > 0)
+                throw new IllegalStateException("Received " + receivedCount.get() + " of " + count + " instructions");
+            Thread.yield();
+        }
+    }
+
+    @Override
+    protected void connectionLost(DataLink dataLink) {}
+
+    @Override
+    protected void handle(InstructionDatum instructionDatum, DataLink responseLink) {
+        if (echo)
+            responseLink.transmit(instructionDatum);
+        else
+            receivedCount.incrementAndGet();
+    }
+}
@@ -0,0 +1,124 @@
+package bench;
+
+import crypto.ByteCipher;
+import crypto.CipherSuite;
+import crypto.LinkCipher;
+import link.BufferPool;
+import link.FrameDecoder;
+import link.instructions.FrameFormat;
+import link.instructions.InstructionDatum;
+import link.instructions.PackSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the receiving side's FrameDecoder locating frames in a stream of encrypted frames held in memory, which it
+ * reads in pieces no larger than readSize - as it would from a socket delivering a segment at a time.
+ * Each operation is one frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+    private static final int FRAME_COUNT = 256;
+
+    @Param({"64", "4096", "65536"})
+    public int size;
+
+    @Param({"SCANNING", "LENGTH_PREFIXED"})
+    public FrameFormat frameFormat;
+
+    @Param({"1460", "65536"})
+    public int readSize;
+
+    private byte[] stream;
+    private FrameDecoder frameDecoder;
+
+    /**
+     * Supplies the stream in pieces no larger than readSize.
+     */
+    private final class SegmentedInputStream extends InputStream {
+        private int position = 0;
+
+        @Override
+        public int read() {
+            return position < stream.length ? stream[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) {
+            if (position >= stream.length)
+                return -1;
+            int count = Math.min(Math.min(length, readSize), stream.length - position);
+            System.arraycopy(stream, position, b, offset, count);
+            position += count;
+            return count;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(size);
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        PackSettings packSettings = PackSettings.ORIGINAL
+                .withFrameFormat(frameFormat)
+                .withLinkCipher(new LinkCipher(
+                        CipherSuite.LEGACY_XOR,
+                        ByteCipher.generateKey(),
+                        LinkCipher.generateKeySalt(),
+                        true
+                ));
+        for (int i = 0; i < FRAME_COUNT; ++i) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            ByteBuffer frame = new MessageInstructionDatum(data).pack(i, packSettings, ByteBuffer::allocate);
+            byteArrayOutputStream.write(frame.array(), frame.position(), frame.remaining());
+        }
+        stream = byteArrayOutputStream.toByteArray();
+        frameDecoder = new FrameDecoder(BufferPool.getDefault().newAccount());
+    }
+
+    @TearDown
+    public void tearDown() {
+        frameDecoder.release();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAME_COUNT)
+    public int decode(Blackhole blackhole) throws IOException {
+        InputStream inputStream = new SegmentedInputStream();
+        int frameCount = 0;
+        while (frameDecoder.readFrom(inputStream) >= 0) {
+            while (frameDecoder.nextFrame()) {
+                blackhole.consume(frameDecoder.instruction());
+                ++frameCount;
+            }
+        }
+        if (frameCount != FRAME_COUNT)
+            throw new IllegalStateException("Decoded " + frameCount + " of " + FRAME_COUNT + " frames");
+        return frameCount;
+    }
+}
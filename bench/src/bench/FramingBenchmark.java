@@ -0,0 +1,135 @@
+package bench;
+
+import crypto.ByteCipher;
+import crypto.CipherSuite;
+import crypto.LinkCipher;
+import link.instructions.FrameFormat;
+import link.instructions.FrameIntegrity;
+import link.instructions.InstructionDatum;
+import link.instructions.PackSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures packing an instruction into a frame - serialization, encryption and checking - and unpacking the data of a
+ * frame back into an instruction, in each frame format and with no cipher, the original cipher and AES-GCM.
+ * Frames are packed into a single reused buffer, as they would be into pooled buffers by a link. Since a receiving
+ * LinkCipher rejects any frame it has already received, unpacking cycles through distinct frames, replacing the
+ * receiver whenever it returns to the first.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    //the frames to unpack are limited to this many, and to this many bytes between them
+    private static final int MAX_FRAMES = 4096;
+    private static final int MAX_FRAME_BYTES = 64 << 20;
+
+    @Param({"16", "1024", "65536", "524288"})
+    public int size;
+
+    @Param({"SCANNING", "LENGTH_PREFIXED"})
+    public FrameFormat frameFormat;
+
+    @Param({"NONE", "LEGACY_XOR", "AES_256_GCM"})
+    public String cipher;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(InstructionDatum.MAX_PACKET_LENGTH);
+
+    private byte[] sessionKey;
+    private byte[] keySalt;
+    private LinkCipher receiver;
+    private FrameIntegrity frameIntegrity;
+    private PackSettings packSettings;
+    private InstructionDatum instructionDatum;
+    private byte[][] frames;
+    private int nextFrame = 0;
+    private int sequenceIndex = 0;
+
+    @Setup
+    public void setUp() {
+        sessionKey = ByteCipher.generateKey();
+        keySalt = LinkCipher.generateKeySalt();
+        frameIntegrity = FrameIntegrity.negotiate(FrameIntegrity.preferredCheckIds());
+        packSettings = PackSettings.ORIGINAL
+                .withFrameFormat(frameFormat)
+                .withLinkCipher(newLinkCipher(true))
+                .withFrameIntegrity(frameIntegrity);
+        receiver = newLinkCipher(false);
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        instructionDatum = new MessageInstructionDatum(data);
+        frames = new byte[Math.max(1, Math.min(MAX_FRAMES, MAX_FRAME_BYTES / size))][];
+        for (int i = 0; i < frames.length; ++i) {
+            ByteBuffer packedData = pack();
+            frames[i] = new byte[packedData.remaining()];
+            packedData.get(frames[i]);
+        }
+    }
+
+    private LinkCipher newLinkCipher(boolean initiator) {
+        return cipher.equals("NONE")
+                ? null
+                : new LinkCipher(CipherSuite.valueOf(cipher), sessionKey, keySalt, initiator);
+    }
+
+    @Benchmark
+    public ByteBuffer pack() {
+        sequenceIndex = (sequenceIndex + 1) & InstructionDatum.MAX_SEQUENCE_INDEX;
+        return instructionDatum.pack(sequenceIndex, packSettings, capacity -> {
+            buffer.clear();
+            return buffer;
+        });
+    }
+
+    /**
+     * Decrypt, check and deserialize the data of a frame whose header and trailer have already been located, as a
+     * link does once its FrameDecoder yields an instruction.
+     */
+    @Benchmark
+    public InstructionDatum unpack() throws StreamCorruptedException {
+        if (nextFrame == frames.length) {
+            nextFrame = 0;
+            receiver = newLinkCipher(false);
+        }
+        byte[] frame = frames[nextFrame++];
+        int offset = InstructionDatum.HEADER_LENGTH;
+        int length = frame.length - InstructionDatum.HEADER_LENGTH - InstructionDatum.TRAILER_LENGTH;
+        byte[] data = frame;
+        if (receiver != null) {
+            int frameSequenceIndex = InstructionDatum.toInt(
+                    frame,
+                    InstructionDatum.HEADER_INDICATOR_LENGTH + InstructionDatum.HEADER_SIZE_LENGTH,
+                    InstructionDatum.HEADER_SEQUENCE_LENGTH
+            );
+            data = receiver.decrypt(frame, offset, length, frameSequenceIndex);
+            if (data == null)
+                throw new IllegalStateException("Decryption failure");
+            offset = 0;
+            length = data.length;
+        }
+        int checkValue = InstructionDatum.toInt(frame, frame.length - InstructionDatum.TRAILER_CHECKSUM_LENGTH, 4);
+        if ((receiver == null || !receiver.isAuthenticated()) &&
+                frameIntegrity.checksum(data, offset, length) != checkValue)
+            throw new IllegalStateException("Checksum mismatch");
+        return InstructionDatum.fromByteArray(data, offset, length);
+    }
+}
@@ -0,0 +1,52 @@
+package bench;
+
+import crypto.HexCipher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures conversion of data to and from hexadecimal strings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexCipherBenchmark {
+
+    @Param({"16", "256", "4096"})
+    public int size;
+
+    private byte[] data;
+    private String hexString;
+
+    @Setup
+    public void setUp() {
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+        hexString = HexCipher.convertToHexString(data);
+    }
+
+    @Benchmark
+    public String toHexString() {
+        return HexCipher.convertToHexString(data);
+    }
+
+    @Benchmark
+    public byte[] fromHexString() {
+        return HexCipher.convertFromHexString(hexString);
+    }
+}
@@ -0,0 +1,66 @@
+package bench;
+
+/**
+ * The original, allocating implementation of ByteCipher, retained as the baseline for ByteCipherBenchmark.
+ */
+final class LegacyByteCipher {
+
+    private static final int SHIFT = 8;
+    private static final int KEY_SIZE = 256;
+
+    private static final int BYTE_MASK = 0x0000_00ff;
+
+    private LegacyByteCipher() {}
+
+    static byte[] encrypt(byte[] data, byte[] key) {
+        return bytewiseShiftLeft(xorApplyKey(data, key));
+    }
+
+    static byte[] decrypt(byte[] encryptedData, byte[] key) {
+        return xorApplyKey(bytewiseShiftRight(encryptedData), key);
+    }
+
+    private static byte[] bytewiseShiftLeft(byte[] inputData) {
+        byte[] outputData = new byte[inputData.length];
+        int shiftDegree;
+        for (int i = 0; i < inputData.length; ++i) {
+            shiftDegree = (i % SHIFT);
+            outputData[i] = shift(inputData[i], shiftDegree, true);
+        }
+        return outputData;
+    }
+
+    private static byte[] bytewiseShiftRight(byte[] inputData) {
+        byte[] outputData = new byte[inputData.length];
+        int shiftDegree;
+        for (int i = 0; i < inputData.length; ++i) {
+            shiftDegree = (i % SHIFT);
+            outputData[i] = shift(inputData[i], shiftDegree, false);
+        }
+        return outputData;
+    }
+
+    private static byte shift(byte b, int mag, boolean left) {
+        if (mag < 0 || mag >= SHIFT) throw new IllegalArgumentException("Mag must be in range [0-7].");
+        if (mag == 0) return b;
+        byte shiftMask = 0b0000_0000;
+        int factor = 1;
+        int oppositeMag = SHIFT - mag;
+        for (int i = 0; i < (left ? oppositeMag : mag); ++i) {
+            shiftMask += factor;
+            factor *= 2;
+        }
+        int oppositeMask = ~shiftMask & BYTE_MASK;
+        int leftShiftPart = b & shiftMask;
+        int rightShiftPart = b & oppositeMask;
+        return (byte)((leftShiftPart << (left ? mag : oppositeMag)) | (rightShiftPart >>> (left ? oppositeMag : mag)));
+    }
+
+    private static byte[] xorApplyKey(byte[] inputData, byte[] key) {
+        int dataSize = inputData.length;
+        byte[] outputData = new byte[dataSize];
+        for (int i = 0; i < dataSize; ++i)
+            outputData[i] = (byte) (inputData[i] ^ key[i % KEY_SIZE]);
+        return outputData;
+    }
+}
@@ -0,0 +1,468 @@
+package bench;
+
+import link.DataHandler;
+import link.DataLink;
+import link.ExecutionMode;
+import link.LatencyHistogram;
+import link.LinkMetrics;
+import link.SelectorLoopGroup;
+import link.instructions.InstructionDatum;
+import main.Client;
+import main.ConnectionOptions;
+import main.DataLinkAggregator;
+import main.Server;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how many clients, and how many instructions per second, a Server sustains on this machine before its latency
+ * degrades. This starts a Server on loopback which returns every instruction it receives, connects simulated clients to
+ * it through Client.connect() - each performing the full encryption handshake - then has them transmit a mix of
+ * instruction sizes at a fixed total rate, and reports throughput, round trip latency, handshake time and heap usage.
+ * Instructions are transmitted on a fixed schedule whether or not earlier replies have arrived, and latency is measured
+ * from when each was due to be transmitted rather than when it was, so a server which falls behind shows up as
+ * latency rather than as a quietly reduced rate. Round trip and handshake percentiles are recorded in LatencyHistograms
+ * of 128 sub-buckets per power of two, to within 1% - the server's own handling latency comes from its LinkMetrics, to
+ * within the default 1/16th.
+ * Arguments are name=value pairs, each overriding a default - for example:
+ * clients=500 rate=50000 duration=30 mix=64:80,1024:15,16384:5 transport=NON_BLOCKING encoding=CODEC
+ * Since a Server cannot be stopped, this exits the JVM once it has reported.
+ */
+public class LoadGenerator {
+
+    //the precision of the client's histograms - percentiles to within 2^-7, under 1%
+    private static final int SUB_BUCKET_BITS = 7;
+
+    private static final String HOST_NAME = "localhost";
+
+    private static final long HANDSHAKE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long HEAP_SAMPLE_MILLIS = 100;
+    //below this, senders yield rather than park until the next transmission is due
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    //each payload begins with the time at which it was due to be transmitted
+    private static final int MIN_PAYLOAD_SIZE = Long.BYTES;
+
+    /**
+     * How the sample instructions are transmitted - by Java serialization, or by a registered codec.
+     */
+    enum Encoding {
+        SERIALIZED,
+        CODEC;
+
+        InstructionDatum instructionDatum(byte[] payload) {
+            return this == CODEC ? new CodecMessageInstructionDatum(payload) : new MessageInstructionDatum(payload);
+        }
+    }
+
+    /**
+     * The configuration of a run, parsed from the command line.
+     */
+    static final class Settings {
+        int clients = 100;
+        int rate = 10_000; //instructions per second, across all clients
+        int warmupSeconds = 5;
+        int durationSeconds = 10;
+        int senders = Runtime.getRuntime().availableProcessors();
+        int[] sizes = {256};
+        int[] cumulativeWeights = {1};
+        String mix = "256:1";
+        Encoding encoding = Encoding.SERIALIZED;
+        Server.TransportMode transportMode = Server.TransportMode.BLOCKING;
+        ExecutionMode executionMode = ExecutionMode.PLATFORM;
+
+        static Settings parse(String[] args) {
+            Settings settings = new Settings();
+            for (String arg : args) {
+                int separator = arg.indexOf('=');
+                if (separator < 0)
+                    throw new IllegalArgumentException("Expected name=value: " + arg);
+                String value = arg.substring(separator + 1);
+                switch (arg.substring(0, separator)) {
+                    case "clients": settings.clients = positive(arg, value); break;
+                    case "rate": settings.rate = positive(arg, value); break;
+                    case "warmup": settings.warmupSeconds = Integer.parseInt(value); break;
+                    case "duration": settings.durationSeconds = positive(arg, value); break;
+                    case "senders": settings.senders = positive(arg, value); break;
+                    case "mix": settings.parseMix(value); break;
+                    case "encoding": settings.encoding = Encoding.valueOf(value.toUpperCase(Locale.ROOT)); break;
+                    case "transport":
+                        settings.transportMode = Server.TransportMode.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "execution":
+                        settings.executionMode = ExecutionMode.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                    default: throw new IllegalArgumentException("Unknown setting: " + arg);
+                }
+            }
+            settings.senders = Math.min(settings.senders, settings.clients);
+            return settings;
+        }
+
+        /**
+         * Parse a mix of the form size:weight,size:weight... - each instruction's payload size is chosen at random,
+         * in proportion to the weights.
+         */
+        private void parseMix(String value) {
+            String[] entries = value.split(",");
+            sizes = new int[entries.length];
+            cumulativeWeights = new int[entries.length];
+            int totalWeight = 0;
+            for (int i = 0; i < entries.length; ++i) {
+                String[] fields = entries[i].split(":");
+                sizes[i] = Math.max(MIN_PAYLOAD_SIZE, Integer.parseInt(fields[0]));
+                totalWeight += fields.length > 1 ? positive(entries[i], fields[1]) : 1;
+                cumulativeWeights[i] = totalWeight;
+            }
+            mix = value;
+        }
+
+        int nextSize(ThreadLocalRandom random) {
+            int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            int i = 0;
+            while (cumulativeWeights[i] <= pick)
+                ++i;
+            return sizes[i];
+        }
+
+        private static int positive(String arg, String value) {
+            int i = Integer.parseInt(value);
+            if (i < 1)
+                throw new IllegalArgumentException("Expected a positive value: " + arg);
+            return i;
+        }
+
+        @Override
+        public String toString() {
+            return clients + " clients, " + transportMode + " transport" +
+                    (transportMode == Server.TransportMode.BLOCKING ? " on " + executionMode + " threads" : "") +
+                    ", " + encoding + " encoding, mix " + mix + ", " + rate + "/s for " + durationSeconds +
+                    "s after " + warmupSeconds + "s warmup";
+        }
+    }
+
+    /**
+     * Gathers the links the server accepts, so they may be counted.
+     */
+    private static final class ServerLinks implements DataLinkAggregator {
+        private final List<DataLink> dataLinks = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void addDataLink(DataLink dl) {
+            dataLinks.add(dl);
+        }
+
+        @Override
+        public int countLinks() {
+            return dataLinks.size();
+        }
+    }
+
+    /**
+     * Times the replies to every client's transmissions. Replies to instructions due before the measurement began are
+     * counted, but not timed.
+     */
+    private static final class ClientHandler extends DataHandler {
+        private final LatencyHistogram latency = new LatencyHistogram(SUB_BUCKET_BITS);
+        private final LongAdder receivedCount = new LongAdder();
+        private final LongAdder measuredCount = new LongAdder();
+        private final LongAdder lostConnectionCount = new LongAdder();
+        private volatile long measurementStartNanos = Long.MAX_VALUE;
+
+        @Override
+        protected void connectionLost(DataLink dataLink) {
+            lostConnectionCount.increment();
+        }
+
+        @Override
+        protected void handle(InstructionDatum instructionDatum, DataLink responseLink) {
+            long now = System.nanoTime();
+            byte[] payload = instructionDatum instanceof CodecMessageInstructionDatum
+                    ? ((CodecMessageInstructionDatum) instructionDatum).DATA
+                    : ((MessageInstructionDatum) instructionDatum).DATA;
+            long dueNanos = ByteBuffer.wrap(payload).getLong();
+            if (dueNanos - measurementStartNanos >= 0) {
+                latency.record(now - dueNanos);
+                measuredCount.increment();
+            }
+            receivedCount.increment();
+        }
+    }
+
+    private final Settings settings;
+    private final ClientHandler clientHandler = new ClientHandler();
+    private final ServerLinks serverLinks = new ServerLinks();
+    private final LatencyHistogram handshakeLatency = new LatencyHistogram(SUB_BUCKET_BITS);
+    private final List<DataLink> clientLinks = new CopyOnWriteArrayList<>();
+    private final AtomicLong sentCount = new AtomicLong(0);
+    private final LongAdder measuredSentCount = new LongAdder();
+    private final LongAccumulator peakHeapBytes = new LongAccumulator(Long::max, 0);
+
+    private SelectorLoopGroup selectorLoopGroup = null;
+    private Server server = null;
+
+    private LoadGenerator(Settings settings) {
+        this.settings = settings;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Settings settings;
+        try {
+            settings = Settings.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Settings: clients rate warmup duration senders mix encoding transport execution");
+            System.exit(1);
+            return;
+        }
+        new LoadGenerator(settings).run();
+        System.exit(0);
+    }
+
+    private void run() throws IOException, InterruptedException, ExecutionException {
+        System.out.println("Load test: " + settings);
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        int portNumber = startServer();
+        DataLink.setDefaultExecutionMode(settings.executionMode);
+        if (settings.transportMode == Server.TransportMode.NON_BLOCKING)
+            selectorLoopGroup = new SelectorLoopGroup();
+
+        System.gc();
+        long baselineHeapBytes = memoryMXBean.getHeapMemoryUsage().getUsed();
+        long connectNanos = connectClients(portNumber);
+        System.gc();
+        long connectedHeapBytes = memoryMXBean.getHeapMemoryUsage().getUsed();
+
+        ScheduledExecutorService heapSampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LoadGenerator-HeapSampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heapSampler.scheduleAtFixedRate(
+                () -> peakHeapBytes.accumulate(memoryMXBean.getHeapMemoryUsage().getUsed()),
+                0,
+                HEAP_SAMPLE_MILLIS,
+                TimeUnit.MILLISECONDS
+        );
+
+        long startNanos = System.nanoTime();
+        long measurementStartNanos = startNanos + TimeUnit.SECONDS.toNanos(settings.warmupSeconds);
+        long endNanos = measurementStartNanos + TimeUnit.SECONDS.toNanos(settings.durationSeconds);
+        clientHandler.measurementStartNanos = measurementStartNanos;
+        long gcCountBefore = 0;
+        long gcMillisBefore = 0;
+        List<Thread> senders = startSenders(startNanos, measurementStartNanos, endNanos);
+        long waitNanos;
+        while ((waitNanos = measurementStartNanos - System.nanoTime()) > 0)
+            LockSupport.parkNanos(waitNanos);
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCountBefore += Math.max(0, gc.getCollectionCount());
+            gcMillisBefore += Math.max(0, gc.getCollectionTime());
+        }
+        for (Thread sender : senders)
+            sender.join();
+        long gcCount = -gcCountBefore;
+        long gcMillis = -gcMillisBefore;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        long drainDeadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        while (clientHandler.receivedCount.sum() < sentCount.get() && System.nanoTime() - drainDeadline < 0)
+            Thread.sleep(1);
+        heapSampler.shutdownNow();
+
+        report(
+                connectNanos,
+                baselineHeapBytes,
+                connectedHeapBytes,
+                gcCount,
+                gcMillis
+        );
+        for (DataLink clientLink : clientLinks)
+            clientLink.terminate();
+        if (selectorLoopGroup != null)
+            selectorLoopGroup.terminate();
+    }
+
+    /**
+     * Start an echoing server on a free loopback port.
+     * @return the port number.
+     */
+    private int startServer() throws IOException {
+        int portNumber;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            portNumber = serverSocket.getLocalPort();
+        }
+        ConnectionOptions serverOptions = ConnectionOptions.DEFAULT
+                .withTransportMode(settings.transportMode)
+                .withExecutionMode(settings.executionMode);
+        server = new Server(EchoHandler.echoing(), serverLinks, portNumber, serverOptions);
+        server.setDaemon(true);
+        server.start();
+        return portNumber;
+    }
+
+    /**
+     * Connect every client, as many at once as there are senders, timing each from connection to encryption.
+     * @return the time taken to connect them all.
+     */
+    private long connectClients(int portNumber) throws InterruptedException, ExecutionException {
+        ExecutorService connector = Executors.newFixedThreadPool(settings.senders);
+        List<Future<?>> futures = new ArrayList<>();
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < settings.clients; ++i)
+            futures.add(connector.submit(() -> {
+                long connectNanos = System.nanoTime();
+                DataLink dataLink = Client.connect(
+                        clientHandler,
+                        HOST_NAME,
+                        portNumber,
+                        ConnectionOptions.DEFAULT.withSelectorLoopGroup(selectorLoopGroup)
+                );
+                while (!dataLink.isEncrypted()) {
+                    if (System.nanoTime() - connectNanos > HANDSHAKE_TIMEOUT_NANOS)
+                        throw new IllegalStateException("Handshake timed out.");
+                    Thread.sleep(1);
+                }
+                handshakeLatency.record(System.nanoTime() - connectNanos);
+                clientLinks.add(dataLink);
+                return null;
+            }));
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            connector.shutdownNow();
+        }
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Start one thread per sender, each transmitting on its share of the clients in turn, at its share of the rate.
+     */
+    private List<Thread> startSenders(long startNanos, long measurementStartNanos, long endNanos) {
+        List<Thread> senders = new ArrayList<>();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(settings.senders) / settings.rate;
+        for (int s = 0; s < settings.senders; ++s) {
+            List<DataLink> share = new ArrayList<>();
+            for (int i = s; i < clientLinks.size(); i += settings.senders)
+                share.add(clientLinks.get(i));
+            //stagger the senders, so their transmissions are spread evenly over each interval
+            long firstDueNanos = startNanos + intervalNanos * s / settings.senders;
+            Thread sender = new Thread(
+                    () -> send(share, firstDueNanos, intervalNanos, measurementStartNanos, endNanos),
+                    "LoadGenerator-" + s
+            );
+            sender.start();
+            senders.add(sender);
+        }
+        return senders;
+    }
+
+    private void send(
+            List<DataLink> share,
+            long firstDueNanos,
+            long intervalNanos,
+            long measurementStartNanos,
+            long endNanos
+    ) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long dueNanos = firstDueNanos;
+        for (int i = 0; dueNanos - endNanos < 0; ++i, dueNanos += intervalNanos) {
+            long waitNanos;
+            while ((waitNanos = dueNanos - System.nanoTime()) > 0) {
+                if (waitNanos > SPIN_NANOS)
+                    LockSupport.parkNanos(waitNanos - SPIN_NANOS);
+                else
+                    Thread.yield();
+            }
+            byte[] payload = new byte[settings.nextSize(random)];
+            ByteBuffer.wrap(payload).putLong(dueNanos);
+            share.get(i % share.size()).transmit(settings.encoding.instructionDatum(payload));
+            sentCount.incrementAndGet();
+            if (dueNanos - measurementStartNanos >= 0)
+                measuredSentCount.increment();
+        }
+    }
+
+    private void report(
+            long connectNanos,
+            long baselineHeapBytes,
+            long connectedHeapBytes,
+            long gcCount,
+            long gcMillis
+    ) {
+        LatencyHistogram.Snapshot handshakes = handshakeLatency.snapshot();
+        System.out.printf(
+                "Handshakes   %d in %d ms (%.1f/s) - p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                handshakes.getCount(),
+                TimeUnit.NANOSECONDS.toMillis(connectNanos),
+                handshakes.getCount() * 1e9 / connectNanos,
+                handshakes.getP50Nanos() / 1e6,
+                handshakes.getP99Nanos() / 1e6,
+                handshakes.getMaxNanos() / 1e6
+        );
+        LatencyHistogram.Snapshot latency = clientHandler.latency.snapshot();
+        long lost = sentCount.get() - clientHandler.receivedCount.sum();
+        System.out.printf(
+                "Throughput   %.1f/s of %d/s targeted - %d transmitted, %d returned, %d lost, %d connections lost%n",
+                clientHandler.measuredCount.sum() / (double) settings.durationSeconds,
+                settings.rate,
+                measuredSentCount.sum(),
+                latency.getCount(),
+                lost,
+                clientHandler.lostConnectionCount.sum()
+        );
+        System.out.printf(
+                "Latency      mean %.1f us, p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us%n",
+                latency.getMeanNanos() / 1e3,
+                latency.getP50Nanos() / 1e3,
+                latency.getP99Nanos() / 1e3,
+                latency.getP999Nanos() / 1e3,
+                latency.getMaxNanos() / 1e3
+        );
+        System.out.printf(
+                "Heap         %.1f MB baseline, %.1f MB connected (%.1f KB per client), %.1f MB peak"
+                        + " - %d GCs, %d ms%n",
+                baselineHeapBytes / 1e6,
+                connectedHeapBytes / 1e6,
+                (connectedHeapBytes - baselineHeapBytes) / 1e3 / settings.clients,
+                peakHeapBytes.get() / 1e6,
+                gcCount,
+                gcMillis
+        );
+        LinkMetrics serverMetrics = server.getMetrics();
+        LatencyHistogram.Snapshot handling = serverMetrics.getHandlingLatency();
+        System.out.printf(
+                "Server       %d links, %d frames dropped, %d resyncs, %d frames retransmitted"
+                        + " - handling p99 %.1f us%n",
+                serverLinks.countLinks(),
+                serverMetrics.getFramesDropped(),
+                serverMetrics.getResyncs(),
+                serverMetrics.getFramesRetransmitted(),
+                handling.getP99Nanos() / 1e3
+        );
+    }
+}
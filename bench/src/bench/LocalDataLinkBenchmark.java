@@ -0,0 +1,103 @@
+package bench;
+
+import link.LocalDataLink;
+import link.instructions.InstructionDatum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a pair of LocalDataLinks end to end - the latency of a round trip to a handler which returns each
+ * instruction, and the rate at which instructions are transmitted to and handled by a handler which counts them.
+ * Links pair by copying, by copying with encryption, or by reference.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalDataLinkBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+
+    public enum Pairing {
+        COPY,
+        ENCRYPTED,
+        REFERENCE
+    }
+
+    @Param
+    public Pairing pairing;
+
+    @Param({"64", "4096"})
+    public int size;
+
+    private EchoHandler echoHandler;
+    private LocalDataLink echoLink;
+    private LocalDataLink echoedLink;
+
+    private EchoHandler countingHandler;
+    private LocalDataLink countingLink;
+    private LocalDataLink senderLink;
+
+    private InstructionDatum instructionDatum;
+
+    @Setup
+    public void setUp() {
+        echoHandler = EchoHandler.counting();
+        echoLink = new LocalDataLink(EchoHandler.echoing());
+        echoedLink = new LocalDataLink(echoHandler);
+        pair(echoLink, echoedLink);
+        countingHandler = EchoHandler.counting();
+        countingLink = new LocalDataLink(countingHandler);
+        senderLink = new LocalDataLink(EchoHandler.counting());
+        pair(countingLink, senderLink);
+        instructionDatum = new MessageInstructionDatum(new byte[size]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        echoLink.terminate();
+        echoedLink.terminate();
+        countingLink.terminate();
+        senderLink.terminate();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip() {
+        long receivedCount = echoHandler.getReceivedCount();
+        echoedLink.transmit(instructionDatum);
+        echoHandler.awaitReceived(receivedCount + 1);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void messages() {
+        long receivedCount = countingHandler.getReceivedCount();
+        for (int i = 0; i < BATCH_SIZE; ++i)
+            senderLink.transmit(instructionDatum);
+        countingHandler.awaitReceived(receivedCount + BATCH_SIZE);
+    }
+
+    private void pair(LocalDataLink link1, LocalDataLink link2) {
+        if (pairing == Pairing.REFERENCE)
+            LocalDataLink.pairByReference(link1, link2);
+        else
+            LocalDataLink.pair(link1, link2, pairing == Pairing.ENCRYPTED);
+    }
+}
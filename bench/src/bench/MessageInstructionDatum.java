@@ -0,0 +1,15 @@
+package bench;
+
+import link.instructions.InstructionDatum;
+
+/**
+ * An implementation specific instruction carrying an opaque payload, transmitted by Java serialization.
+ */
+class MessageInstructionDatum extends InstructionDatum {
+
+    final byte[] DATA;
+
+    MessageInstructionDatum(byte[] data) {
+        DATA = data;
+    }
+}
@@ -0,0 +1,121 @@
+package bench;
+
+import link.DataLink;
+import link.SelectorLoopGroup;
+import link.instructions.InstructionDatum;
+import main.Client;
+import main.ConnectionOptions;
+import main.DataLinkAggregator;
+import main.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures an encrypted link over loopback end to end, with either transport - the latency of a round trip to a server
+ * which returns each instruction, and the rate at which the client can have instructions returned to it.
+ * Since a Server cannot be stopped, each trial runs in its own fork.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RemoteDataLinkBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String HOST_NAME = "localhost";
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+
+    @Param
+    public Server.TransportMode transportMode;
+
+    @Param({"64", "4096"})
+    public int size;
+
+    private EchoHandler clientHandler;
+    private DataLink clientLink;
+    private SelectorLoopGroup selectorLoopGroup;
+
+    private InstructionDatum instructionDatum;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        int portNumber;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            portNumber = serverSocket.getLocalPort();
+        }
+        Server server = new Server(EchoHandler.echoing(), new DataLinkAggregator() {
+            private final List<DataLink> dataLinks = new CopyOnWriteArrayList<>();
+
+            @Override
+            public void addDataLink(DataLink dl) {
+                dataLinks.add(dl);
+            }
+
+            @Override
+            public int countLinks() {
+                return dataLinks.size();
+            }
+        }, portNumber, ConnectionOptions.DEFAULT.withTransportMode(transportMode));
+        server.setDaemon(true);
+        server.start();
+        clientHandler = EchoHandler.counting();
+        ConnectionOptions clientOptions = ConnectionOptions.DEFAULT;
+        if (transportMode == Server.TransportMode.NON_BLOCKING) {
+            selectorLoopGroup = new SelectorLoopGroup(1);
+            clientOptions = clientOptions.withSelectorLoopGroup(selectorLoopGroup);
+        }
+        clientLink = Client.connect(clientHandler, HOST_NAME, portNumber, clientOptions);
+        long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MILLIS;
+        while (!clientLink.isEncrypted()) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("Handshake timed out.");
+            Thread.sleep(1);
+        }
+        instructionDatum = new MessageInstructionDatum(new byte[size]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        clientLink.terminate();
+        if (selectorLoopGroup != null)
+            selectorLoopGroup.terminate();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip() {
+        long receivedCount = clientHandler.getReceivedCount();
+        clientLink.transmit(instructionDatum);
+        clientHandler.awaitReceived(receivedCount + 1);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void messages() {
+        long receivedCount = clientHandler.getReceivedCount();
+        for (int i = 0; i < BATCH_SIZE; ++i)
+            clientLink.transmit(instructionDatum);
+        clientHandler.awaitReceived(receivedCount + BATCH_SIZE);
+    }
+}
@@ -0,0 +1,101 @@
+package bench;
+
+import link.instructions.AcknowledgeInstructionDatum;
+import link.instructions.FrameFormat;
+import link.instructions.InstructionDatum;
+import link.instructions.PackSettings;
+import link.instructions.StreamChunkInstructionDatum;
+import link.instructions.StreamCreditInstructionDatum;
+import link.instructions.StreamOpenInstructionDatum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Measures the serialization and deserialization of each kind of instruction, unencrypted - the instructions used
+ * internally, which have codecs, and a small implementation specific instruction by Java serialization and by codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    private static final int MESSAGE_LENGTH = 64;
+    private static final int METADATA_LENGTH = 64;
+    private static final int CHUNK_LENGTH = 0x4_0000; //as StreamTransfers sends
+
+    private static final PackSettings PACK_SETTINGS = PackSettings.ORIGINAL.withFrameFormat(FrameFormat.LATEST);
+
+    public enum DatumType {
+        SERIALIZED_MESSAGE(data -> new MessageInstructionDatum(data), MESSAGE_LENGTH),
+        CODEC_MESSAGE(data -> new CodecMessageInstructionDatum(data), MESSAGE_LENGTH),
+        ACKNOWLEDGE(data -> new AcknowledgeInstructionDatum(), 0),
+        STREAM_OPEN(data -> new StreamOpenInstructionDatum(1, Long.MAX_VALUE, data), METADATA_LENGTH),
+        STREAM_CREDIT(data -> new StreamCreditInstructionDatum(1, CHUNK_LENGTH), 0),
+        STREAM_CHUNK(data -> new StreamChunkInstructionDatum(1, 0, data, false), CHUNK_LENGTH);
+
+        private final Function<byte[], InstructionDatum> constructor;
+        private final int dataLength;
+
+        DatumType(Function<byte[], InstructionDatum> constructor, int dataLength) {
+            this.constructor = constructor;
+            this.dataLength = dataLength;
+        }
+
+        InstructionDatum newInstance() {
+            byte[] data = new byte[dataLength];
+            new Random(dataLength).nextBytes(data);
+            return constructor.apply(data);
+        }
+    }
+
+    @Param
+    public DatumType datumType;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(InstructionDatum.MAX_PACKET_LENGTH);
+
+    private InstructionDatum instructionDatum;
+    private byte[] frame;
+
+    @Setup
+    public void setUp() {
+        instructionDatum = datumType.newInstance();
+        ByteBuffer packedData = serialize();
+        frame = new byte[packedData.remaining()];
+        packedData.get(frame);
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() {
+        return instructionDatum.pack(0, PACK_SETTINGS, capacity -> {
+            buffer.clear();
+            return buffer;
+        });
+    }
+
+    @Benchmark
+    public InstructionDatum deserialize() throws StreamCorruptedException {
+        return InstructionDatum.fromByteArray(
+                frame,
+                InstructionDatum.HEADER_LENGTH,
+                frame.length - InstructionDatum.HEADER_LENGTH - InstructionDatum.TRAILER_LENGTH
+        );
+    }
+}
@@ -1,129 +1,192 @@
 package crypto;
 
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
-
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * The original link cipher - data is XORed with a repeating key, then each byte is rotated left by its position
+ * modulo 8. It is retained for peers which cannot negotiate an authenticated CipherSuite.
+ * The work is done in place, eight bytes at a time - each long is XORed with the corresponding word of the key, then
+ * every byte within it is rotated at once by masking. Since both the key and the rotation depend only on a byte's
+ * position, large ranges are divided between the threads of the common ForkJoinPool.
+ */
 public class ByteCipher {
 
     private static final int SHIFT = 8;
-    private static final int KEY_SIZE = 256;
+    public static final int KEY_SIZE = 256;
+
+    private static final int KEY_WORDS = KEY_SIZE / Long.BYTES;
 
-    private static final int BYTE_MASK = 0x0000_00ff;
+    //ranges at least this long are encrypted in parallel, in segments of a whole number of key lengths
+    private static final int PARALLEL_THRESHOLD = 0x4_0000;
+    private static final int PARALLEL_SEGMENT = 0x1_0000;
 
-    private static byte[] sessionKey = null;
+    //within a big-endian long, the byte at position i lies in lane i % 8, counting from the most significant byte.
+    //a lane is rotated by its lane number, built from rotations by 1, 2 and 4 of the lanes whose numbers have the
+    //corresponding bit set
+    private static final long LANES_1 = 0x00ff_00ff_00ff_00ffL; //lanes 1, 3, 5, 7
+    private static final long LANES_2 = 0x0000_ffff_0000_ffffL; //lanes 2, 3, 6, 7
+    private static final long LANES_4 = 0x0000_0000_ffff_ffffL; //lanes 4, 5, 6, 7
+
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
 
     /**
      * Encrypt a byte array for secure transmission.
      */
-    public static byte[] encrypt(byte[] data){
-        return encrypt(data, getSessionKey());
-    }
-
     public static byte[] encrypt(byte[] data, byte[] key) {
-        return bytewiseShiftLeft(xorApplyKey(data, key));
+        byte[] encryptedData = data.clone();
+        encryptInPlace(encryptedData, 0, encryptedData.length, key);
+        return encryptedData;
     }
 
     /**
      * Decrypt an encrypted byte array.
      */
-    public static byte[] decrypt(byte[] encryptedData) {
-        return decrypt(encryptedData, getSessionKey());
-    }
     public static byte[] decrypt(byte[] encryptedData, byte[] key) {
-        return xorApplyKey(bytewiseShiftRight(encryptedData), key);
+        return decrypt(encryptedData, 0, encryptedData.length, key);
     }
 
     /**
-     * Generate a new random session key.
+     * Decrypt a range of an encrypted byte array, without modifying it.
      */
-    private static void generateSessionKey() {
-        sessionKey = new byte[KEY_SIZE];
-        for (int i = 0; i < KEY_SIZE; ++i) {
-            sessionKey[i] = randomByte();
-        }
+    public static byte[] decrypt(byte[] encryptedData, int offset, int length, byte[] key) {
+        byte[] data = Arrays.copyOfRange(encryptedData, offset, offset + length);
+        decryptInPlace(data, 0, data.length, key);
+        return data;
     }
 
     /**
-     * Get the current session key, generating it first if necessary.
+     * Encrypt a range of an array in place.
      */
-    public static byte[] getSessionKey() {
-        if (sessionKey == null) generateSessionKey();
-        return sessionKey;
+    public static void encryptInPlace(byte[] data, int offset, int length, byte[] key) {
+        encryptInPlace(ByteBuffer.wrap(data), offset, length, key);
     }
 
     /**
-     * Set the session key.
+     * Encrypt a range of a buffer in place, regardless of its position and limit, which are unchanged.
      */
-    public static void setSessionKey(byte[] key) {
-        sessionKey = key;
+    public static void encryptInPlace(ByteBuffer buffer, int offset, int length, byte[] key) {
+        apply(buffer, offset, length, key, true);
     }
 
     /**
-     * Encryption step - rotate bytes leftwards.
+     * Decrypt a range of an array in place.
      */
-    private static byte[] bytewiseShiftLeft(byte[] inputData) {
-        byte[] outputData = new byte[inputData.length];
-        int shiftDegree;
-        for (int i = 0; i < inputData.length; ++i) {
-            shiftDegree = (i % SHIFT);
-            outputData[i] = shift(inputData[i], shiftDegree, true);
-        }
-        return outputData;
+    public static void decryptInPlace(byte[] data, int offset, int length, byte[] key) {
+        decryptInPlace(ByteBuffer.wrap(data), offset, length, key);
     }
 
     /**
-     * Decryption step - rotate bytes rightwards (reverse bytewiseShiftLeft).
+     * Decrypt a range of a buffer in place, regardless of its position and limit, which are unchanged.
      */
-    private static byte[] bytewiseShiftRight(byte[] inputData) {
-        byte[] outputData = new byte[inputData.length];
-        int shiftDegree;
-        for (int i = 0; i < inputData.length; ++i) {
-            shiftDegree = (i % SHIFT);
-            outputData[i] = shift(inputData[i], shiftDegree, false);
-        }
-        return outputData;
+    public static void decryptInPlace(ByteBuffer buffer, int offset, int length, byte[] key) {
+        apply(buffer, offset, length, key, false);
     }
 
-    private static byte randomByte() {
-        int b = 0;
-        final SecureRandom SECURE_RANDOM = new SecureRandom();
-        for (int i = 7; i >= 0; --i) {
-            b |= (int)(Math.pow(2, i) * SECURE_RANDOM.nextInt(2));
+    /**
+     * Generate a new random key - each link negotiating the legacy cipher exchanges its own.
+     */
+    public static byte[] generateKey() {
+        byte[] key = new byte[KEY_SIZE];
+        SECURE_RANDOM.nextBytes(key);
+        return key;
+    }
+
+    private static void apply(ByteBuffer buffer, int offset, int length, byte[] key, boolean encrypt) {
+        if (key.length < KEY_SIZE)
+            throw new IllegalArgumentException("Key too short: " + key.length + " < " + KEY_SIZE);
+        if (offset < 0 || length < 0 || offset + length > buffer.capacity())
+            throw new IndexOutOfBoundsException("Range [" + offset + ", " + (offset + length) + ") out of bounds.");
+        //a duplicate is always big-endian, and leaves the caller's buffer untouched
+        ByteBuffer view = buffer.duplicate();
+        view.clear();
+        long[] keyWords = new long[KEY_WORDS];
+        ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+        for (int i = 0; i < KEY_WORDS; ++i)
+            keyWords[i] = keyBuffer.getLong(i * Long.BYTES);
+        if (length < PARALLEL_THRESHOLD || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            apply(view, offset, length, key, keyWords, encrypt);
+            return;
         }
-        return (byte)b;
+        //each segment begins at a multiple of the key length, so it may be processed as if it were the whole range
+        IntStream.range(0, (length + PARALLEL_SEGMENT - 1) / PARALLEL_SEGMENT).parallel().forEach(segment -> {
+            int segmentStart = segment * PARALLEL_SEGMENT;
+            apply(
+                    view,
+                    offset + segmentStart,
+                    Math.min(PARALLEL_SEGMENT, length - segmentStart),
+                    key,
+                    keyWords,
+                    encrypt
+            );
+        });
     }
 
     /**
-     * Circular shift a byte by the specified magnitude, either left or right.
+     * Encryption/Decryption - XOR with the key and rotate each byte by its position, eight bytes at a time, followed
+     * by any remaining bytes individually. Only absolute accessors are used, so threads may share the buffer.
      */
-    private static byte shift(byte b, int mag, boolean left) {
-        if (mag < 0 || mag >= SHIFT) throw new IllegalArgumentException("Mag must be in range [0-7].");
-        if (mag == 0) return b;
-        byte shiftMask = 0b0000_0000;
-        int factor = 1;
-        int oppositeMag = SHIFT - mag;
-        for (int i = 0; i < (left ? oppositeMag : mag); ++i) {
-            shiftMask += factor;
-            factor *= 2;
+    private static void apply(ByteBuffer buffer, int offset, int length, byte[] key, long[] keyWords, boolean encrypt) {
+        int wordsEnd = length & ~(Long.BYTES - 1);
+        int i = 0;
+        for (; i < wordsEnd; i += Long.BYTES) {
+            long word = buffer.getLong(offset + i);
+            long keyWord = keyWords[(i / Long.BYTES) % KEY_WORDS];
+            buffer.putLong(offset + i, encrypt ? rotateLanesLeft(word ^ keyWord) : rotateLanesRight(word) ^ keyWord);
+        }
+        for (; i < length; ++i) {
+            int shiftDegree = i % SHIFT;
+            int b = buffer.get(offset + i) & 0xff;
+            int k = key[i % KEY_SIZE] & 0xff;
+            int result = encrypt ? rotateLeft(b ^ k, shiftDegree) : rotateLeft(b, SHIFT - shiftDegree) ^ k;
+            buffer.put(offset + i, (byte) result);
         }
-        int oppositeMask = ~shiftMask & BYTE_MASK;
-        int leftShiftPart = b & shiftMask;
-        int rightShiftPart = b & oppositeMask;
-        return (byte)((leftShiftPart << (left ? mag : oppositeMag)) | (rightShiftPart >>> (left ? oppositeMag : mag)));
     }
 
     /**
-     * Encryption/Decryption step - xor the source text with the provided key.
-     * If no key is provided, use the session key.
-     * This encrypts plain text or decrypts cipher text.
+     * Encryption step - rotate each byte of a word leftwards by its lane number.
+     */
+    private static long rotateLanesLeft(long word) {
+        word = rotateLanesLeft(word, 1, LANES_1);
+        word = rotateLanesLeft(word, 2, LANES_2);
+        return rotateLanesLeft(word, 4, LANES_4);
+    }
+
+    private static long rotateLanesLeft(long word, int magnitude, long lanes) {
+        long rotated = ((word << magnitude) & ~laneMask(magnitude)) |
+                ((word >>> (SHIFT - magnitude)) & laneMask(magnitude));
+        return (word & ~lanes) | (rotated & lanes);
+    }
+
+    /**
+     * Decryption step - rotate each byte of a word rightwards by its lane number (reverse rotateLanesLeft).
+     */
+    private static long rotateLanesRight(long word) {
+        word = rotateLanesRight(word, 1, LANES_1);
+        word = rotateLanesRight(word, 2, LANES_2);
+        return rotateLanesRight(word, 4, LANES_4);
+    }
+
+    private static long rotateLanesRight(long word, int magnitude, long lanes) {
+        long rotated = ((word >>> magnitude) & laneMask(SHIFT - magnitude)) |
+                ((word << (SHIFT - magnitude)) & ~laneMask(SHIFT - magnitude));
+        return (word & ~lanes) | (rotated & lanes);
+    }
+
+    /**
+     * @return a word with the lowest specified number of bits of every byte set.
+     */
+    private static long laneMask(int bits) {
+        return ((1L << bits) - 1) * 0x0101_0101_0101_0101L;
+    }
+
+    /**
+     * Circular shift the low byte of an int leftwards by the specified magnitude, from 0 to 8.
      */
-    private static byte[] xorApplyKey(byte[] data) {
-        return xorApplyKey(data, sessionKey);
-    }
-    private static byte[] xorApplyKey(byte[] inputData, byte[] key) {
-        int dataSize = inputData.length;
-        byte[] outputData = new byte[dataSize];
-        for (int i = 0; i < dataSize; ++i)
-            outputData[i] = (byte) (inputData[i] ^ key[i % KEY_SIZE]);
-        return outputData;
+    private static int rotateLeft(int b, int magnitude) {
+        return ((b << magnitude) | (b >>> (SHIFT - magnitude))) & 0xff;
     }
 }
@@ -0,0 +1,151 @@
+package crypto;
+
+import javax.crypto.Cipher;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ciphers a link may use once end-to-end encryption is established, in the order this process prefers them.
+ * The client offers every suite available in its JVM during the handshake, and the server selects the first of its own
+ * preferred suites which the client offered.
+ * The AEAD suites are provided through JCA, and benefit from whatever hardware acceleration the JVM provides - AES-GCM
+ * is intrinsified on most processors, while ChaCha20-Poly1305 requires Java 11 or later and suits processors without
+ * AES instructions. Their authentication tags make the checksum carried in each instruction's trailer redundant.
+ * LEGACY_XOR is the original ByteCipher, retained for peers which offer nothing else.
+ */
+public enum CipherSuite {
+    LEGACY_XOR(0, null, null, 0, 0),
+    AES_256_GCM(1, "AES/GCM/NoPadding", "AES", 12, 16),
+    CHACHA20_POLY1305(2, "ChaCha20-Poly1305", "ChaCha20", 12, 16);
+
+    private static volatile CipherSuite[] preferredSuites =
+            availableSuites(new CipherSuite[]{AES_256_GCM, CHACHA20_POLY1305, LEGACY_XOR});
+
+    private final byte id;
+    private final String transformation;
+    private final String keyAlgorithm;
+    private final int nonceLength;
+    private final int tagLength;
+    private final boolean available;
+
+    //Cipher instances are not thread safe, but are costly to obtain, so each thread keeps its own for each suite
+    private final ThreadLocal<Cipher> cipher;
+
+    CipherSuite(int id, String transformation, String keyAlgorithm, int nonceLength, int tagLength) {
+        this.id = (byte) id;
+        this.transformation = transformation;
+        this.keyAlgorithm = keyAlgorithm;
+        this.nonceLength = nonceLength;
+        this.tagLength = tagLength;
+        this.available = transformation == null || isSupported(transformation);
+        this.cipher = transformation == null ? null : ThreadLocal.withInitial(this::newCipher);
+    }
+
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * @return true if this suite authenticates the data it encrypts.
+     */
+    public boolean isAuthenticated() {
+        return transformation != null;
+    }
+
+    /**
+     * @return true if this suite is supported by the running JVM.
+     */
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * @return the number of bytes encryption adds to each instruction - the nonce and the authentication tag.
+     */
+    public int getOverhead() {
+        return nonceLength + tagLength;
+    }
+
+    int getNonceLength() {
+        return nonceLength;
+    }
+
+    int getTagLength() {
+        return tagLength;
+    }
+
+    String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    Cipher cipher() {
+        return cipher.get();
+    }
+
+    public static CipherSuite forId(byte id) {
+        for (CipherSuite cipherSuite : values())
+            if (cipherSuite.id == id)
+                return cipherSuite;
+        return null;
+    }
+
+    /**
+     * Set the suites this process will use, in order of preference. Unavailable suites are ignored.
+     */
+    public static void setPreferredSuites(CipherSuite... cipherSuites) {
+        CipherSuite[] available = availableSuites(cipherSuites);
+        if (available.length == 0)
+            throw new IllegalArgumentException("No preferred cipher suite is available.");
+        preferredSuites = available;
+    }
+
+    /**
+     * @return the ids of the suites this process will use, in order of preference, as offered during the handshake.
+     */
+    public static byte[] preferredSuiteIds() {
+        CipherSuite[] cipherSuites = preferredSuites;
+        byte[] ids = new byte[cipherSuites.length];
+        for (int i = 0; i < cipherSuites.length; ++i)
+            ids[i] = cipherSuites[i].id;
+        return ids;
+    }
+
+    /**
+     * Select the suite to use with a peer.
+     * @param offeredIds the ids of the suites offered by the peer
+     * @return the first of our preferred suites which the peer offered, or null if there are none.
+     */
+    public static CipherSuite negotiate(byte[] offeredIds) {
+        for (CipherSuite cipherSuite : preferredSuites)
+            for (byte offeredId : offeredIds)
+                if (cipherSuite.id == offeredId)
+                    return cipherSuite;
+        return null;
+    }
+
+    private static CipherSuite[] availableSuites(CipherSuite[] cipherSuites) {
+        List<CipherSuite> available = new ArrayList<>();
+        for (CipherSuite cipherSuite : cipherSuites)
+            if (cipherSuite.available && !available.contains(cipherSuite))
+                available.add(cipherSuite);
+        return available.toArray(new CipherSuite[0]);
+    }
+
+    private static boolean isSupported(String transformation) {
+        try {
+            Cipher.getInstance(transformation);
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    private Cipher newCipher() {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cipher suite " + this + " is unavailable.", e);
+        }
+    }
+}
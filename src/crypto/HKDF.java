@@ -0,0 +1,70 @@
+package crypto;
+
+import main.LogHub;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * The HMAC-based key derivation function of RFC 5869, using HMAC-SHA256.
+ * Derives any number of independent keys from a single secret, each bound to its own context.
+ */
+public final class HKDF {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int HASH_LENGTH = 32;
+
+    private static final int MAX_OUTPUT_LENGTH = 255 * HASH_LENGTH;
+
+    private HKDF() {}
+
+    /**
+     * Derive a key from a secret.
+     * @param secret the input keying material
+     * @param salt a non-secret random value, or null for none
+     * @param info the context the key is bound to, which must differ for each key derived from the same secret
+     * @param length the length of the key, at most 8160 bytes
+     */
+    public static byte[] derive(byte[] secret, byte[] salt, byte[] info, int length) {
+        return expand(extract(salt, secret), info, length);
+    }
+
+    /**
+     * @return a pseudorandom key concentrating the entropy of the secret.
+     */
+    public static byte[] extract(byte[] salt, byte[] secret) {
+        return mac(salt == null || salt.length == 0 ? new byte[HASH_LENGTH] : salt).doFinal(secret);
+    }
+
+    /**
+     * @return output keying material of the specified length, expanded from a pseudorandom key.
+     */
+    public static byte[] expand(byte[] pseudorandomKey, byte[] info, int length) {
+        if (length < 0 || length > MAX_OUTPUT_LENGTH)
+            throw new IllegalArgumentException("Invalid HKDF output length: " + length);
+        Mac mac = mac(pseudorandomKey);
+        byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        for (int offset = 0, counter = 1; offset < length; offset += HASH_LENGTH, ++counter) {
+            mac.update(block);
+            if (info != null)
+                mac.update(info);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            System.arraycopy(block, 0, output, offset, Math.min(HASH_LENGTH, length - offset));
+        }
+        return output;
+    }
+
+    private static Mac mac(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            LogHub.logFatalCrash("Key derivation failure", e);
+            return null;
+        }
+    }
+}
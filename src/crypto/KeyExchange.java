@@ -0,0 +1,35 @@
+package crypto;
+
+/**
+ * The means by which a client and server establish a link's secret key during a full handshake.
+ * RSA transports a secret key generated by the server, encrypted with a key pair generated by the client - which takes
+ * hundreds of milliseconds. X25519 agrees the secret key from ephemeral key pairs generated by both sides in
+ * microseconds, and establishes encryption within a single round trip.
+ * The client chooses which to use, so a client should only prefer X25519 where its servers support it. X25519 requires
+ * Java 11 or later - where it is not available, RSA is used.
+ */
+public enum KeyExchange {
+    RSA,
+    X25519;
+
+    private static volatile KeyExchange preferred = RSA;
+
+    public boolean isAvailable() {
+        return this == RSA || crypto.X25519.isAvailable();
+    }
+
+    /**
+     * Set the key exchange clients in this process use for full handshakes.
+     */
+    public static void setPreferred(KeyExchange keyExchange) {
+        preferred = keyExchange;
+    }
+
+    /**
+     * @return the preferred key exchange if it is available, or RSA otherwise.
+     */
+    public static KeyExchange getPreferred() {
+        KeyExchange keyExchange = preferred;
+        return keyExchange.isAvailable() ? keyExchange : RSA;
+    }
+}
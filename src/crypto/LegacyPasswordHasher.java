@@ -0,0 +1,48 @@
+package crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Verifies passwords hashed by Password, so that a PasswordService may upgrade them to a stronger scheme as their
+ * owners log in.
+ * Its stored hashes are a salt followed by the hash of the password salted with it - that is,
+ * Password.salt(salt, Password.hash(Password.salt(salt, password))).
+ */
+public class LegacyPasswordHasher implements PasswordHasher {
+
+    @Override
+    public String hash(char[] password) {
+        String salt = Password.generateRandomSalt();
+        return Password.salt(salt, Password.hash(Password.salt(salt, new String(password))));
+    }
+
+    /**
+     * Password produced stored hashes of no particular form, so this recognises any which is long enough - it should
+     * be consulted after any other scheme.
+     */
+    @Override
+    public boolean recognises(String storedHash) {
+        return storedHash.length() > Password.SALT_LENGTH;
+    }
+
+    @Override
+    public boolean verify(char[] password, String storedHash) {
+        if (!recognises(storedHash))
+            return false;
+        String salt = storedHash.substring(0, Password.SALT_LENGTH);
+        String hash = Password.hash(Password.salt(salt, new String(password)));
+        return MessageDigest.isEqual(
+                hash.getBytes(StandardCharsets.UTF_8),
+                storedHash.substring(Password.SALT_LENGTH).getBytes(StandardCharsets.UTF_8)
+        );
+    }
+
+    /**
+     * This scheme is always weaker than any which replaces it.
+     */
+    @Override
+    public boolean needsRehash(String storedHash) {
+        return true;
+    }
+}
@@ -0,0 +1,250 @@
+package crypto;
+
+import link.instructions.FrameIntegrity;
+import main.LogHub;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encrypts and decrypts the instructions transmitted on a single link, using the CipherSuite negotiated for that link.
+ * For the AEAD suites, each link derives a key for each direction from the session key and a salt chosen by the server,
+ * and each encrypted instruction is prefixed by its nonce - the sender's role, followed by a counter - so no nonce is
+ * ever repeated under the same key. The size and sequence index in the instruction's header are authenticated along
+ * with its data, and the receiver rejects any nonce which does not carry its peer's role, or whose counter it has
+ * already accepted or which lags too far behind the highest it has accepted, so instructions can be neither replayed,
+ * nor reflected back to their sender, nor have their headers altered.
+ * LEGACY_XOR provides none of this, since the peers which require it know nothing of nonces.
+ * LinkCiphers are thread safe.
+ */
+public class LinkCipher {
+
+    public static final int KEY_SALT_LENGTH = 16;
+
+    //the counters accepted from the peer are tracked this far behind the highest, which tolerates the slight
+    //reordering of instructions encrypted concurrently by different threads - anything older is dropped, as a link
+    //which acknowledges instructions retransmits them afresh under new nonces
+    private static final int REPLAY_WINDOW = 0x400;
+
+    //the header's size and sequence index, as InstructionDatum packs them
+    private static final int ASSOCIATED_DATA_LENGTH = 3 + Integer.BYTES;
+
+    private static final int KEY_LENGTH = 32; //as both AES-256 and ChaCha20 require
+
+    private static final byte[] CLIENT_KEY_INFO = "ShadowComm link client key".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SERVER_KEY_INFO = "ShadowComm link server key".getBytes(StandardCharsets.UTF_8);
+
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    private final CipherSuite cipherSuite;
+    //the legacy cipher's key, or null for the authenticated suites
+    private final byte[] legacyKey;
+    //the key for each direction, or null for the legacy cipher
+    private final SecretKeySpec encryptionKey;
+    private final SecretKeySpec decryptionKey;
+    private final byte role;
+    private final byte peerRole;
+    private final AtomicLong nonceCounter = new AtomicLong(0);
+
+    //the highest counter accepted from the peer, and a bitmap of those accepted within the replay window of it, indexed
+    //by counter - both guarded by this cipher's monitor
+    private long highestCounter = -1;
+    private final long[] acceptedCounters;
+
+    /**
+     * @param cipherSuite the negotiated suite
+     * @param sessionKey the secret key exchanged during the handshake
+     * @param keySalt the salt chosen by the server, from which the link's own keys are derived
+     * @param initiator true on the client side of the link - each side uses a distinct key and nonce prefix
+     */
+    public LinkCipher(CipherSuite cipherSuite, byte[] sessionKey, byte[] keySalt, boolean initiator) {
+        this.cipherSuite = cipherSuite;
+        role = (byte) (initiator ? 1 : 0);
+        peerRole = (byte) (initiator ? 0 : 1);
+        if (cipherSuite.isAuthenticated()) {
+            legacyKey = null;
+            byte[] pseudorandomKey = HKDF.extract(keySalt, sessionKey);
+            byte[] clientKey = HKDF.expand(pseudorandomKey, CLIENT_KEY_INFO, KEY_LENGTH);
+            byte[] serverKey = HKDF.expand(pseudorandomKey, SERVER_KEY_INFO, KEY_LENGTH);
+            encryptionKey = new SecretKeySpec(initiator ? clientKey : serverKey, cipherSuite.getKeyAlgorithm());
+            decryptionKey = new SecretKeySpec(initiator ? serverKey : clientKey, cipherSuite.getKeyAlgorithm());
+            acceptedCounters = new long[REPLAY_WINDOW / Long.SIZE];
+        } else {
+            legacyKey = sessionKey;
+            encryptionKey = null;
+            decryptionKey = null;
+            acceptedCounters = null;
+        }
+    }
+
+    public static byte[] generateKeySalt() {
+        byte[] keySalt = new byte[KEY_SALT_LENGTH];
+        SECURE_RANDOM.nextBytes(keySalt);
+        return keySalt;
+    }
+
+    public CipherSuite getCipherSuite() {
+        return cipherSuite;
+    }
+
+    /**
+     * @return true if decryption verifies the data, so no checksum is required.
+     */
+    public boolean isAuthenticated() {
+        return cipherSuite.isAuthenticated();
+    }
+
+    /**
+     * @return the number of bytes encryption adds to the data.
+     */
+    public int getOverhead() {
+        return cipherSuite.getOverhead();
+    }
+
+    /**
+     * Encrypt data directly into the destination buffer, which must have getOverhead() more bytes remaining than the
+     * data occupies, calculating the check value of the unencrypted data as it is copied if this cipher is not
+     * authenticated. The destination's position is advanced past the encrypted data.
+     * @param sequenceIndex the sequence index in the header of the instruction being packed
+     * @return the check value, or zero if this cipher is authenticated.
+     */
+    public int encrypt(byte[] data, ByteBuffer destination, FrameIntegrity frameIntegrity, int sequenceIndex) {
+        if (!cipherSuite.isAuthenticated()) {
+            int start = destination.position();
+            int checkValue = frameIntegrity.copy(data, destination);
+            ByteCipher.encryptInPlace(destination, start, data.length, legacyKey);
+            return checkValue;
+        }
+        byte[] nonce = nextNonce();
+        destination.put(nonce);
+        try {
+            Cipher cipher = cipherSuite.cipher();
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, parameterSpec(nonce));
+            cipher.updateAAD(associatedData(data.length + getOverhead(), sequenceIndex));
+            cipher.doFinal(ByteBuffer.wrap(data), destination);
+        } catch (GeneralSecurityException e) {
+            LogHub.logFatalCrash("Encryption failure", e);
+        }
+        return 0;
+    }
+
+    /**
+     * Decrypt a range of an array of encrypted data, without modifying it.
+     * @param sequenceIndex the sequence index in the header of the instruction received
+     * @return the decrypted data, or null if it fails authentication, or has been received before.
+     */
+    public byte[] decrypt(byte[] encryptedData, int offset, int length, int sequenceIndex) {
+        if (!cipherSuite.isAuthenticated())
+            return ByteCipher.decrypt(encryptedData, offset, length, legacyKey);
+        int nonceLength = cipherSuite.getNonceLength();
+        if (length < cipherSuite.getOverhead())
+            return null;
+        if (encryptedData[offset] != peerRole) //our own instruction, reflected back to us
+            return null;
+        long counter = counter(encryptedData, offset + nonceLength - Long.BYTES);
+        if (!isFresh(counter))
+            return null;
+        byte[] data = new byte[length - cipherSuite.getOverhead()];
+        try {
+            Cipher cipher = cipherSuite.cipher();
+            cipher.init(
+                    Cipher.DECRYPT_MODE,
+                    decryptionKey,
+                    parameterSpec(encryptedData, offset, nonceLength)
+            );
+            cipher.updateAAD(associatedData(length, sequenceIndex));
+            cipher.doFinal(encryptedData, offset + nonceLength, length - nonceLength, data, 0);
+        } catch (AEADBadTagException e) { //corrupted or forged
+            return null;
+        } catch (GeneralSecurityException e) {
+            LogHub.logFatalCrash("Decryption failure", e);
+        }
+        //only authenticated counters are recorded, so forgeries cannot advance the window
+        return accept(counter) ? data : null;
+    }
+
+    private byte[] nextNonce() {
+        byte[] nonce = new byte[cipherSuite.getNonceLength()];
+        nonce[0] = role;
+        long counter = nonceCounter.getAndIncrement();
+        for (int i = nonce.length - 1; i >= nonce.length - Long.BYTES; --i) {
+            nonce[i] = (byte) counter;
+            counter >>>= 8;
+        }
+        return nonce;
+    }
+
+    private static long counter(byte[] nonce, int offset) {
+        long counter = 0;
+        for (int i = offset; i < offset + Long.BYTES; ++i)
+            counter = (counter << 8) | (nonce[i] & 0xff);
+        return counter;
+    }
+
+    /**
+     * @return false if the counter has already been accepted, or lags too far behind the highest to tell.
+     */
+    private synchronized boolean isFresh(long counter) {
+        if (counter < 0)
+            return false;
+        if (counter > highestCounter)
+            return true;
+        return highestCounter - counter < REPLAY_WINDOW && !isAccepted(counter);
+    }
+
+    /**
+     * Record an authenticated counter, advancing the window if it is the highest yet.
+     * @return false if it was not fresh - it may have been accepted by another thread since it was first checked.
+     */
+    private synchronized boolean accept(long counter) {
+        if (!isFresh(counter))
+            return false;
+        if (counter > highestCounter) {
+            //forget whatever falls out of the window
+            for (long c = Math.max(highestCounter + 1, counter - REPLAY_WINDOW + 1); c <= counter; ++c)
+                acceptedCounters[index(c)] &= ~bit(c);
+            highestCounter = counter;
+        }
+        acceptedCounters[index(counter)] |= bit(counter);
+        return true;
+    }
+
+    private boolean isAccepted(long counter) {
+        return (acceptedCounters[index(counter)] & bit(counter)) != 0;
+    }
+
+    private static int index(long counter) {
+        return (int) (counter % REPLAY_WINDOW) / Long.SIZE;
+    }
+
+    private static long bit(long counter) {
+        return 1L << (counter % Long.SIZE);
+    }
+
+    private static byte[] associatedData(int size, int sequenceIndex) {
+        return ByteBuffer.allocate(ASSOCIATED_DATA_LENGTH)
+                .put((byte) (size >> 16))
+                .putShort((short) size)
+                .putInt(sequenceIndex)
+                .array();
+    }
+
+    private AlgorithmParameterSpec parameterSpec(byte[] nonce) {
+        return parameterSpec(nonce, 0, nonce.length);
+    }
+
+    private AlgorithmParameterSpec parameterSpec(byte[] nonce, int offset, int length) {
+        return cipherSuite == CipherSuite.AES_256_GCM
+                ? new GCMParameterSpec(cipherSuite.getTagLength() * Byte.SIZE, nonce, offset, length)
+                : new IvParameterSpec(nonce, offset, length);
+    }
+}
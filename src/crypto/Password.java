@@ -5,6 +5,8 @@ import java.security.SecureRandom;
 
 /**
  * Provides various secure password functions, including hashing and salting.
+ * This is the original password hash - new passwords should be hashed with a PasswordService, which can also verify
+ * passwords hashed here and upgrade them.
  */
 public class Password {
 
@@ -12,22 +14,32 @@ public class Password {
 
     public static final int MINIMUM_LENGTH = 8;
     public static final int MAXIMUM_LENGTH = 24;
-    private static final int SALT_LENGTH = 8;
+    static final int SALT_LENGTH = 8;
+
+    //seeding a SecureRandom is costly, and a shared one is contended, so each thread keeps its own
+    private static final ThreadLocal<SecureRandom> SECURE_RANDOM = ThreadLocal.withInitial(SecureRandom::new);
 
     /**
      * Generate a random alphanumeric string of chars of SALT_LENGTH.
      */
     public static String generateRandomSalt() {
         char nextCandidateChar;
-        String randomSalt = "";
+        char[] randomSalt = new char[SALT_LENGTH];
         char nextAlphaSeed = 1;
-        final SecureRandom SECURE_RANDOM = new SecureRandom();
+        SecureRandom secureRandom = secureRandom();
         for (int i = 0; i < SALT_LENGTH; ++i){
-            nextCandidateChar = (char)SECURE_RANDOM.nextInt(MAX_CHAR);
-            randomSalt += forceAlphaNumericalSymbolic(nextCandidateChar, nextAlphaSeed);
+            nextCandidateChar = (char)secureRandom.nextInt(MAX_CHAR);
+            randomSalt[i] = forceAlphaNumericalSymbolic(nextCandidateChar, nextAlphaSeed);
             nextAlphaSeed = nextCandidateChar;
         }
-        return randomSalt;
+        return new String(randomSalt);
+    }
+
+    /**
+     * @return the calling thread's SecureRandom.
+     */
+    static SecureRandom secureRandom() {
+        return SECURE_RANDOM.get();
     }
 
     /**
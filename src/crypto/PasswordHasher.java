@@ -0,0 +1,32 @@
+package crypto;
+
+/**
+ * A password hashing scheme, for use by a PasswordService. Each scheme encodes everything it needs to verify a password
+ * - its salt and cost, as well as the hash itself - into the stored hash, so stored hashes of different schemes and
+ * costs may be mixed, and each verified by whichever scheme recognises it.
+ * Implementations must be thread safe.
+ */
+public interface PasswordHasher {
+
+    /**
+     * Hash a password with a newly generated salt.
+     * @return the stored hash.
+     */
+    String hash(char[] password);
+
+    /**
+     * @return true if the stored hash was produced by this scheme.
+     */
+    boolean recognises(String storedHash);
+
+    /**
+     * @return true if the stored hash, which this scheme recognises, was produced from the password.
+     */
+    boolean verify(char[] password, String storedHash);
+
+    /**
+     * @return true if the stored hash, which this scheme recognises, is weaker than this scheme now produces - in
+     * which case it should be replaced the next time its password is verified.
+     */
+    boolean needsRehash(String storedHash);
+}
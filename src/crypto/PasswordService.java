@@ -0,0 +1,222 @@
+package crypto;
+
+import main.LogHub;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Hashes and verifies passwords on a dedicated pool of threads, so the deliberately costly work of a strong password
+ * hash never runs on the threads on which links receive - a burst of logins is queued here, while I/O continues.
+ * New passwords are hashed by the current scheme. Stored hashes are verified by whichever of the current or accepted
+ * schemes recognises them, and once a password is verified against a hash from an accepted scheme, or one weaker than
+ * the current scheme now produces, it is rehashed by the current scheme - so stored hashes are upgraded transparently
+ * as their owners log in.
+ * At most queueCapacity requests may wait for a thread - beyond that, requests are refused immediately, their futures
+ * completing exceptionally with a RejectedExecutionException, so a flood of logins is shed rather than allowed to build
+ * an unbounded backlog. Callers should treat refusal as a transient failure, and ask the client to retry.
+ */
+public final class PasswordService {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 0x400;
+
+    private static final AtomicInteger SERVICE_COUNT = new AtomicInteger(0);
+
+    /**
+     * The result of a verification.
+     */
+    public static final class Verification {
+        private static final Verification INVALID = new Verification(false, null);
+
+        private final boolean valid;
+        private final String upgradedHash;
+
+        private Verification(boolean valid, String upgradedHash) {
+            this.valid = valid;
+            this.upgradedHash = upgradedHash;
+        }
+
+        /**
+         * @return true if the password matched the stored hash.
+         */
+        public boolean isValid() {
+            return valid;
+        }
+
+        /**
+         * @return true if the stored hash should be replaced with getUpgradedHash().
+         */
+        public boolean isUpgraded() {
+            return upgradedHash != null;
+        }
+
+        /**
+         * @return a new hash of the verified password by the current scheme, or null if the stored hash needs no
+         * upgrade, or the password did not match.
+         */
+        public String getUpgradedHash() {
+            return upgradedHash;
+        }
+    }
+
+    private final PasswordHasher currentHasher;
+    private final PasswordHasher[] acceptedHashers;
+
+    private final ThreadPoolExecutor executor;
+
+    private final LongAdder rejectedCount = new LongAdder();
+
+    /**
+     * Construct a service which hashes with PBKDF2 at its default cost, and accepts hashes made by Password, on one
+     * thread per available processor.
+     */
+    public PasswordService() {
+        this(
+                Runtime.getRuntime().availableProcessors(),
+                DEFAULT_QUEUE_CAPACITY,
+                new Pbkdf2PasswordHasher(),
+                new LegacyPasswordHasher()
+        );
+    }
+
+    /**
+     * @param threadCount the number of passwords which may be hashed in parallel
+     * @param queueCapacity the number of requests which may wait for a thread before further requests are refused
+     * @param currentHasher the scheme with which passwords are hashed
+     * @param acceptedHashers further schemes whose hashes are verified and upgraded, consulted in order after the
+     *                        current scheme
+     */
+    public PasswordService(
+            int threadCount,
+            int queueCapacity,
+            PasswordHasher currentHasher,
+            PasswordHasher... acceptedHashers
+    ) {
+        if (threadCount < 1) throw new IllegalArgumentException("Thread count must be at least 1: " + threadCount);
+        if (queueCapacity < 1) throw new IllegalArgumentException("Capacity must be at least 1: " + queueCapacity);
+        this.currentHasher = currentHasher;
+        this.acceptedHashers = acceptedHashers.clone();
+        String threadName = "PasswordService-" + SERVICE_COUNT.getAndIncrement() + "-";
+        AtomicInteger threadCounter = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(
+                threadCount,
+                threadCount,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, threadName + threadCounter.getAndIncrement());
+                    thread.setDaemon(true);
+                    //hashing is throughput work - let threads doing I/O run first when cores are contended
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                },
+                (runnable, threadPoolExecutor) -> {
+                    rejectedCount.increment();
+                    throw new RejectedExecutionException(
+                            threadPoolExecutor.isShutdown()
+                                    ? "Password service shut down"
+                                    : "Password service queue full"
+                    );
+                }
+        );
+    }
+
+    /**
+     * Hash a password by the current scheme.
+     * @param password the password, which the service copies - the caller may clear it once this returns
+     * @return a future completing with the stored hash.
+     */
+    public CompletableFuture<String> hash(char[] password) {
+        char[] copy = password.clone();
+        return submit(copy, () -> currentHasher.hash(copy));
+    }
+
+    /**
+     * Verify a password against a stored hash, and upgrade the hash if it is weaker than the current scheme produces.
+     * @param password the password, which the service copies - the caller may clear it once this returns
+     * @return a future completing with the result - a stored hash which no scheme recognises is never valid.
+     */
+    public CompletableFuture<Verification> verify(char[] password, String storedHash) {
+        char[] copy = password.clone();
+        return submit(copy, () -> verifyNow(copy, storedHash));
+    }
+
+    public CompletableFuture<String> hash(String password) {
+        return hash(password.toCharArray());
+    }
+
+    public CompletableFuture<Verification> verify(String password, String storedHash) {
+        return verify(password.toCharArray(), storedHash);
+    }
+
+    /**
+     * @return the number of requests waiting for a thread.
+     */
+    public int getQueueLength() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of requests refused because the queue was full, or the service shut down.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * Refuse further requests. Those already queued are still completed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private Verification verifyNow(char[] password, String storedHash) {
+        PasswordHasher hasher = hasherFor(storedHash);
+        if (hasher == null || !hasher.verify(password, storedHash))
+            return Verification.INVALID;
+        String upgradedHash = hasher != currentHasher || currentHasher.needsRehash(storedHash)
+                ? currentHasher.hash(password)
+                : null;
+        return new Verification(true, upgradedHash);
+    }
+
+    private PasswordHasher hasherFor(String storedHash) {
+        if (currentHasher.recognises(storedHash))
+            return currentHasher;
+        for (PasswordHasher hasher : acceptedHashers)
+            if (hasher.recognises(storedHash))
+                return hasher;
+        return null;
+    }
+
+    /**
+     * Run a task on the pool, clearing the password once it completes.
+     */
+    private <T> CompletableFuture<T> submit(char[] password, Supplier<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(task.get());
+                } catch (RuntimeException e) {
+                    LogHub.logNonFatalError("Password hashing failure", e);
+                    future.completeExceptionally(e);
+                } finally {
+                    Arrays.fill(password, '\0');
+                }
+            });
+        } catch (RejectedExecutionException e) { //queue full, or shut down
+            Arrays.fill(password, '\0');
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
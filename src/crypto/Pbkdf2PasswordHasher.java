@@ -0,0 +1,110 @@
+package crypto;
+
+import main.LogHub;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Hashes passwords with PBKDF2-HMAC-SHA256, via the JCA.
+ * The cost is the number of iterations, which should be raised as hardware improves - hashes of fewer iterations are
+ * still verified, but need rehashing.
+ * Stored hashes take the form $pbkdf2-sha256$iterations$salt$hash, with the salt and hash in unpadded Base64.
+ */
+public class Pbkdf2PasswordHasher implements PasswordHasher {
+
+    public static final int DEFAULT_ITERATIONS = 600_000;
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "$pbkdf2-sha256$";
+    private static final char SEPARATOR = '$';
+
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+
+    private static final Base64.Encoder ENCODER = Base64.getEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getDecoder();
+
+    private final int iterations;
+
+    public Pbkdf2PasswordHasher() {
+        this(DEFAULT_ITERATIONS);
+    }
+
+    public Pbkdf2PasswordHasher(int iterations) {
+        if (iterations < 1)
+            throw new IllegalArgumentException("Invalid iteration count: " + iterations);
+        this.iterations = iterations;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    @Override
+    public String hash(char[] password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        Password.secureRandom().nextBytes(salt);
+        return PREFIX + iterations + SEPARATOR + ENCODER.encodeToString(salt) + SEPARATOR +
+                ENCODER.encodeToString(derive(password, salt, iterations, HASH_LENGTH));
+    }
+
+    @Override
+    public boolean recognises(String storedHash) {
+        return storedHash.startsWith(PREFIX);
+    }
+
+    @Override
+    public boolean verify(char[] password, String storedHash) {
+        String[] fields = fields(storedHash);
+        if (fields == null)
+            return false;
+        try {
+            int storedIterations = Integer.parseInt(fields[0]);
+            byte[] salt = DECODER.decode(fields[1]);
+            byte[] hash = DECODER.decode(fields[2]);
+            if (storedIterations < 1 || hash.length == 0)
+                return false;
+            return MessageDigest.isEqual(hash, derive(password, salt, storedIterations, hash.length));
+        } catch (IllegalArgumentException e) { //malformed
+            return false;
+        }
+    }
+
+    @Override
+    public boolean needsRehash(String storedHash) {
+        String[] fields = fields(storedHash);
+        if (fields == null)
+            return true;
+        try {
+            return Integer.parseInt(fields[0]) < iterations;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * @return the iterations, salt and hash of a stored hash, or null if it is not of this form.
+     */
+    private static String[] fields(String storedHash) {
+        if (!storedHash.startsWith(PREFIX))
+            return null;
+        String[] fields = storedHash.substring(PREFIX.length()).split("\\$", -1);
+        return fields.length == 3 ? fields : null;
+    }
+
+    private static byte[] derive(char[] password, byte[] salt, int iterations, int length) {
+        PBEKeySpec keySpec = new PBEKeySpec(password, salt, iterations, length * Byte.SIZE);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(keySpec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            LogHub.logFatalCrash("Password hashing failure", e);
+            return null;
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+}
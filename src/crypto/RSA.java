@@ -7,28 +7,42 @@ import java.security.SecureRandom;
 
 /**
  * Provides RSA encryption and decryption for secure remote data transmission.
+ * Each handshake uses its own KeyPair, so no key is shared between links.
  */
 public class RSA {
     private static final BigInteger E = new BigInteger("65537"); //public key e, by convention
 
-    private static BigInteger sessionPublicKey = BigInteger.ZERO;
-    private static BigInteger sessionPrivateKey = BigInteger.ZERO;
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
 
     /**
-     * Server side
-     * @param cipherText - the RSA-encrypted cipherText received from the client, encrypted with sessionPublicKey
-     * @return the plainText corresponding to cipherText
+     * A public key and its corresponding private key, which never leaves the object.
      */
-    public static BigInteger decrypt(BigInteger cipherText){
-        if (sessionPublicKey.equals(BigInteger.ZERO) || sessionPrivateKey.equals(BigInteger.ZERO))
-            throw new IllegalStateException("Session keys have not been generated.");
-        return cipherText.modPow(sessionPrivateKey, sessionPublicKey); //P = C^d mod n
+    public static final class KeyPair {
+        private final BigInteger publicKey;
+        private final BigInteger privateKey;
+
+        private KeyPair(BigInteger publicKey, BigInteger privateKey) {
+            this.publicKey = publicKey;
+            this.privateKey = privateKey;
+        }
+
+        public BigInteger getPublicKey() {
+            return publicKey;
+        }
+
+        /**
+         * @param cipherText - the RSA-encrypted cipherText, encrypted with this pair's public key
+         * @return the plainText corresponding to cipherText
+         */
+        public BigInteger decrypt(BigInteger cipherText) {
+            return cipherText.modPow(privateKey, publicKey); //P = C^d mod n
+        }
     }
 
     /**
      * Client side
      * @param plainText - the BigInteger representation of the message to encrypt
-     * @param publicKey - the public key received from the server(same as sessionPublicKey in server's RSA)
+     * @param publicKey - the public key received from the server, from its KeyPair for this handshake
      * @return the RSA-encrypted cipherText corresponding to plainText
      * @throws IllegalArgumentException if the plaintext is larger than the key, or less than zero
      */
@@ -37,26 +51,21 @@ public class RSA {
         return plainText.modPow(E, publicKey); //C = P^e mod n
     }
 
-    public static void generateSessionKeys() {
+    /**
+     * Generate a new key pair. This is safe to call concurrently, and takes some time, so links generate their own
+     * on their own threads.
+     */
+    public static KeyPair generateKeyPair() {
         final BigInteger DIFF = BigInteger.valueOf(2L).pow(1000); //2^1000, the minimum difference between p and q
         BigInteger p, q, phiN; //as in RSA description
-        final SecureRandom SECURE_RANDOM = new SecureRandom();
         do {
             p = BigInteger.probablePrime(1536, SECURE_RANDOM); //get a value for p with 1536 bits
             q = BigInteger.probablePrime(1536, SECURE_RANDOM); //get a value for q with 1536 bits
         } while (p.subtract(q).abs().compareTo(DIFF) < 0); //ensure p and q are far enough apart
-        sessionPublicKey = p.multiply(q); //n = pq
         phiN = (p.subtract(BigInteger.ONE)).multiply(q.subtract(BigInteger.ONE)); //phi(n) = (p - 1)(q - 1)
-        sessionPrivateKey = E.modInverse(phiN); //d = e^-1 mod(phi(n))
-    }
-
-    public static BigInteger getSessionPublicKey(){
-        if (sessionPublicKey.equals(BigInteger.ZERO))
-            generateSessionKeys();
-        return sessionPublicKey;
+        return new KeyPair(p.multiply(q), E.modInverse(phiN)); //n = pq, d = e^-1 mod(phi(n))
     }
 
-
     /**
      * Ensure we do not break encryption by allowing inputs which exceed our public key size.
      * todo - build support for multi-step encryption of larger inputs.
@@ -0,0 +1,193 @@
+package crypto;
+
+import main.LogHub;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues and redeems the session tickets which let a client resume encrypted communication on a new link without
+ * repeating the RSA handshake.
+ * Each full handshake yields a resumption secret, derived from the link's secret key, which both sides retain. The
+ * server seals the secret and an expiry time into a ticket under a process-wide ticket key, and gives the ticket to the
+ * client - so the server need keep no state per client. A reconnecting client presents the ticket along with a fresh
+ * nonce, and each side derives the new link's secret key from the resumption secret and both sides' nonces.
+ * Ticket keys are generated at random, and may be rotated - tickets sealed under the previous key remain redeemable
+ * until the next rotation.
+ */
+public final class SessionTickets {
+
+    public static final long DEFAULT_LIFETIME_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    public static final int NONCE_LENGTH = 16;
+
+    private static final int SECRET_LENGTH = 32;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String KEY_ALGORITHM = "AES";
+    private static final int TICKET_KEY_LENGTH = 32;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+
+    //the key id, the iv, then the sealed expiry time and resumption secret, then the tag
+    private static final int TICKET_LENGTH = 1 + IV_LENGTH + Long.BYTES + SECRET_LENGTH + TAG_LENGTH;
+
+    private static final byte[] RESUMPTION_SECRET_INFO =
+            "ShadowComm resumption secret".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RESUMED_KEY_INFO = "ShadowComm resumed key".getBytes(StandardCharsets.UTF_8);
+
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            LogHub.logFatalCrash("Session ticket cipher unavailable", e);
+            return null;
+        }
+    });
+
+    private static volatile boolean issuing = true;
+    private static volatile long lifetimeMillis = DEFAULT_LIFETIME_MILLIS;
+
+    private static volatile TicketKey currentKey = new TicketKey((byte) 0);
+    private static volatile TicketKey previousKey = null;
+
+    private SessionTickets() {}
+
+    /**
+     * Set whether servers in this process issue tickets to clients once they complete a handshake. They do by default.
+     */
+    public static void setIssuing(boolean issuing) {
+        SessionTickets.issuing = issuing;
+    }
+
+    public static boolean isIssuing() {
+        return issuing;
+    }
+
+    /**
+     * Set how long tickets issued from now on remain redeemable.
+     */
+    public static void setLifetime(long lifetime, TimeUnit timeUnit) {
+        if (lifetime <= 0)
+            throw new IllegalArgumentException("Invalid session ticket lifetime: " + lifetime);
+        lifetimeMillis = timeUnit.toMillis(lifetime);
+    }
+
+    public static long getLifetimeMillis() {
+        return lifetimeMillis;
+    }
+
+    /**
+     * Replace the ticket key with a new one. Tickets sealed under the key being replaced remain redeemable until the
+     * next rotation - those sealed under any earlier key do not.
+     */
+    public static synchronized void rotateKey() {
+        previousKey = currentKey;
+        currentKey = new TicketKey((byte) (currentKey.id + 1));
+    }
+
+    /**
+     * Seal a resumption secret into a ticket, expiring after the current lifetime.
+     */
+    public static byte[] issue(byte[] resumptionSecret) {
+        TicketKey ticketKey = currentKey;
+        ByteBuffer ticket = ByteBuffer.allocate(TICKET_LENGTH);
+        byte[] iv = new byte[IV_LENGTH];
+        SECURE_RANDOM.nextBytes(iv);
+        ticket.put(ticketKey.id).put(iv);
+        ByteBuffer state = ByteBuffer.allocate(Long.BYTES + SECRET_LENGTH);
+        state.putLong(System.currentTimeMillis() + lifetimeMillis).put(resumptionSecret, 0, SECRET_LENGTH).flip();
+        try {
+            Cipher cipher = CIPHER.get();
+            cipher.init(Cipher.ENCRYPT_MODE, ticketKey.secretKey, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, iv));
+            cipher.updateAAD(ticket.array(), 0, 1); //bind the key id
+            cipher.doFinal(state, ticket);
+        } catch (GeneralSecurityException e) {
+            LogHub.logFatalCrash("Session ticket encryption failure", e);
+        }
+        return ticket.array();
+    }
+
+    /**
+     * Recover the resumption secret sealed into a ticket.
+     * @return the resumption secret, or null if the ticket has expired, was sealed under a key no longer held, or is
+     * not a ticket this process issued.
+     */
+    public static byte[] redeem(byte[] ticket) {
+        if (ticket == null || ticket.length != TICKET_LENGTH)
+            return null;
+        TicketKey ticketKey = currentKey;
+        if (ticketKey.id != ticket[0]) {
+            ticketKey = previousKey;
+            if (ticketKey == null || ticketKey.id != ticket[0])
+                return null;
+        }
+        byte[] state = new byte[Long.BYTES + SECRET_LENGTH];
+        try {
+            Cipher cipher = CIPHER.get();
+            cipher.init(
+                    Cipher.DECRYPT_MODE,
+                    ticketKey.secretKey,
+                    new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, ticket, 1, IV_LENGTH)
+            );
+            cipher.updateAAD(ticket, 0, 1);
+            cipher.doFinal(ticket, 1 + IV_LENGTH, TICKET_LENGTH - 1 - IV_LENGTH, state, 0);
+        } catch (AEADBadTagException e) { //forged, or corrupted
+            return null;
+        } catch (GeneralSecurityException e) {
+            LogHub.logFatalCrash("Session ticket decryption failure", e);
+        }
+        ByteBuffer stateBuffer = ByteBuffer.wrap(state);
+        if (stateBuffer.getLong() < System.currentTimeMillis())
+            return null; //expired
+        byte[] resumptionSecret = new byte[SECRET_LENGTH];
+        stateBuffer.get(resumptionSecret);
+        return resumptionSecret;
+    }
+
+    public static byte[] generateNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        SECURE_RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Derive the resumption secret of a link from the secret key and salt established by its handshake.
+     */
+    public static byte[] resumptionSecret(byte[] secretKey, byte[] keySalt) {
+        return HKDF.derive(secretKey, keySalt, RESUMPTION_SECRET_INFO, SECRET_LENGTH);
+    }
+
+    /**
+     * Derive the secret key of a resumed link, which is as long as the keys generated by a full handshake.
+     * @param clientNonce the nonce the client presented with its ticket
+     * @param keySalt the salt chosen by the server for the resumed link
+     */
+    public static byte[] resumedSecretKey(byte[] resumptionSecret, byte[] clientNonce, byte[] keySalt) {
+        byte[] salt = new byte[clientNonce.length + keySalt.length];
+        System.arraycopy(clientNonce, 0, salt, 0, clientNonce.length);
+        System.arraycopy(keySalt, 0, salt, clientNonce.length, keySalt.length);
+        return HKDF.derive(resumptionSecret, salt, RESUMED_KEY_INFO, ByteCipher.KEY_SIZE);
+    }
+
+    private static final class TicketKey {
+        private final byte id;
+        private final SecretKeySpec secretKey;
+
+        private TicketKey(byte id) {
+            this.id = id;
+            byte[] key = new byte[TICKET_KEY_LENGTH];
+            SECURE_RANDOM.nextBytes(key);
+            secretKey = new SecretKeySpec(key, KEY_ALGORITHM);
+        }
+    }
+}
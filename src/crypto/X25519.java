@@ -0,0 +1,141 @@
+package crypto;
+
+import main.LogHub;
+
+import javax.crypto.KeyAgreement;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/**
+ * Provides ephemeral X25519 key agreement, as a far faster alternative to RSA key transport - generating a key pair
+ * and agreeing a secret each take microseconds, where generating an RSA key pair takes hundreds of milliseconds.
+ * Public values are exchanged as their raw 32 bytes.
+ * X25519 requires Java 11 or later, so it is accessed through the JCA by name alone - isAvailable() reports whether
+ * the running JVM provides it.
+ */
+public class X25519 {
+
+    public static final int PUBLIC_VALUE_LENGTH = 32;
+
+    private static final String ALGORITHM = "X25519";
+
+    //the DER encoding of an X25519 SubjectPublicKeyInfo, up to the raw public value which ends it
+    private static final byte[] X509_PREFIX = {
+            0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00
+    };
+
+    private static final byte[] SECRET_KEY_INFO = "ShadowComm X25519 key".getBytes(StandardCharsets.UTF_8);
+
+    private static final boolean AVAILABLE = checkAvailable();
+
+    /**
+     * An ephemeral key pair, whose private key never leaves the object.
+     */
+    public static final class KeyPair {
+        private final byte[] publicValue;
+        private final PrivateKey privateKey;
+
+        private KeyPair(byte[] publicValue, PrivateKey privateKey) {
+            this.publicValue = publicValue;
+            this.privateKey = privateKey;
+        }
+
+        public byte[] getPublicValue() {
+            return publicValue.clone();
+        }
+
+        /**
+         * Agree a shared secret with the holder of another key pair.
+         * @param peerPublicValue the raw public value of the other key pair
+         * @return the 32 byte shared secret, or null if the public value is malformed or of low order.
+         */
+        public byte[] agree(byte[] peerPublicValue) {
+            if (peerPublicValue == null || peerPublicValue.length != PUBLIC_VALUE_LENGTH)
+                return null;
+            try {
+                KeyAgreement keyAgreement = KeyAgreement.getInstance(ALGORITHM);
+                keyAgreement.init(privateKey);
+                keyAgreement.doPhase(toPublicKey(peerPublicValue), true);
+                byte[] sharedSecret = keyAgreement.generateSecret();
+                //a low order public value yields an all zero secret, which some providers do not reject themselves
+                int bits = 0;
+                for (byte b : sharedSecret)
+                    bits |= b;
+                return bits == 0 ? null : sharedSecret;
+            } catch (InvalidKeyException e) { //rejected by the provider
+                return null;
+            } catch (GeneralSecurityException e) {
+                LogHub.logFatalCrash("Key agreement failure", e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return true if the running JVM supports X25519.
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Generate a new ephemeral key pair.
+     * @throws IllegalStateException if X25519 is not available.
+     */
+    public static KeyPair generateKeyPair() {
+        if (!AVAILABLE)
+            throw new IllegalStateException("X25519 is unavailable on this JVM.");
+        try {
+            java.security.KeyPair keyPair = KeyPairGenerator.getInstance(ALGORITHM).generateKeyPair();
+            byte[] encoded = keyPair.getPublic().getEncoded();
+            return new KeyPair(
+                    Arrays.copyOfRange(encoded, encoded.length - PUBLIC_VALUE_LENGTH, encoded.length),
+                    keyPair.getPrivate()
+            );
+        } catch (GeneralSecurityException e) {
+            LogHub.logFatalCrash("Key generation failure", e);
+            return null;
+        }
+    }
+
+    /**
+     * Derive a link's secret key, as long as the keys generated for RSA handshakes, from the secret agreed during its
+     * handshake - bound to both sides' public values, so neither can be substituted.
+     * @param keySalt the salt chosen by the server
+     */
+    public static byte[] deriveSecretKey(
+            byte[] sharedSecret,
+            byte[] clientPublicValue,
+            byte[] serverPublicValue,
+            byte[] keySalt
+    ) {
+        byte[] info = Arrays.copyOf(SECRET_KEY_INFO, SECRET_KEY_INFO.length + 2 * PUBLIC_VALUE_LENGTH);
+        System.arraycopy(clientPublicValue, 0, info, SECRET_KEY_INFO.length, PUBLIC_VALUE_LENGTH);
+        System.arraycopy(serverPublicValue, 0, info, SECRET_KEY_INFO.length + PUBLIC_VALUE_LENGTH, PUBLIC_VALUE_LENGTH);
+        return HKDF.derive(sharedSecret, keySalt, info, ByteCipher.KEY_SIZE);
+    }
+
+    private static PublicKey toPublicKey(byte[] publicValue) throws GeneralSecurityException {
+        byte[] encoded = Arrays.copyOf(X509_PREFIX, X509_PREFIX.length + PUBLIC_VALUE_LENGTH);
+        System.arraycopy(publicValue, 0, encoded, X509_PREFIX.length, PUBLIC_VALUE_LENGTH);
+        return KeyFactory.getInstance(ALGORITHM).generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    private static boolean checkAvailable() {
+        try {
+            KeyPairGenerator.getInstance(ALGORITHM);
+            KeyAgreement.getInstance(ALGORITHM);
+            KeyFactory.getInstance(ALGORITHM);
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package link;
+
+import link.instructions.AcknowledgeInstructionDatum;
+import link.instructions.InstructionDatum;
+import link.instructions.PackObserver;
+import link.instructions.PackSettings;
+import main.LogHub;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Numbers the instructions transmitted on a remote link, and retransmits those its peer reports lost, so that
+ * instructions dropped for failing their check or authentication are recovered without the implementation's help.
+ * Each instruction is given the next sequence index in its header, and begins with an acknowledgement block - its
+ * sequence index again, protected by the link's check or cipher, followed by the next sequence index this side expects
+ * to receive and a bitmap of the instructions after that which it has already received. Every instruction therefore
+ * acknowledges receipt on behalf of its sender, and a link with nothing else to transmit acknowledges whatever it has
+ * received at the end of each batch with an AcknowledgeInstructionDatum.
+ * Up to the window size of instructions may be unacknowledged at once - transmitting threads wait for acknowledgement
+ * beyond that, except for the link's receiving thread, which must never wait on its own acknowledgements. The
+ * serialized data of each unacknowledged instruction is retained, and framed afresh for retransmission once several
+ * instructions sent after it have been received without it, or along with everything else unacknowledged if the
+ * oldest is not acknowledged within the retransmission timeout. The receiver holds instructions which arrive early,
+ * and hands everything to its DataHandler in sequence.
+ * The window size is negotiated alongside the cipher suite during the handshake, and acknowledgement applies once
+ * encryption is established. It is disabled by default - each side must set a preferred size for it to be used.
+ */
+public final class AcknowledgementWindow {
+
+    public static final int MAX_SIZE = 0x1000;
+
+    //sequence index, next expected sequence index, selective acknowledgement bitmap
+    public static final int BLOCK_LENGTH = Integer.BYTES + Integer.BYTES + Long.BYTES;
+
+    //the sequence index carried by instructions which are not numbered, and never retransmitted
+    static final int UNSEQUENCED = -1;
+
+    enum Reception {
+        NEXT, //deliver now
+        EARLY, //held until the instructions before it arrive
+        DISCARDED //already received, or too far ahead to hold
+    }
+
+    private static final int SEQUENCE_MASK = InstructionDatum.MAX_SEQUENCE_INDEX;
+
+    //an instruction is presumed lost once this many instructions sent after it have been received, which tolerates the
+    //slight reordering of instructions packed concurrently by different threads
+    private static final int REORDERING_THRESHOLD = 3;
+
+    private static final long INITIAL_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long MIN_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MAX_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static volatile int preferredSize = 0;
+
+    private static final int RETRANSMITTER_THREADS = 2;
+
+    //retransmission timeouts are timed by a single shared thread, which hands the retransmissions themselves to a small
+    //fixed pool, since they may block on the buffer pool - each window has at most one task queued or running on it
+    private static final ScheduledExecutorService RETRANSMISSION_TIMER = Executors.newSingleThreadScheduledExecutor(
+            runnable -> daemon(runnable, "AcknowledgementWindow-Timer")
+    );
+    private static final ExecutorService RETRANSMITTER = Executors.newFixedThreadPool(
+            RETRANSMITTER_THREADS,
+            runnable -> daemon(runnable, "AcknowledgementWindow-Retransmitter")
+    );
+
+    private final DataLink dataLink;
+    private final int size;
+
+    //all state is guarded by this window's monitor
+
+    //transmission - instructions are numbered from zero, and the index in each header is the low bits of the number
+    private long nextSequence = 0;
+    private final TreeMap<Long, UnacknowledgedInstruction> unacknowledged = new TreeMap<>();
+    private long smoothedRoundTripNanos = -1;
+    private long roundTripVariationNanos = 0;
+    private long timeoutNanos = INITIAL_TIMEOUT_NANOS;
+    private boolean timerScheduled = false;
+    private boolean closed = false;
+    //instructions awaiting the retransmitter, and whether a task is queued or running to transmit them
+    private final ArrayDeque<UnacknowledgedInstruction> retransmissionQueue = new ArrayDeque<>();
+    private boolean retransmitterScheduled = false;
+
+    //reception - early instructions are held in the slot for their sequence number
+    private long expectedSequence = 0;
+    private final byte[][] held;
+    private final int heldMask;
+    private boolean acknowledgementPending = false;
+
+    AcknowledgementWindow(DataLink dataLink, int size) {
+        this.dataLink = dataLink;
+        this.size = size;
+        int heldCapacity = Integer.highestOneBit(Math.max(size * 2, Long.SIZE) - 1) << 1;
+        held = new byte[heldCapacity][];
+        heldMask = heldCapacity - 1;
+    }
+
+    /**
+     * Set the window size this process will offer during the handshake, or zero to disable acknowledgement.
+     */
+    public static void setPreferredSize(int size) {
+        if (size < 0 || size > MAX_SIZE)
+            throw new IllegalArgumentException("Invalid acknowledgement window size: " + size);
+        preferredSize = size;
+    }
+
+    public static int getPreferredSize() {
+        return preferredSize;
+    }
+
+    /**
+     * Select the window size to use with a peer.
+     * @return the smaller of our preferred size and the peer's, or zero if either side has disabled acknowledgement.
+     */
+    public static int negotiate(int offeredSize) {
+        int size = preferredSize;
+        return size == 0 || offeredSize <= 0 ? 0 : Math.min(size, offeredSize);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of transmitted instructions not yet acknowledged by the peer.
+     */
+    public synchronized int getUnacknowledgedCount() {
+        return unacknowledged.size();
+    }
+
+    /**
+     * Pack an instruction with the next sequence index, behind an acknowledgement block, and retain its serialized data
+     * until it is acknowledged. AcknowledgeInstructionData are not numbered, and not retained.
+     * Unless called from the link's receiving thread, or a HandlerDispatcher thread handling on its behalf, this waits
+     * while the window is full.
+     */
+    ByteBuffer pack(InstructionDatum instructionDatum, IntFunction<ByteBuffer> allocator) {
+        if (instructionDatum instanceof AcknowledgeInstructionDatum)
+            return instructionDatum.pack(0, dataLink.packSettings, acknowledgement(UNSEQUENCED), allocator);
+        long sequence;
+        byte[] acknowledgement;
+        synchronized (this) {
+            if (!dataLink.isReceiveThread() && !HandlerDispatcher.isDispatchThread())
+                awaitCapacity();
+            sequence = nextSequence++;
+            acknowledgement = acknowledgement(sequence);
+        }
+        PackSettings packSettings = dataLink.packSettings;
+        PackObserver packObserver = packSettings.getPackObserver();
+        long startNanos = packObserver == null ? 0 : System.nanoTime();
+        byte[] data;
+        ByteBuffer packet;
+        try {
+            data = instructionDatum.serialize(acknowledgement, packSettings.getPayloadCompression());
+            long serializedNanos = packObserver == null ? 0 : System.nanoTime();
+            packet = frame(data, sequence, packSettings, allocator);
+            if (packObserver != null)
+                packObserver.packed(serializedNanos - startNanos, System.nanoTime() - serializedNanos);
+        } catch (RuntimeException e) {
+            //the sequence number must not be skipped, or the peer would wait for it forever - fill it instead
+            byte[] filler =
+                    new AcknowledgeInstructionDatum().serialize(acknowledgement, packSettings.getPayloadCompression());
+            synchronized (this) {
+                UnacknowledgedInstruction instruction = retain(sequence, filler, 0);
+                if (instruction != null)
+                    queueRetransmission(instruction);
+            }
+            throw e;
+        }
+        //the packet is yet to be queued, so this is the least the link will have transmitted once it is
+        retain(sequence, data, dataLink.METRICS.getBytesTransmitted() + packet.remaining());
+        return packet;
+    }
+
+    /**
+     * Frame retained data afresh, under the link's current settings, for retransmission - the frame as first
+     * transmitted cannot be copied, since an authenticated cipher's nonce must never be received twice.
+     */
+    private byte[] frame(byte[] data, long sequence) {
+        return frame(data, sequence, dataLink.packSettings, ByteBuffer::allocate).array();
+    }
+
+    private static ByteBuffer frame(
+            byte[] data,
+            long sequence,
+            PackSettings packSettings,
+            IntFunction<ByteBuffer> allocator
+    ) {
+        return InstructionDatum.frame(data, (int) (sequence & SEQUENCE_MASK), packSettings, allocator);
+    }
+
+    private void awaitCapacity() {
+        try {
+            while (unacknowledged.size() >= size && !closed)
+                wait();
+        } catch (InterruptedException ie) { //transmit regardless
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param queuedMark see UnacknowledgedInstruction.queuedMark
+     * @return the retained instruction, or null if this window has closed.
+     */
+    private synchronized UnacknowledgedInstruction retain(long sequence, byte[] data, long queuedMark) {
+        if (closed) return null;
+        UnacknowledgedInstruction instruction = new UnacknowledgedInstruction(sequence, data, System.nanoTime());
+        instruction.queuedMark = queuedMark;
+        unacknowledged.put(sequence, instruction);
+        scheduleTimer();
+        return instruction;
+    }
+
+    /**
+     * Build the acknowledgement block for an instruction, which reports everything received so far.
+     */
+    private synchronized byte[] acknowledgement(long sequence) {
+        long selective = 0L;
+        for (int i = 0; i < Long.SIZE; ++i)
+            if (held[(int) (expectedSequence + 1 + i) & heldMask] != null)
+                selective |= 1L << i;
+        acknowledgementPending = false;
+        return ByteBuffer.allocate(BLOCK_LENGTH)
+                .putInt(sequence == UNSEQUENCED ? UNSEQUENCED : (int) (sequence & SEQUENCE_MASK))
+                .putInt((int) (expectedSequence & SEQUENCE_MASK))
+                .putLong(selective)
+                .array();
+    }
+
+    /**
+     * Process the acknowledgement block which begins a received instruction, discarding whatever it acknowledges and
+     * retransmitting whatever it shows to be lost.
+     * @return the sequence index of the instruction, or UNSEQUENCED.
+     */
+    int acknowledged(byte[] data, int offset) {
+        ByteBuffer block = ByteBuffer.wrap(data, offset, BLOCK_LENGTH);
+        int sequenceIndex = block.getInt();
+        int expectedIndex = block.getInt();
+        long selective = block.getLong();
+        synchronized (this) {
+            if (closed) return sequenceIndex;
+            long now = System.nanoTime();
+            //the peer cannot expect anything we have not yet numbered, so its expectation lies at or behind ours
+            long acknowledgedTo =
+                    nextSequence - (((int) (nextSequence & SEQUENCE_MASK) - expectedIndex) & SEQUENCE_MASK);
+            boolean progress = false;
+            while (!unacknowledged.isEmpty() && unacknowledged.firstKey() < acknowledgedTo) {
+                UnacknowledgedInstruction instruction = unacknowledged.pollFirstEntry().getValue();
+                if (!instruction.retransmitted)
+                    sampleRoundTrip(now - instruction.sentNanos);
+                progress = true;
+            }
+            if (selective != 0L) {
+                long highestReceived = -1;
+                for (int i = 0; i < Long.SIZE; ++i) {
+                    if ((selective & (1L << i)) == 0) continue;
+                    long sequence = acknowledgedTo + 1 + i;
+                    UnacknowledgedInstruction instruction = unacknowledged.get(sequence);
+                    if (instruction != null)
+                        instruction.received = true;
+                    highestReceived = sequence;
+                }
+                int receivedAfter = 0;
+                int retransmissionCount = 0;
+                long dequeuedBytes = dataLink.getDequeuedTransmitBytes();
+                for (Map.Entry<Long, UnacknowledgedInstruction> entry : unacknowledged.descendingMap().entrySet()) {
+                    UnacknowledgedInstruction instruction = entry.getValue();
+                    if (instruction.received) {
+                        ++receivedAfter;
+                    } else if (receivedAfter >= REORDERING_THRESHOLD && highestReceived >= instruction.retransmitMark) {
+                        //lost - and if it was retransmitted before, something sent since has arrived without it
+                        if (instruction.isQueued(dequeuedBytes)) continue; //not lost, merely not yet written
+                        instruction.retransmit(now, nextSequence);
+                        queueRetransmission(instruction);
+                        ++retransmissionCount;
+                    }
+                }
+                if (retransmissionCount > 0)
+                    dataLink.METRICS.framesRetransmitted(retransmissionCount);
+            }
+            if (progress)
+                notifyAll();
+        }
+        return sequenceIndex;
+    }
+
+    /**
+     * Record receipt of a numbered instruction. Early instructions are copied and held.
+     */
+    synchronized Reception receive(int sequenceIndex, byte[] data, int offset, int length) {
+        acknowledgementPending = true;
+        int distance = (sequenceIndex - (int) (expectedSequence & SEQUENCE_MASK)) & SEQUENCE_MASK;
+        if (distance == 0) {
+            ++expectedSequence;
+            return Reception.NEXT;
+        }
+        if (distance > heldMask) //behind us, or too far ahead
+            return Reception.DISCARDED;
+        int slot = (int) (expectedSequence + distance) & heldMask;
+        if (held[slot] != null)
+            return Reception.DISCARDED;
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        held[slot] = copy;
+        return Reception.EARLY;
+    }
+
+    /**
+     * @return the held instruction which is now next in sequence, or null if it has not yet arrived.
+     */
+    synchronized byte[] takeHeld() {
+        int slot = (int) expectedSequence & heldMask;
+        byte[] data = held[slot];
+        if (data != null) {
+            held[slot] = null;
+            ++expectedSequence;
+        }
+        return data;
+    }
+
+    /**
+     * @return true if instructions have been received since this side last transmitted an acknowledgement.
+     */
+    synchronized boolean isAcknowledgementPending() {
+        return acknowledgementPending;
+    }
+
+    /**
+     * Discard all retained and held instructions, and release any threads waiting for acknowledgement.
+     */
+    synchronized void close() {
+        closed = true;
+        unacknowledged.clear();
+        for (int i = 0; i < held.length; ++i)
+            held[i] = null;
+        retransmissionQueue.clear();
+        notifyAll();
+    }
+
+    /**
+     * Update the retransmission timeout from the time taken to acknowledge an instruction, as TCP does.
+     */
+    private void sampleRoundTrip(long roundTripNanos) {
+        if (smoothedRoundTripNanos < 0) {
+            smoothedRoundTripNanos = roundTripNanos;
+            roundTripVariationNanos = roundTripNanos / 2;
+        } else {
+            long deviationNanos = Math.abs(smoothedRoundTripNanos - roundTripNanos);
+            roundTripVariationNanos += (deviationNanos - roundTripVariationNanos) / 4;
+            smoothedRoundTripNanos += (roundTripNanos - smoothedRoundTripNanos) / 8;
+        }
+        timeoutNanos = Math.max(
+                MIN_TIMEOUT_NANOS,
+                Math.min(MAX_TIMEOUT_NANOS, smoothedRoundTripNanos + 4 * roundTripVariationNanos)
+        );
+    }
+
+    private void scheduleTimer() {
+        scheduleTimer(0L);
+    }
+
+    private void scheduleTimer(long minimumDelayNanos) {
+        if (timerScheduled || closed || unacknowledged.isEmpty()) return;
+        timerScheduled = true;
+        long elapsedNanos = System.nanoTime() - unacknowledged.firstEntry().getValue().sentNanos;
+        long delayNanos = Math.max(minimumDelayNanos, timeoutNanos - elapsedNanos);
+        RETRANSMISSION_TIMER.schedule(this::timedOut, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * If the oldest unacknowledged instruction has waited for the timeout, retransmit everything the peer has not
+     * reported receiving, and back off the timeout in case the peer is merely slow.
+     * Retransmitting everything, rather than the oldest instruction alone, also pushes the peer's decoder past a header
+     * whose size was corrupted upwards, which would otherwise wait for data the window does not permit us to send.
+     * Instructions whose last copy is still queued by the link are not retransmitted, since the peer cannot yet have
+     * received it, and nothing is while the link is unwritable - a stalled peer would only have its backlog grow.
+     */
+    private synchronized void timedOut() {
+        timerScheduled = false;
+        if (closed || unacknowledged.isEmpty()) return;
+        long now = System.nanoTime();
+        if (now - unacknowledged.firstEntry().getValue().sentNanos < timeoutNanos) {
+            scheduleTimer();
+            return;
+        }
+        if (dataLink.isWritable()) {
+            int retransmissionCount = 0;
+            long dequeuedBytes = dataLink.getDequeuedTransmitBytes();
+            for (UnacknowledgedInstruction instruction : unacknowledged.values()) {
+                if (instruction.received || instruction.isQueued(dequeuedBytes)) continue;
+                instruction.retransmit(now, nextSequence);
+                queueRetransmission(instruction);
+                ++retransmissionCount;
+            }
+            if (retransmissionCount > 0) {
+                dataLink.METRICS.framesRetransmitted(retransmissionCount);
+                timeoutNanos = Math.min(MAX_TIMEOUT_NANOS, timeoutNanos * 2);
+            }
+        }
+        //whatever was left waiting has waited long enough already, so check again after another timeout at the earliest
+        scheduleTimer(timeoutNanos);
+    }
+
+    /**
+     * Hand an instruction to the retransmitter, scheduling a task for this window unless one is already queued or
+     * running. Must be called while holding this window's monitor.
+     */
+    private void queueRetransmission(UnacknowledgedInstruction instruction) {
+        instruction.awaitingRetransmission = true;
+        retransmissionQueue.add(instruction);
+        if (!retransmitterScheduled) {
+            retransmitterScheduled = true;
+            RETRANSMITTER.execute(this::transmitQueued);
+        }
+    }
+
+    /**
+     * Frame and transmit every instruction queued for retransmission, until none remain.
+     */
+    private void transmitQueued() {
+        for (;;) {
+            UnacknowledgedInstruction instruction;
+            synchronized (this) {
+                instruction = retransmissionQueue.poll();
+                if (instruction == null) {
+                    retransmitterScheduled = false;
+                    return;
+                }
+            }
+            long queuedMark = 0;
+            try {
+                dataLink.transmit(frame(instruction.data, instruction.sequence));
+                queuedMark = dataLink.METRICS.getBytesTransmitted();
+            } catch (RuntimeException e) { //the timeout will try again
+                LogHub.logNonFatalError("Retransmission failed.", e);
+            }
+            synchronized (this) {
+                instruction.awaitingRetransmission = false;
+                instruction.queuedMark = queuedMark;
+            }
+        }
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static final class UnacknowledgedInstruction {
+        private final long sequence;
+        //the serialized data, which is framed afresh for each retransmission
+        private final byte[] data;
+        //the link's transmitted byte count once the last copy of this was queued - it remains queued until the link
+        //has dequeued that many bytes
+        private long queuedMark;
+        //set while a copy waits for the retransmitter
+        private boolean awaitingRetransmission = false;
+        private long sentNanos;
+        private boolean received = false;
+        private boolean retransmitted = false;
+        //the sequence number transmitted next after this was last retransmitted
+        private long retransmitMark = 0;
+
+        UnacknowledgedInstruction(long sequence, byte[] data, long sentNanos) {
+            this.sequence = sequence;
+            this.data = data;
+            this.sentNanos = sentNanos;
+        }
+
+        /**
+         * @return true if a copy of this has yet to be written by the link, given the bytes it has dequeued.
+         */
+        boolean isQueued(long dequeuedBytes) {
+            return awaitingRetransmission || dequeuedBytes < queuedMark;
+        }
+
+        void retransmit(long now, long nextSequence) {
+            sentNanos = now;
+            retransmitted = true;
+            retransmitMark = nextSequence;
+        }
+    }
+}
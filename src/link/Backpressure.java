@@ -0,0 +1,157 @@
+package link;
+
+import link.instructions.InstructionDatum;
+
+/**
+ * Bounds what may be queued for transmission on a single DataLink while its peer is not keeping up.
+ * The link accounts for the bytes it has transmitted but not yet written. It becomes unwritable once these exceed its
+ * high watermark, and writable again once they fall to its low watermark - its DataHandler is notified of each change,
+ * and its SlowConsumerPolicy determines what happens to application instructions transmitted meanwhile. Transmitters
+ * which the BLOCK policy cannot make wait may queue up to the hard limit, beyond which the link is disconnected.
+ * What the link queues, and whether the calling thread may wait, is left to the link - see
+ * DataLink.getPendingTransmitBytes(), isQueueFull(), shed() and mayBlock().
+ */
+final class Backpressure {
+
+    private final DataLink dataLink;
+
+    private volatile long highWatermark = DataLink.DEFAULT_HIGH_WATERMARK;
+    private volatile long lowWatermark = DataLink.DEFAULT_LOW_WATERMARK;
+    private volatile long hardLimit = DataLink.DEFAULT_HARD_LIMIT;
+    private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.BLOCK;
+
+    //changes of writability are made while holding this, and transmitters waiting for writability wait on it
+    private final Object writabilityLock = new Object();
+    private volatile boolean writable = true;
+    //set once the link closes, releasing any transmitters waiting for writability
+    private volatile boolean closed = false;
+
+    Backpressure(DataLink dataLink) {
+        this.dataLink = dataLink;
+    }
+
+    void setWatermarks(long lowWatermark, long highWatermark) {
+        if (lowWatermark < 0 || highWatermark < lowWatermark)
+            throw new IllegalArgumentException("Invalid watermarks: " + lowWatermark + ", " + highWatermark);
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        updateWritability();
+    }
+
+    long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    long getHighWatermark() {
+        return highWatermark;
+    }
+
+    void setHardLimit(long hardLimit) {
+        if (hardLimit < 0)
+            throw new IllegalArgumentException("Invalid hard limit: " + hardLimit);
+        this.hardLimit = hardLimit;
+    }
+
+    long getHardLimit() {
+        return hardLimit;
+    }
+
+    void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        if (slowConsumerPolicy != SlowConsumerPolicy.BLOCK) //release any transmitters already waiting
+            synchronized (writabilityLock) {
+                writabilityLock.notifyAll();
+            }
+    }
+
+    SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * Apply the slow consumer policy to an instruction about to be transmitted, if the link is unwritable.
+     * @return true if the instruction should be transmitted, false if it should be discarded.
+     * @throws SlowConsumerException if the instruction is refused by the FAIL_FAST policy.
+     */
+    boolean admit(InstructionDatum instructionDatum) {
+        if ((writable && !dataLink.isQueueFull()) || DataHandler.isInternal(instructionDatum))
+            return true;
+        switch (slowConsumerPolicy) {
+            case BLOCK:
+                if (dataLink.mayBlock()) {
+                    awaitWritable();
+                    return true;
+                }
+                //this thread cannot wait, so it queues regardless - unless the peer has fallen too far behind for that
+                if (dataLink.getPendingTransmitBytes() <= Math.max(hardLimit, highWatermark))
+                    return true;
+                if (!closed)
+                    dataLink.disconnect();
+                return false;
+            case DROP_OLDEST:
+                int shedCount = dataLink.shed(lowWatermark);
+                updateWritability();
+                if (shedCount > 0) {
+                    dataLink.METRICS.framesShed(shedCount);
+                    return true;
+                }
+                dataLink.METRICS.framesShed(1); //nothing could be withdrawn - discard this instead
+                return false;
+            case FAIL_FAST:
+                throw new SlowConsumerException(dataLink.getPendingTransmitBytes(), highWatermark);
+            default: //DISCONNECT
+                if (!closed)
+                    dataLink.disconnect();
+                return false;
+        }
+    }
+
+    /**
+     * Compare the bytes transmitted but not yet written against the watermarks, and notify the DataHandler if the
+     * link's writability changes.
+     */
+    void updateWritability() {
+        for (;;) {
+            boolean currentlyWritable = writable;
+            long pendingBytes = dataLink.getPendingTransmitBytes();
+            if (currentlyWritable ? pendingBytes <= highWatermark : pendingBytes > lowWatermark) return;
+            synchronized (writabilityLock) {
+                if (writable != currentlyWritable) continue; //changed by another thread meanwhile
+                writable = !currentlyWritable;
+                if (writable)
+                    writabilityLock.notifyAll();
+            }
+            dataLink.DATA_HANDLER.writabilityChanged(dataLink, !currentlyWritable);
+            //check again - the pending bytes may have crossed back since we read them, and a thread which moved them
+            //may have read the old writability, leaving the change for us to notice
+        }
+    }
+
+    /**
+     * Release any transmitters waiting for writability - the link has closed.
+     */
+    void close() {
+        closed = true;
+        synchronized (writabilityLock) {
+            writabilityLock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the link is writable, it closes, or its policy changes.
+     */
+    private void awaitWritable() {
+        synchronized (writabilityLock) {
+            try {
+                while (!writable && !closed && slowConsumerPolicy == SlowConsumerPolicy.BLOCK)
+                    writabilityLock.wait();
+            } catch (InterruptedException ie) { //transmit regardless
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
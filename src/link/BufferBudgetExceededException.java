@@ -0,0 +1,16 @@
+package link;
+
+/**
+ * Thrown when a buffer cannot be leased from a BufferPool without exceeding its memory budget.
+ */
+public class BufferBudgetExceededException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    public BufferBudgetExceededException(int requestedBytes, long leasedBytes, long memoryBudget) {
+        super(
+                "Buffer pool budget exceeded: " + requestedBytes + " bytes requested with " + leasedBytes +
+                        " of " + memoryBudget + " bytes already leased."
+        );
+    }
+}
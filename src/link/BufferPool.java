@@ -0,0 +1,253 @@
+package link;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static link.instructions.InstructionDatum.MAX_PACKET_LENGTH;
+
+/**
+ * A process-wide pool of reusable buffers for encoding and decoding instructions.
+ * Buffers are allocated in size classes - powers of two from 4KB up to 1MB, plus a final class large enough for any
+ * packet - and are returned to the pool for reuse when released.
+ * The total size of all buffers currently leased from the pool is capped by a memory budget. When the budget would be
+ * exceeded, acquire() either blocks until enough buffers are released or rejects the request, according to the pool's
+ * ExhaustionPolicy.
+ * All leasing takes place through an Account, which tracks the bytes held by a single link.
+ */
+public class BufferPool {
+
+    /**
+     * BLOCK - acquire() waits until enough buffers have been released to satisfy the budget, applying backpressure to
+     * whichever link is asking for memory.
+     * REJECT - acquire() immediately throws BufferBudgetExceededException.
+     */
+    public enum ExhaustionPolicy {
+        BLOCK,
+        REJECT
+    }
+
+    private static final int MIN_CLASS_SHIFT = 12; //4KB
+    private static final int MAX_CLASS_SHIFT = 20; //1MB
+    private static final int CLASS_COUNT = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 2;
+
+    private static volatile BufferPool defaultPool = new BufferPool(
+            false,
+            Runtime.getRuntime().maxMemory() / 4,
+            Runtime.getRuntime().maxMemory() / 32,
+            ExhaustionPolicy.BLOCK
+    );
+
+    private final boolean direct;
+    private final long memoryBudget;
+    private final long maxRetainedBytes;
+    private final ExhaustionPolicy exhaustionPolicy;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Queue<ByteBuffer>[] freeBuffers = new Queue[CLASS_COUNT];
+
+    private final AtomicLong leasedBytes = new AtomicLong(0);
+    private final AtomicLong retainedBytes = new AtomicLong(0);
+
+    private final ReentrantLock budgetLock = new ReentrantLock();
+    private final Condition budgetAvailable = budgetLock.newCondition();
+    private final AtomicInteger blockedAcquirers = new AtomicInteger(0);
+    private final Queue<Runnable> budgetListeners = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param direct whether to allocate direct rather than heap buffers
+     * @param memoryBudget the maximum number of bytes which may be leased from the pool at any one time
+     * @param maxRetainedBytes the maximum number of bytes the pool keeps in released buffers awaiting reuse
+     * @param exhaustionPolicy how to respond when an acquisition would exceed the memory budget
+     */
+    public BufferPool(boolean direct, long memoryBudget, long maxRetainedBytes, ExhaustionPolicy exhaustionPolicy) {
+        if (memoryBudget < MAX_PACKET_LENGTH)
+            throw new IllegalArgumentException("Memory budget must accommodate at least one packet: " + memoryBudget);
+        this.direct = direct;
+        this.memoryBudget = memoryBudget;
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.exhaustionPolicy = exhaustionPolicy;
+        for (int i = 0; i < CLASS_COUNT; ++i)
+            freeBuffers[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Replace the pool used by DataLinks constructed from now on.
+     */
+    public static void setDefault(BufferPool bufferPool) {
+        defaultPool = bufferPool;
+    }
+
+    public Account newAccount() {
+        return new Account();
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public long getLeasedBytes() {
+        return leasedBytes.get();
+    }
+
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    /**
+     * @return the capacity of buffers in the smallest size class able to hold the specified number of bytes.
+     */
+    public static int classCapacity(int minCapacity) {
+        int classIndex = classIndex(minCapacity);
+        return classIndex == CLASS_COUNT - 1 ? MAX_PACKET_LENGTH : 1 << (classIndex + MIN_CLASS_SHIFT);
+    }
+
+    private static int classIndex(int minCapacity) {
+        if (minCapacity > MAX_PACKET_LENGTH)
+            throw new IllegalArgumentException(
+                    "Buffer size exceeds maximum: " + minCapacity + " > " + MAX_PACKET_LENGTH
+            );
+        if (minCapacity > 1 << MAX_CLASS_SHIFT)
+            return CLASS_COUNT - 1;
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(minCapacity, 1) - 1);
+        return Math.max(shift - MIN_CLASS_SHIFT, 0);
+    }
+
+    /**
+     * Reserve capacity against the memory budget.
+     * @return true if the reservation succeeded.
+     */
+    private boolean tryReserve(int capacity) {
+        long leased;
+        do {
+            leased = leasedBytes.get();
+            if (leased + capacity > memoryBudget)
+                return false;
+        } while (!leasedBytes.compareAndSet(leased, leased + capacity));
+        return true;
+    }
+
+    private void reserve(int capacity) {
+        if (tryReserve(capacity)) return;
+        if (exhaustionPolicy == ExhaustionPolicy.REJECT)
+            throw new BufferBudgetExceededException(capacity, leasedBytes.get(), memoryBudget);
+        blockedAcquirers.incrementAndGet();
+        budgetLock.lock();
+        try {
+            while (!tryReserve(capacity))
+                budgetAvailable.await(100, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BufferBudgetExceededException(capacity, leasedBytes.get(), memoryBudget);
+        } finally {
+            budgetLock.unlock();
+            blockedAcquirers.decrementAndGet();
+        }
+    }
+
+    private ByteBuffer take(int minCapacity) {
+        int classIndex = classIndex(minCapacity);
+        ByteBuffer buffer = freeBuffers[classIndex].poll();
+        if (buffer == null) {
+            int capacity = classCapacity(minCapacity);
+            return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        retainedBytes.addAndGet(-buffer.capacity());
+        buffer.clear();
+        return buffer;
+    }
+
+    private void give(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (retainedBytes.get() + capacity <= maxRetainedBytes) {
+            retainedBytes.addAndGet(capacity);
+            freeBuffers[classIndex(capacity)].add(buffer);
+        }
+        leasedBytes.addAndGet(-capacity);
+        if (blockedAcquirers.get() > 0) {
+            budgetLock.lock();
+            try {
+                budgetAvailable.signalAll();
+            } finally {
+                budgetLock.unlock();
+            }
+        }
+        Runnable budgetListener;
+        while ((budgetListener = budgetListeners.poll()) != null)
+            budgetListener.run();
+    }
+
+    /**
+     * The buffers leased from this pool on behalf of a single link.
+     */
+    public class Account {
+
+        private final AtomicLong accountLeasedBytes = new AtomicLong(0);
+
+        private Account() {}
+
+        /**
+         * Lease a buffer with at least the specified capacity, positioned at zero with its limit at its capacity.
+         * If the memory budget is exhausted, this blocks or throws BufferBudgetExceededException according to the
+         * pool's ExhaustionPolicy.
+         */
+        public ByteBuffer acquire(int minCapacity) {
+            int capacity = classCapacity(minCapacity);
+            reserve(capacity);
+            accountLeasedBytes.addAndGet(capacity);
+            return take(minCapacity);
+        }
+
+        /**
+         * As acquire(), but never blocks.
+         * @return the buffer, or null if the memory budget is exhausted.
+         */
+        public ByteBuffer tryAcquire(int minCapacity) {
+            int capacity = classCapacity(minCapacity);
+            if (!tryReserve(capacity)) return null;
+            accountLeasedBytes.addAndGet(capacity);
+            return take(minCapacity);
+        }
+
+        /**
+         * Return a buffer obtained from this account to the pool. The buffer must not be used afterwards.
+         */
+        public void release(ByteBuffer buffer) {
+            accountLeasedBytes.addAndGet(-buffer.capacity());
+            give(buffer);
+        }
+
+        /**
+         * Run the specified task once, as soon as the budget has room for a buffer of the specified capacity - for
+         * callers which cannot block while waiting on the memory budget. The task is run either immediately or by
+         * whichever thread next releases a buffer, and should do no more than schedule a retry.
+         */
+        public void whenAvailable(int minCapacity, Runnable task) {
+            budgetListeners.add(task);
+            //if enough was released before we got here, nobody else will run the task
+            if (leasedBytes.get() + classCapacity(minCapacity) <= memoryBudget && budgetListeners.remove(task))
+                task.run();
+        }
+
+        public long getLeasedBytes() {
+            return accountLeasedBytes.get();
+        }
+
+        public BufferPool getPool() {
+            return BufferPool.this;
+        }
+    }
+}
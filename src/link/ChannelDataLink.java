@@ -0,0 +1,314 @@
+package link;
+
+import link.instructions.HandshakeInstructionDatum;
+import link.instructions.InstructionDatum;
+import link.instructions.PackSettings;
+import main.LogHub;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The non-blocking remote version of DataLink.
+ * Rather than dedicating a thread to each link, a ChannelDataLink is serviced by a SelectorLoop shared with many other
+ * links. It reads whatever data is available each time its channel becomes readable, and retains any partial
+ * instruction until the remainder arrives.
+ * ChannelDataLinks never have a thread of their own - start() registers the link with its SelectorLoop instead.
+ */
+public class ChannelDataLink extends DataLink {
+
+    private final SocketChannel channel;
+    private final SelectorLoop selectorLoop;
+
+    private SelectionKey selectionKey = null;
+    //interest in reading is suspended while the buffer pool cannot provide memory for this link, or while its
+    //HandlerDispatcher has no capacity for the instructions it receives
+    private boolean readSuspended = false;
+    private boolean dispatchSuspended = false;
+    private boolean writePending = false;
+
+    private final FrameDecoder frameDecoder = new FrameDecoder(BUFFER_ACCOUNT, METRICS);
+
+    private final OutboundPipeline outboundPipeline;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    public ChannelDataLink(DataHandler dataHandler, SocketChannel channel, SelectorLoop selectorLoop)
+            throws IOException {
+        super(dataHandler);
+        this.channel = channel;
+        this.selectorLoop = selectorLoop;
+        this.channel.configureBlocking(false);
+        outboundPipeline = new OutboundPipeline(
+                channel,
+                BUFFER_ACCOUNT,
+                FlushPolicy.IMMEDIATE,
+                selectorLoop,
+                new OutboundPipeline.WriteListener() {
+                    @Override
+                    public void writeStalled() {
+                        writePending = true;
+                        updateInterest();
+                    }
+
+                    @Override
+                    public void writeFailed(IOException ioe) {
+                        closed();
+                    }
+
+                    @Override
+                    public void written() {
+                        updateWritability();
+                    }
+                }
+        );
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Set the policy determining how long transmitted packets may wait to be written alongside others.
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        outboundPipeline.setFlushPolicy(flushPolicy);
+    }
+
+    /**
+     * Write all transmitted packets without further delay, regardless of the flush policy.
+     */
+    public void flush() {
+        outboundPipeline.flush();
+    }
+
+    @Override
+    boolean isReceiveThread() {
+        return Thread.currentThread() == selectorLoop;
+    }
+
+    @Override
+    boolean sharesReceiveThread() {
+        return true;
+    }
+
+    /**
+     * Register with the SelectorLoop in place of starting a new thread.
+     */
+    @Override
+    public void start() {
+        selectorLoop.register(this);
+    }
+
+    @Override
+    public void terminate() {
+        super.terminate();
+        selectorLoop.execute(this::closed);
+    }
+
+    /**
+     * Called by the SelectorLoop once this link's channel has been registered.
+     */
+    void registered(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+        updateInterest();
+    }
+
+    /**
+     * Called by the SelectorLoop whenever the channel is readable.
+     * Read everything currently available, then derive as many complete instructions as possible from it - beginning
+     * with any left over when dispatching was last suspended.
+     */
+    @Override
+    protected void receive() {
+        try {
+            int bytesRead = 0;
+            do {
+                while (!dispatchSuspended && frameDecoder.nextFrame())
+                    handleInstruction(
+                            frameDecoder.instruction(),
+                            frameDecoder.sequenceIndex(),
+                            frameDecoder.checkValue()
+                    );
+            } while (!dispatchSuspended && (bytesRead = frameDecoder.readFrom(channel)) > 0);
+            acknowledgeReceived();
+            if (bytesRead < 0)
+                closed();
+            else if (!dispatchSuspended && frameDecoder.isStarved())
+                suspendReading();
+            else
+                frameDecoder.trim();
+        } catch (IOException ioe) {
+            closed();
+        } catch (BufferBudgetExceededException bbee) { //drop this link rather than exceed the memory budget
+            LogHub.logNonFatalError("Closing link for lack of buffer memory.", bbee);
+            closed();
+        } catch (Exception e) {
+            LogHub.logFatalCrash("Exception in ChannelDataLink.", e);
+        }
+    }
+
+    /**
+     * As with RemoteDataLink, unencrypted transmission is only permitted to establish end-to-end encryption.
+     */
+    @Override
+    public void transmit(InstructionDatum instructionDatum) {
+        if (instructionDatum instanceof HandshakeInstructionDatum)
+            transmit(instructionDatum.pack(0, PackSettings.ORIGINAL, this::acquire), false);
+        else if (encrypted) {
+            if (admit(instructionDatum))
+                transmit(packEncrypted(instructionDatum, this::acquire), !DataHandler.isInternal(instructionDatum));
+        }
+        else
+            throw new IllegalStateException("Attempted to transmit remotely without establishing end-to-end encryption.");
+    }
+
+    /**
+     * Transmission may be requested from any thread - packets are queued, and written by the SelectorLoop according to
+     * the flush policy, as the channel permits.
+     */
+    @Override
+    protected void transmit(byte[] data) {
+        ByteBuffer packet = acquire(data.length);
+        packet.put(data);
+        packet.flip();
+        transmit(packet, false);
+    }
+
+    /**
+     * Queue a packet leased from the buffer pool, which is returned to the pool once written.
+     * @param sheddable true if the packet holds an application instruction, which the slow consumer policy may shed.
+     */
+    private void transmit(ByteBuffer packet, boolean sheddable) {
+        METRICS.frameTransmitted(packet.remaining());
+        outboundPipeline.enqueue(packet, sheddable);
+        updateWritability();
+    }
+
+    @Override
+    long getPendingTransmitBytes() {
+        return outboundPipeline.getPendingBytes();
+    }
+
+    @Override
+    int shed(long targetBytes) {
+        return outboundPipeline.shed(targetBytes);
+    }
+
+    /**
+     * The SelectorLoop writes for this link, so must never wait for it to become writable.
+     */
+    @Override
+    boolean mayBlock() {
+        return Thread.currentThread() != selectorLoop && super.mayBlock();
+    }
+
+    /**
+     * The channel must be closed by the SelectorLoop, which notifies the DataHandler of the lost connection.
+     */
+    @Override
+    void disconnect() {
+        selectorLoop.execute(this::closed);
+    }
+
+    /**
+     * Handlers must not wait for dispatcher capacity on the SelectorLoop, so stop reading until there is some.
+     * Instructions already read remain in the frame decoder meanwhile.
+     */
+    @Override
+    boolean suspendForDispatch(HandlerDispatcher handlerDispatcher) {
+        if (!isReceiveThread()) return false;
+        if (!dispatchSuspended) {
+            dispatchSuspended = true;
+            updateInterest();
+            handlerDispatcher.whenAvailable(() -> selectorLoop.execute(this::resumeDispatch));
+        }
+        return true;
+    }
+
+    /**
+     * Lease a buffer for transmission. Other threads may wait on the buffer pool's memory budget, but the SelectorLoop
+     * must never block, so transmissions from handlers running on it are rejected outright when memory is exhausted.
+     */
+    private ByteBuffer acquire(int minCapacity) {
+        if (Thread.currentThread() != selectorLoop)
+            return BUFFER_ACCOUNT.acquire(minCapacity);
+        ByteBuffer buffer = BUFFER_ACCOUNT.tryAcquire(minCapacity);
+        if (buffer == null) {
+            BufferPool bufferPool = BUFFER_ACCOUNT.getPool();
+            throw new BufferBudgetExceededException(
+                    minCapacity,
+                    bufferPool.getLeasedBytes(),
+                    bufferPool.getMemoryBudget()
+            );
+        }
+        return buffer;
+    }
+
+    /**
+     * Called by the SelectorLoop when the channel is writable, after an earlier write stalled.
+     */
+    void writable() {
+        if (!writePending) return;
+        writePending = !outboundPipeline.flushNow();
+        updateInterest();
+    }
+
+    /**
+     * Stop reading until the buffer pool can provide enough memory to continue. Data accumulates in the socket's
+     * receive buffer meanwhile, and TCP flow control pushes back on the sender.
+     */
+    private void suspendReading() {
+        readSuspended = true;
+        updateInterest();
+        BUFFER_ACCOUNT.whenAvailable(frameDecoder.requiredCapacity(), () -> selectorLoop.execute(this::resumeReading));
+    }
+
+    private void resumeReading() {
+        readSuspended = false;
+        updateInterest();
+        if (!dispatchSuspended && !closed.get())
+            receive();
+    }
+
+    private void resumeDispatch() {
+        dispatchSuspended = false;
+        updateInterest();
+        if (!readSuspended && !closed.get())
+            receive();
+    }
+
+    private void updateInterest() {
+        if (selectionKey == null || !selectionKey.isValid()) return;
+        selectionKey.interestOps(
+                (readSuspended || dispatchSuspended ? 0 : SelectionKey.OP_READ)
+                        | (writePending ? SelectionKey.OP_WRITE : 0)
+        );
+    }
+
+    private void close() {
+        if (selectionKey != null)
+            selectionKey.cancel();
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            LogHub.logNonFatalError("Failed to close channel.", ioe);
+        }
+    }
+
+    /**
+     * Close the channel and notify the DataHandler that the connection has been lost - at most once per link.
+     */
+    void closed() {
+        if (!closed.compareAndSet(false, true)) return;
+        close();
+        outboundPipeline.close();
+        frameDecoder.release();
+        closeTransfers();
+        if (!terminated)
+            DATA_HANDLER.connectionLost(this);
+    }
+}
@@ -1,31 +1,172 @@
 package link;
 
 import crypto.ByteCipher;
+import crypto.CipherSuite;
 import crypto.HexCipher;
+import crypto.LinkCipher;
 import crypto.RSA;
+import crypto.SessionTickets;
+import crypto.X25519;
 import link.instructions.*;
+import main.LogHub;
 
 import java.io.StreamCorruptedException;
 import java.math.BigInteger;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 
 /**
  * DataHandler is designed to unpack and handle transmitted data in an implementation specific fashion.
- * Implementations must override the protected version of handle and provide instructions for all instruction codes
- * greater than or equal to the reserve code count.
+ * Implementations register a handler for each InstructionDatum class they expect via register(), and may override
+ * the protected version of handle for any instruction whose class, and every superclass, has none.
+ * The instructions used internally - the handshake, streams and acknowledgements - are handled through the same table,
+ * and their classes cannot be registered by implementations.
+ * By default instructions are deserialized and handled on the thread on which their link receives - a
+ * HandlerDispatcher may be set to handle them on its own threads instead.
  */
 public abstract class DataHandler {
 
+    //resolved for classes with no handler, whose instructions are passed to the protected version of handle
+    private static final BiConsumer<InstructionDatum, DataLink> UNREGISTERED = (instructionDatum, responseLink) -> {};
+
+    //handlers registered for exactly the class with which they were registered
+    private final Map<Class<?>, BiConsumer<InstructionDatum, DataLink>> registeredHandlers = new ConcurrentHashMap<>();
+    //the handler for each class received, resolved from its own registration or that of its nearest superclass -
+    //replaced whenever a handler is registered
+    private volatile ClassValue<BiConsumer<InstructionDatum, DataLink>> handlerTable = newHandlerTable();
+
+    private volatile HandlerDispatcher handlerDispatcher = null;
+
+    protected DataHandler() {
+        registerInternal(TransmitPublicKeyInstructionDatum.class, this::receivePublicKey);
+        registerInternal(TransmitEncryptedSecretKeyInstructionDatum.class, this::receiveEncryptedSecretKey);
+        registerInternal(ConfirmEncryptionInstructionDatum.class, this::confirmEncryption);
+        registerInternal(TransmitKeyShareInstructionDatum.class, this::receiveKeyShare);
+        registerInternal(AcceptKeyShareInstructionDatum.class, this::acceptKeyShare);
+        registerInternal(ResumeSessionInstructionDatum.class, this::resumeSession);
+        registerInternal(AcceptResumptionInstructionDatum.class, this::acceptResumption);
+        registerInternal(RejectResumptionInstructionDatum.class, this::rejectResumption);
+        registerInternal(SessionTicketInstructionDatum.class, this::receiveSessionTicket);
+        registerInternal(HandshakeInstructionDatum.class, (instructionDatum, responseLink) -> {
+            //todo - additional reserved codes, if necessary
+            throw new IllegalArgumentException("Unsupported InstructionDatum class: " + instructionDatum.getClass());
+        });
+        registerInternal(
+                StreamInstructionDatum.class,
+                (instructionDatum, responseLink) -> responseLink.STREAM_TRANSFERS.receive(instructionDatum)
+        );
+        //acknowledgements are consumed by the DataLink before they get here
+        registerInternal(AcknowledgeInstructionDatum.class, (instructionDatum, responseLink) -> {});
+    }
+
     /**
      * Implementation specific handling of a lost connection on the specified socket.
      */
     protected abstract void connectionLost(DataLink dataLink);
 
     /**
-     * Implementation specific handling instructions for implementation specific codes.
+     * Implementation specific handling of instructions for which no handler has been registered. By default, these
+     * are logged and discarded.
      * @param instructionDatum the instructionDatum reconstructed from the transmitted data
      * @param responseLink the DataLink on which to transmit any required response
      */
-    protected abstract void handle(InstructionDatum instructionDatum, DataLink responseLink);
+    protected void handle(InstructionDatum instructionDatum, DataLink responseLink) {
+        LogHub.logNonFatalError(
+                "Unhandled instruction.",
+                new IllegalArgumentException("No handler registered for " + instructionDatum.getClass())
+        );
+    }
+
+    /**
+     * Register the handler for an InstructionDatum class, replacing any previously registered for it. The handler also
+     * receives instances of its subclasses, unless a handler is registered for them in turn. Handlers are found by a
+     * single lookup per instruction, however many classes are registered.
+     * Handlers should be registered before any link using this DataHandler is started.
+     * @param instructionClass the class of instruction to handle
+     * @param handler the handler, which receives each instruction along with the DataLink on which to transmit any
+     *                required response
+     * @throws IllegalArgumentException if the class is, or descends from, one of those used internally.
+     */
+    public <T extends InstructionDatum> void register(
+            Class<T> instructionClass,
+            BiConsumer<? super T, DataLink> handler
+    ) {
+        if (isInternal(instructionClass))
+            throw new IllegalArgumentException("Cannot register a handler for reserved class " + instructionClass);
+        if (handler == null)
+            throw new IllegalArgumentException("Handler must not be null.");
+        registerInternal(instructionClass, handler);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends InstructionDatum> void registerInternal(
+            Class<T> instructionClass,
+            BiConsumer<? super T, DataLink> handler
+    ) {
+        //handlers are only ever resolved for instances of their class, or its subclasses
+        registeredHandlers.put(instructionClass, (BiConsumer<InstructionDatum, DataLink>) handler);
+        handlerTable = newHandlerTable(); //discard any handlers already resolved
+    }
+
+    private ClassValue<BiConsumer<InstructionDatum, DataLink>> newHandlerTable() {
+        return new ClassValue<BiConsumer<InstructionDatum, DataLink>>() {
+            @Override
+            protected BiConsumer<InstructionDatum, DataLink> computeValue(Class<?> type) {
+                for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                    BiConsumer<InstructionDatum, DataLink> handler = registeredHandlers.get(c);
+                    if (handler != null)
+                        return handler;
+                }
+                return UNREGISTERED;
+            }
+        };
+    }
+
+    /**
+     * Implementation specific acceptance of a stream which the peer has begun transmitting on the specified link.
+     * The stream's data is written to the returned channel in order as each chunk arrives - on the link's receiving
+     * thread, or if that is shared with other links, on a writer thread - and the channel is closed when the stream
+     * ends. By default, all streams are refused.
+     * @param length the total length of the stream, or -1 if the sender did not specify it
+     * @param metadata implementation specific data describing the stream, as provided by the sender
+     * @return the channel to which the stream should be written, such as a FileChannel, or null to refuse the stream.
+     */
+    protected WritableByteChannel acceptStream(DataLink dataLink, long length, byte[] metadata) {
+        return null;
+    }
+
+    /**
+     * Implementation specific handling of the end of a stream accepted by acceptStream(), after its channel has been
+     * closed - on whichever thread wrote to the channel.
+     * @param received the number of bytes written to the channel
+     * @param complete true if the whole stream was received, false if it was cancelled, a chunk was lost, or the link
+     *                 was closed
+     */
+    protected void streamEnded(DataLink dataLink, byte[] metadata, long received, boolean complete) {}
+
+    /**
+     * Implementation specific handling of a change in the writability of the specified link - see
+     * DataLink.isWritable(). This may be called from any thread, and changes on one link may be reported out of order,
+     * so implementations should consult isWritable() for the link's current state.
+     * @param writable false once the link's unwritten data exceeds its high watermark, true once it falls back to its
+     *                 low watermark
+     */
+    protected void writabilityChanged(DataLink dataLink, boolean writable) {}
+
+    /**
+     * Set the dispatcher on whose threads this handler's instructions are deserialized and handled, or null to handle
+     * them on the threads on which their links receive. Implementations which set a dispatcher must be thread safe.
+     */
+    public void setHandlerDispatcher(HandlerDispatcher handlerDispatcher) {
+        this.handlerDispatcher = handlerDispatcher;
+    }
+
+    public HandlerDispatcher getHandlerDispatcher() {
+        return handlerDispatcher;
+    }
 
     /**
      * Provided for the use of DataLink and its descendants.
@@ -33,69 +174,490 @@ public abstract class DataHandler {
      * @param responseLink the DataLink on which to transmit any required response
      */
     void handle(byte[] data, DataLink responseLink) {
+        handle(data, 0, data.length, responseLink);
+    }
+
+    /**
+     * As above, for transmitted data occupying a range of a larger array.
+     */
+    void handle(byte[] data, int offset, int length, DataLink responseLink) {
+        HandlerDispatcher handlerDispatcher = this.handlerDispatcher;
+        //until encryption is established, anything received may be a Java serialized handshake instruction
+        boolean mayBeInternal =
+                !responseLink.isEncrypted() || InstructionCodecRegistry.isReserved(data, offset, length);
+        if (handlerDispatcher != null && !mayBeInternal) {
+            //the data may lie in a buffer the link reuses once this returns, so the dispatcher gets its own copy
+            handlerDispatcher.execute(this, responseLink, Arrays.copyOfRange(data, offset, offset + length));
+            return;
+        }
+        InstructionDatum instructionDatum = decode(data, offset, length, responseLink);
+        if (instructionDatum != null)
+            handleNow(instructionDatum, responseLink);
+    }
+
+    /**
+     * Reconstruct an instructionDatum from a range of an array of transmitted data, recording the time taken in the
+     * metrics of the link which received it.
+     * @return the instructionDatum, or null if the data could not be deserialized.
+     */
+    InstructionDatum decode(byte[] data, int offset, int length, DataLink responseLink) {
+        long startNanos = LinkMetrics.startTiming();
         try {
-            InstructionDatum instructionDatum = InstructionDatum.fromByteArray(data);
-            if (test(instructionDatum, responseLink))
-                handle(instructionDatum, responseLink);
+            return InstructionDatum.fromByteArray(data, offset, length);
         } catch (ClassCastException | StreamCorruptedException e) {
             //todo - maybe something here? definitely don't try and implementatin handle this instruction.
             // We should probably see if we can find out *why* this is happening.
+            responseLink.METRICS.frameDropped(LinkMetrics.DropReason.UNDECODABLE);
+            return null;
+        } finally {
+            responseLink.METRICS.deserialized(startNanos);
         }
     }
+
     /**
-     * Test an instruction code to see if it belongs to the set of instruction codes reserved for internal use.
-     * @param instructionDatum the instructionDatum reconstructed from the transmitted data
+     * Handle an instructionDatum which has already been reconstructed, or which was never packed at all.
+     * @param instructionDatum the instructionDatum to handle
      * @param responseLink the DataLink on which to transmit any required response
-     * @return true if the instruction should be handled by the implementation, false if already handled internally.
-     */
-    private boolean test(InstructionDatum instructionDatum, DataLink responseLink) {
-        if (!(instructionDatum instanceof HandshakeInstructionDatum)) return true;
-        if (instructionDatum instanceof TransmitPublicKeyInstructionDatum) {
-            /*
-             * Receive a public key.
-             * This is a server side operation - the response is to use the public key to encrypt the
-             * session key, then transmit the encrypted session key back to the client.
-             */
-            BigInteger encryptedSessionKey =
-                    RSA.encrypt(
-                            new BigInteger(
-                                    HexCipher.convertToHexString(
-                                            ByteCipher.getSessionKey()
-                                    ),
-                                    16
-                            ),
-                            ((TransmitPublicKeyInstructionDatum) instructionDatum).PUBLIC_KEY
-                    );
-            responseLink.transmit(new TransmitEncryptedSecretKeyInstructionDatum(encryptedSessionKey));
-        } else if (instructionDatum instanceof TransmitEncryptedSecretKeyInstructionDatum) {
-            /*
-             * Receive an encrypted secret key.
-             * This is a client side operation - the response is to decrypt the transmitted key via our private key,
-             * then overwrite the session secret key with it.
-             * We also go ahead and establish end-to-end encryption on the dataLink on our end.
-             */
-            ByteCipher.setSessionKey(
-                    HexCipher.convertFromHexString(
-                            RSA.decrypt(
-                                    ((TransmitEncryptedSecretKeyInstructionDatum) instructionDatum)
-                                            .ENCRYPTED_SECRET_KEY
-                            ).toString(16)
+     */
+    void dispatch(InstructionDatum instructionDatum, DataLink responseLink) {
+        HandlerDispatcher handlerDispatcher = this.handlerDispatcher;
+        if (handlerDispatcher != null && !isInternal(instructionDatum))
+            handlerDispatcher.execute(this, responseLink, instructionDatum);
+        else
+            handleNow(instructionDatum, responseLink);
+    }
+
+    /**
+     * Handle an instructionDatum on the calling thread, recording the time taken in the metrics of the responseLink.
+     */
+    void handleNow(InstructionDatum instructionDatum, DataLink responseLink) {
+        long startNanos = LinkMetrics.startTiming();
+        BiConsumer<InstructionDatum, DataLink> handler = handlerTable.get(instructionDatum.getClass());
+        try {
+            if (handler == UNREGISTERED)
+                handle(instructionDatum, responseLink);
+            else
+                handler.accept(instructionDatum, responseLink);
+        } finally {
+            responseLink.METRICS.handled(startNanos);
+        }
+    }
+
+    /**
+     * @return true if the instructionDatum is one of those used internally by DataHandler and DataLink.
+     */
+    static boolean isInternal(InstructionDatum instructionDatum) {
+        return isInternal(instructionDatum.getClass());
+    }
+
+    private static boolean isInternal(Class<?> instructionClass) {
+        return HandshakeInstructionDatum.class.isAssignableFrom(instructionClass) ||
+                StreamInstructionDatum.class.isAssignableFrom(instructionClass) ||
+                SessionTicketInstructionDatum.class.isAssignableFrom(instructionClass) ||
+                AcknowledgeInstructionDatum.class.isAssignableFrom(instructionClass);
+    }
+
+    private void receivePublicKey(
+            TransmitPublicKeyInstructionDatum transmitPublicKeyInstructionDatum,
+            DataLink responseLink
+    ) {
+        /*
+         * Receive a public key.
+         * This is a server side operation - the response is to select a cipher suite, frame integrity check, frame
+         * format, payload compression and acknowledgement window from those offered by the client, generate a new
+         * secret key for this link and use the public key to encrypt it, then transmit the encrypted secret key
+         * back to the client along with the selections and a salt from which to derive the key the suite uses.
+         */
+        Selection selection = Selection.negotiate(transmitPublicKeyInstructionDatum);
+        if (selection == null) {
+            LogHub.logNonFatalError(
+                    "Handshake failed.",
+                    new IllegalStateException("No cipher suite in common with the client.")
+            );
+            connectionLost(responseLink);
+            return;
+        }
+        byte[] secretKey = ByteCipher.generateKey();
+        byte[] keySalt = LinkCipher.generateKeySalt();
+        selection.apply(responseLink, secretKey, keySalt, false);
+        BigInteger encryptedSessionKey =
+                RSA.encrypt(
+                        new BigInteger(
+                                HexCipher.convertToHexString(
+                                        secretKey
+                                ),
+                                16
+                        ),
+                        transmitPublicKeyInstructionDatum.PUBLIC_KEY
+                );
+        responseLink.transmit(
+                new TransmitEncryptedSecretKeyInstructionDatum(
+                        encryptedSessionKey,
+                        selection.cipherSuite.getId(),
+                        selection.frameIntegrity.getId(),
+                        selection.frameFormat.getVersion(),
+                        selection.payloadCompression.getId(),
+                        selection.acknowledgementWindow,
+                        keySalt
+                )
+        );
+    }
+
+    private void receiveEncryptedSecretKey(
+            TransmitEncryptedSecretKeyInstructionDatum transmitEncryptedSecretKeyInstructionDatum,
+            DataLink responseLink
+    ) {
+        /*
+         * Receive an encrypted secret key.
+         * This is a client side operation - the response is to decrypt the transmitted key via the private key
+         * this link generated for the handshake, then construct the link's cipher with it.
+         * We also go ahead and establish end-to-end encryption on the dataLink on our end, using the cipher suite,
+         * frame integrity check, frame format, payload compression and acknowledgement window selected by the
+         * server.
+         */
+        Selection selection = Selection.validate(transmitEncryptedSecretKeyInstructionDatum);
+        RSA.KeyPair handshakeKeyPair = responseLink.takeHandshakeKeyPair();
+        if (handshakeKeyPair == null)
+            throw new IllegalStateException("Received a secret key on a link which did not initiate a handshake.");
+        byte[] secretKey = toSecretKey(
+                handshakeKeyPair.decrypt(transmitEncryptedSecretKeyInstructionDatum.ENCRYPTED_SECRET_KEY)
+        );
+        selection.apply(responseLink, secretKey, transmitEncryptedSecretKeyInstructionDatum.KEY_SALT, true);
+        responseLink.establishEndToEndEncryption();
+        responseLink.transmit(new ConfirmEncryptionInstructionDatum());
+    }
+
+    private void confirmEncryption(ConfirmEncryptionInstructionDatum instructionDatum, DataLink responseLink) {
+        /*
+         * Confirm key exchange.
+         * This is a server side operation - we now know that the client is using this link's secret key, so all
+         * further encrypted operations will be successful.
+         * End-to-end encryption is now confirmed on both ends of the link - unless no handshake ever took place, in
+         * which case there is no key to encrypt with, and the peer is dropped.
+         */
+        if (responseLink.getLinkCipher() == null) {
+            LogHub.logNonFatalError(
+                    "Closing link which confirmed encryption without a handshake.",
+                    new IllegalStateException("No cipher negotiated.")
+            );
+            responseLink.disconnect();
+            return;
+        }
+        responseLink.establishEndToEndEncryption();
+        issueSessionTicket(responseLink);
+    }
+
+    private void receiveKeyShare(
+            TransmitKeyShareInstructionDatum transmitKeyShareInstructionDatum,
+            DataLink responseLink
+    ) {
+        /*
+         * Receive an X25519 public value.
+         * This is a server side operation - the response is to make the same selections as for an RSA public key,
+         * then generate an ephemeral key pair of our own, agree a secret with the client's public value, and derive
+         * this link's secret key from it. Our public value is transmitted back to the client with the selections, and
+         * end-to-end encryption is established as soon as it is transmitted, since the client cannot transmit
+         * anything encrypted before receiving it.
+         */
+        Selection selection = Selection.negotiate(transmitKeyShareInstructionDatum);
+        byte[] sharedSecret = null;
+        X25519.KeyPair keyPair = null;
+        if (selection != null && X25519.isAvailable()) {
+            keyPair = X25519.generateKeyPair();
+            sharedSecret = keyPair.agree(transmitKeyShareInstructionDatum.PUBLIC_VALUE);
+        }
+        if (sharedSecret == null) {
+            LogHub.logNonFatalError(
+                    "Handshake failed.",
+                    new IllegalStateException(
+                            selection == null
+                                    ? "No cipher suite in common with the client."
+                                    : "Unable to agree a secret key with the client."
                     )
             );
-            responseLink.establishEndToEndEncryption();
-            responseLink.transmit(new ConfirmEncryptionInstructionDatum());
-        } else if (instructionDatum instanceof ConfirmEncryptionInstructionDatum) {
-            /*
-             * Confirm key exchange.
-             * This is a server side operation - we now know that the client is using our session secret key, so all
-             * further encrypted operations will be successful.
-             * End-to-end encryption is now confirmed on both ends of the link.
-             */
-            responseLink.establishEndToEndEncryption();
-        } else {
-            //todo - additional reserved codes, if necessary
-            throw new IllegalArgumentException("Unsupported InstructionDatum class: " + instructionDatum.getClass());
+            connectionLost(responseLink);
+            return;
+        }
+        byte[] publicValue = keyPair.getPublicValue();
+        byte[] keySalt = LinkCipher.generateKeySalt();
+        byte[] secretKey = X25519.deriveSecretKey(
+                sharedSecret,
+                transmitKeyShareInstructionDatum.PUBLIC_VALUE,
+                publicValue,
+                keySalt
+        );
+        selection.apply(responseLink, secretKey, keySalt, false);
+        responseLink.transmit(
+                new AcceptKeyShareInstructionDatum(
+                        publicValue,
+                        selection.cipherSuite.getId(),
+                        selection.frameIntegrity.getId(),
+                        selection.frameFormat.getVersion(),
+                        selection.payloadCompression.getId(),
+                        selection.acknowledgementWindow,
+                        keySalt
+                )
+        );
+        responseLink.establishEndToEndEncryption();
+        issueSessionTicket(responseLink);
+    }
+
+    private void acceptKeyShare(
+            AcceptKeyShareInstructionDatum acceptKeyShareInstructionDatum,
+            DataLink responseLink
+    ) {
+        /*
+         * Receive the server's X25519 public value.
+         * This is a client side operation - the response is to agree the same secret with the key pair this link
+         * generated for the handshake, derive this link's secret key just as the server did, and establish end-to-end
+         * encryption with the selections it made.
+         */
+        Selection selection = Selection.validate(acceptKeyShareInstructionDatum);
+        X25519.KeyPair keyPair = responseLink.takeKeyShareKeyPair();
+        if (keyPair == null)
+            throw new IllegalStateException("Received a key share on a link which did not initiate a handshake.");
+        byte[] sharedSecret = keyPair.agree(acceptKeyShareInstructionDatum.PUBLIC_VALUE);
+        if (sharedSecret == null)
+            throw new IllegalArgumentException("Invalid X25519 public value.");
+        byte[] secretKey = X25519.deriveSecretKey(
+                sharedSecret,
+                keyPair.getPublicValue(),
+                acceptKeyShareInstructionDatum.PUBLIC_VALUE,
+                acceptKeyShareInstructionDatum.KEY_SALT
+        );
+        selection.apply(responseLink, secretKey, acceptKeyShareInstructionDatum.KEY_SALT, true);
+        responseLink.establishEndToEndEncryption();
+    }
+
+    private void resumeSession(
+            ResumeSessionInstructionDatum resumeSessionInstructionDatum,
+            DataLink responseLink
+    ) {
+        /*
+         * Receive a session ticket.
+         * This is a server side operation - if we can still redeem the ticket, the response is to make the same
+         * selections as for a public key, but to derive this link's secret key from the ticket's resumption secret
+         * and the nonces of both sides rather than generating one. End-to-end encryption is established as soon as
+         * the acceptance is transmitted, since the client cannot transmit anything encrypted before receiving it.
+         * Otherwise, the client is told to fall back to a full handshake.
+         */
+        byte[] resumptionSecret = SessionTickets.redeem(resumeSessionInstructionDatum.TICKET);
+        Selection selection = resumptionSecret == null ||
+                resumeSessionInstructionDatum.CLIENT_NONCE.length != SessionTickets.NONCE_LENGTH
+                ? null
+                : Selection.negotiate(resumeSessionInstructionDatum);
+        if (selection == null) {
+            responseLink.transmit(new RejectResumptionInstructionDatum());
+            return;
+        }
+        byte[] keySalt = LinkCipher.generateKeySalt();
+        byte[] secretKey = SessionTickets.resumedSecretKey(
+                resumptionSecret,
+                resumeSessionInstructionDatum.CLIENT_NONCE,
+                keySalt
+        );
+        selection.apply(responseLink, secretKey, keySalt, false);
+        responseLink.transmit(
+                new AcceptResumptionInstructionDatum(
+                        selection.cipherSuite.getId(),
+                        selection.frameIntegrity.getId(),
+                        selection.frameFormat.getVersion(),
+                        selection.payloadCompression.getId(),
+                        selection.acknowledgementWindow,
+                        keySalt
+                )
+        );
+        responseLink.establishEndToEndEncryption();
+        issueSessionTicket(responseLink);
+    }
+
+    private void acceptResumption(
+            AcceptResumptionInstructionDatum acceptResumptionInstructionDatum,
+            DataLink responseLink
+    ) {
+        /*
+         * Resume a session.
+         * This is a client side operation - the response is to derive this link's secret key just as the server did,
+         * and establish end-to-end encryption with the selections it made.
+         */
+        Selection selection = Selection.validate(acceptResumptionInstructionDatum);
+        SessionTicket sessionTicket = responseLink.takeResumingTicket();
+        if (sessionTicket == null)
+            throw new IllegalStateException("Received a resumption on a link which did not present a session ticket.");
+        byte[] secretKey = SessionTickets.resumedSecretKey(
+                sessionTicket.getResumptionSecret(),
+                responseLink.getResumptionNonce(),
+                acceptResumptionInstructionDatum.KEY_SALT
+        );
+        selection.apply(responseLink, secretKey, acceptResumptionInstructionDatum.KEY_SALT, true);
+        responseLink.establishEndToEndEncryption();
+    }
+
+    private void rejectResumption(RejectResumptionInstructionDatum instructionDatum, DataLink responseLink) {
+        /*
+         * Fall back to a full handshake.
+         * This is a client side operation. Key generation takes some time, so it is not done on the receiving thread.
+         */
+        if (responseLink.takeResumingTicket() != null)
+            responseLink.startTask(responseLink::initiateHandshake);
+    }
+
+    private void receiveSessionTicket(
+            SessionTicketInstructionDatum sessionTicketInstructionDatum,
+            DataLink responseLink
+    ) {
+        byte[] resumptionSecret = responseLink.getResumptionSecret();
+        if (resumptionSecret == null) return;
+        responseLink.setSessionTicket(
+                new SessionTicket(
+                        sessionTicketInstructionDatum.TICKET,
+                        resumptionSecret,
+                        System.currentTimeMillis() + sessionTicketInstructionDatum.LIFETIME_MILLIS
+                )
+        );
+    }
+
+    /**
+     * Issue the client a ticket for a link's session, if this process issues them.
+     */
+    private static void issueSessionTicket(DataLink responseLink) {
+        byte[] resumptionSecret = responseLink.getResumptionSecret();
+        if (!SessionTickets.isIssuing() || resumptionSecret == null) return;
+        responseLink.transmit(
+                new SessionTicketInstructionDatum(
+                        SessionTickets.issue(resumptionSecret),
+                        SessionTickets.getLifetimeMillis()
+                )
+        );
+    }
+
+    /**
+     * The settings selected for a link during its handshake.
+     */
+    private static final class Selection {
+        private final CipherSuite cipherSuite;
+        private final FrameIntegrity frameIntegrity;
+        private final FrameFormat frameFormat;
+        private final PayloadCompression payloadCompression;
+        private final int acknowledgementWindow;
+        //false for peers which predate negotiation, and so could not make use of a session ticket
+        private final boolean resumable;
+
+        private Selection(
+                CipherSuite cipherSuite,
+                FrameIntegrity frameIntegrity,
+                FrameFormat frameFormat,
+                PayloadCompression payloadCompression,
+                int acknowledgementWindow,
+                boolean resumable
+        ) {
+            this.cipherSuite = cipherSuite;
+            this.frameIntegrity = frameIntegrity;
+            this.frameFormat = frameFormat;
+            this.payloadCompression = payloadCompression;
+            this.acknowledgementWindow = acknowledgementWindow;
+            this.resumable = resumable;
         }
-        return false;
+
+        /**
+         * The settings used with a peer which predates negotiation - its handshake instructions carry none of the
+         * fields offering or selecting them, which therefore arrive unset.
+         * @return the original settings, or null if this process no longer supports the original cipher.
+         */
+        private static Selection original() {
+            CipherSuite cipherSuite = CipherSuite.negotiate(new byte[]{CipherSuite.LEGACY_XOR.getId()});
+            if (cipherSuite == null)
+                return null;
+            return new Selection(
+                    cipherSuite,
+                    FrameIntegrity.BYTE_SUM,
+                    FrameFormat.SCANNING,
+                    PayloadCompression.NONE,
+                    0,
+                    false
+            );
+        }
+
+        /**
+         * Select settings from those offered by a client.
+         * @return the selection, or null if we have no cipher suite in common with the client.
+         */
+        private static Selection negotiate(HandshakeOfferInstructionDatum offer) {
+            if (offer.CIPHER_SUITES == null)
+                return original();
+            CipherSuite cipherSuite = CipherSuite.negotiate(offer.CIPHER_SUITES);
+            if (cipherSuite == null)
+                return null;
+            return new Selection(
+                    cipherSuite,
+                    FrameIntegrity.negotiate(offer.FRAME_INTEGRITIES),
+                    FrameFormat.negotiate(offer.FRAME_FORMAT_VERSION),
+                    PayloadCompression.negotiate(offer.PAYLOAD_COMPRESSIONS, offer.DICTIONARY_ID),
+                    AcknowledgementWindow.negotiate(offer.ACKNOWLEDGEMENT_WINDOW),
+                    true
+            );
+        }
+
+        /**
+         * Recover the settings selected by a server.
+         * @throws IllegalArgumentException if any of them is not supported by this process.
+         */
+        private static Selection validate(HandshakeSelectionInstructionDatum selection) {
+            if (selection.KEY_SALT == null) { //every server which negotiates chooses a salt
+                Selection original = original();
+                if (original == null)
+                    throw new IllegalArgumentException("Unsupported cipher suite: " + CipherSuite.LEGACY_XOR);
+                return original;
+            }
+            CipherSuite cipherSuite = CipherSuite.forId(selection.CIPHER_SUITE);
+            if (cipherSuite == null || !cipherSuite.isAvailable())
+                throw new IllegalArgumentException("Unsupported cipher suite: " + selection.CIPHER_SUITE);
+            FrameIntegrity frameIntegrity = FrameIntegrity.forId(selection.FRAME_INTEGRITY);
+            if (frameIntegrity == null || !frameIntegrity.isAvailable())
+                throw new IllegalArgumentException("Unsupported frame integrity check: " + selection.FRAME_INTEGRITY);
+            FrameFormat frameFormat = FrameFormat.forVersion(selection.FRAME_FORMAT_VERSION);
+            if (frameFormat == null)
+                throw new IllegalArgumentException(
+                        "Unsupported frame format version: " + selection.FRAME_FORMAT_VERSION
+                );
+            PayloadCompression payloadCompression = PayloadCompression.forId(selection.PAYLOAD_COMPRESSION);
+            if (payloadCompression == null)
+                throw new IllegalArgumentException("Unsupported payload compression: " + selection.PAYLOAD_COMPRESSION);
+            int acknowledgementWindow = selection.ACKNOWLEDGEMENT_WINDOW;
+            if (acknowledgementWindow < 0 || acknowledgementWindow > AcknowledgementWindow.MAX_SIZE)
+                throw new IllegalArgumentException("Unsupported acknowledgement window size: " + acknowledgementWindow);
+            return new Selection(
+                    cipherSuite,
+                    frameIntegrity,
+                    frameFormat,
+                    payloadCompression,
+                    acknowledgementWindow,
+                    true
+            );
+        }
+
+        /**
+         * Configure a link with these settings, and the secret key established for it. The settings take effect once
+         * encryption is established.
+         */
+        private void apply(DataLink dataLink, byte[] secretKey, byte[] keySalt, boolean initiator) {
+            dataLink.setLinkCipher(new LinkCipher(cipherSuite, secretKey, keySalt, initiator));
+            dataLink.setFrameIntegrity(frameIntegrity);
+            dataLink.setFrameFormat(frameFormat);
+            dataLink.setPayloadCompression(payloadCompression);
+            dataLink.setAcknowledgementWindow(acknowledgementWindow);
+            if (resumable)
+                dataLink.setResumptionSecret(SessionTickets.resumptionSecret(secretKey, keySalt));
+        }
+    }
+
+    /**
+     * Recover a secret key from its decrypted numeric form, restoring any leading zero bytes.
+     */
+    private static byte[] toSecretKey(BigInteger decryptedKey) {
+        StringBuilder hexString = new StringBuilder(decryptedKey.toString(16));
+        while (hexString.length() < ByteCipher.KEY_SIZE * 2)
+            hexString.insert(0, '0');
+        return HexCipher.convertFromHexString(hexString.toString());
     }
 }
@@ -1,34 +1,490 @@
 package link;
 
+import crypto.KeyExchange;
+import crypto.LinkCipher;
+import crypto.RSA;
+import crypto.SessionTickets;
+import crypto.X25519;
+import link.instructions.AcknowledgeInstructionDatum;
+import link.instructions.FrameFormat;
+import link.instructions.FrameIntegrity;
 import link.instructions.InstructionDatum;
+import link.instructions.PackSettings;
+import link.instructions.PayloadCompression;
+import link.instructions.ResumeSessionInstructionDatum;
+import link.instructions.TransmitKeyShareInstructionDatum;
+import link.instructions.TransmitPublicKeyInstructionDatum;
+import main.LogHub;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.IntFunction;
 
 /**
  * DataLink provides two-way data transmission, either between two services connected locally,
  * or two services connected remotely. Each link must be constructed with a data handler to provide
  * implementation, link-type(local vs. remote), or service(frontend vs. backend) specific utility.
+ * Each link's receive loop runs on a thread produced by its ThreadFactory - by default the factory for
+ * ExecutionMode.PLATFORM, which may be overridden for all links or for an individual link.
+ * Each link owns its cipher state - the key pair used during its handshake, and the cipher negotiated by it - so
+ * handshakes on different links proceed concurrently and no two links share a secret key.
+ * Payloads too large for a single InstructionDatum may be transmitted as streams, which the peer's DataHandler
+ * receives incrementally into a channel of its choosing - see transmitStream() and DataHandler.acceptStream().
+ * Once encryption is established, a server may issue the client a SessionTicket, with which a later link may skip the
+ * RSA handshake - see resumeHandshake().
+ * Each link records what it transmits, receives and drops, and how long it spends doing so - see getMetrics().
+ * Each link accounts for the bytes it has transmitted but not yet written. A link becomes unwritable once these exceed
+ * its high watermark, and writable again once they fall to its low watermark - its DataHandler is notified of each
+ * change, and its SlowConsumerPolicy determines what happens to instructions transmitted meanwhile. This bounds what a
+ * producer may queue for a slow peer - see setWatermarks() and setSlowConsumerPolicy().
  */
-public abstract class DataLink extends Thread {
+public abstract class DataLink implements Runnable {
+
+    public static final long DEFAULT_HIGH_WATERMARK = 0x100000;
+    public static final long DEFAULT_LOW_WATERMARK = DEFAULT_HIGH_WATERMARK / 2;
+    public static final long DEFAULT_HARD_LIMIT = DEFAULT_HIGH_WATERMARK * 8;
+
+    private static volatile ThreadFactory defaultThreadFactory = ExecutionMode.PLATFORM.threadFactory();
 
     protected final DataHandler DATA_HANDLER;
 
-    protected boolean encrypted = false;
+    //all buffers this link leases from the buffer pool, for encoding or decoding, are accounted for here
+    protected final BufferPool.Account BUFFER_ACCOUNT = BufferPool.getDefault().newAccount();
+
+    final StreamTransfers STREAM_TRANSFERS = new StreamTransfers(this);
+
+    final Backpressure BACKPRESSURE = new Backpressure(this);
+
+    protected final LinkMetrics METRICS = new LinkMetrics(this);
+
+    private ThreadFactory threadFactory = null;
+
+    private Thread thread = null;
+
+    //written on the receiving thread, but read by any thread which transmits - packSettings are always published
+    //before this, so a thread which sees encryption established also sees the settings to encrypt with
+    protected volatile boolean encrypted = false;
 
-    protected boolean terminated = false;
+    //the cipher negotiated during the handshake - this may be set before encryption is established
+    protected volatile LinkCipher linkCipher = null;
+
+    //the check, wire format and compression negotiated during the handshake, which apply once encryption is established
+    protected volatile FrameIntegrity frameIntegrity = FrameIntegrity.BYTE_SUM;
+    protected volatile FrameFormat frameFormat = FrameFormat.SCANNING;
+    protected volatile PayloadCompression payloadCompression = PayloadCompression.NONE;
+    //null unless acknowledgement was negotiated
+    protected volatile AcknowledgementWindow acknowledgementWindow = null;
+    //the settings with which this link currently packs instructions, rebuilt whenever any of the above changes
+    volatile PackSettings packSettings = PackSettings.ORIGINAL.withPackObserver(METRICS.packObserver());
+
+    //the key pair with which the peer encrypts its secret key - held by the initiating side, until the key arrives
+    private volatile RSA.KeyPair handshakeKeyPair = null;
+    //likewise for X25519 handshakes, the key pair whose public value the client transmits
+    private volatile X25519.KeyPair keyShareKeyPair = null;
+
+    //the ticket presented to resume a session, and the nonce presented with it - held by the initiating side, until
+    //the server accepts or rejects it
+    private volatile SessionTicket resumingTicket = null;
+    private volatile byte[] resumptionNonce = null;
+
+    //the secret from which tickets for this link's session are issued and redeemed, derived during the handshake
+    private volatile byte[] resumptionSecret = null;
+    //the most recent ticket issued to this link by the server
+    private volatile SessionTicket sessionTicket = null;
+
+    protected volatile boolean terminated = false;
 
     public DataLink(DataHandler dataHandler) {
         DATA_HANDLER = dataHandler;
     }
 
+    /**
+     * Establish encryption with the cipher negotiated for this link.
+     * @throws IllegalStateException if no cipher has been negotiated - there is no shared key to fall back on.
+     */
     void establishEndToEndEncryption() {
+        if (linkCipher == null)
+            throw new IllegalStateException("Cannot establish encryption on a link which negotiated no cipher.");
+        updatePackSettings(true);
         encrypted = true;
     }
 
+    /**
+     * Set the cipher to be used once encryption is established.
+     */
+    void setLinkCipher(LinkCipher linkCipher) {
+        this.linkCipher = linkCipher;
+        updatePackSettings();
+    }
+
+    private void updatePackSettings() {
+        updatePackSettings(encrypted);
+    }
+
+    private void updatePackSettings(boolean encrypted) {
+        packSettings = encrypted
+                ? new PackSettings(frameFormat, linkCipher, frameIntegrity, payloadCompression, METRICS.packObserver())
+                : PackSettings.ORIGINAL.withPackObserver(METRICS.packObserver());
+    }
+
+    public LinkCipher getLinkCipher() {
+        return linkCipher;
+    }
+
+    /**
+     * Set the check to be used once encryption is established.
+     */
+    void setFrameIntegrity(FrameIntegrity frameIntegrity) {
+        this.frameIntegrity = frameIntegrity;
+        updatePackSettings();
+    }
+
+    /**
+     * Set the wire format to be used for transmission once encryption is established.
+     */
+    void setFrameFormat(FrameFormat frameFormat) {
+        this.frameFormat = frameFormat;
+        updatePackSettings();
+    }
+
+    /**
+     * @return the wire format in which this link currently transmits.
+     */
+    public FrameFormat getFrameFormat() {
+        return encrypted ? frameFormat : FrameFormat.SCANNING;
+    }
+
+    /**
+     * Set the compression to be applied to instruction data once encryption is established.
+     */
+    void setPayloadCompression(PayloadCompression payloadCompression) {
+        this.payloadCompression = payloadCompression;
+        updatePackSettings();
+    }
+
+    /**
+     * @return the compression currently applied to instruction data on this link.
+     */
+    public PayloadCompression getPayloadCompression() {
+        return encrypted ? payloadCompression : PayloadCompression.NONE;
+    }
+
+    /**
+     * Set the size of the acknowledgement window to be used once encryption is established, or zero for none.
+     */
+    void setAcknowledgementWindow(int size) {
+        acknowledgementWindow = size == 0 ? null : new AcknowledgementWindow(this, size);
+    }
+
+    /**
+     * @return the window through which this link acknowledges instructions, or null if it does not.
+     */
+    public AcknowledgementWindow getAcknowledgementWindow() {
+        return encrypted ? acknowledgementWindow : null;
+    }
+
+    /**
+     * @return the check currently applied to instructions on this link which are not authenticated by its cipher.
+     */
+    public FrameIntegrity getFrameIntegrity() {
+        return encrypted ? frameIntegrity : FrameIntegrity.BYTE_SUM;
+    }
+
+    /**
+     * Begin the handshake which establishes end-to-end encryption, by generating a key pair for this link and
+     * transmitting its public key to the peer, along with the cipher suites we support.
+     * The key pair is for the preferred KeyExchange - an RSA key pair, or an ephemeral X25519 key pair.
+     */
+    public void initiateHandshake() {
+        if (KeyExchange.getPreferred() == KeyExchange.X25519) {
+            X25519.KeyPair keyPair = X25519.generateKeyPair();
+            keyShareKeyPair = keyPair;
+            transmit(new TransmitKeyShareInstructionDatum(keyPair.getPublicValue()));
+            return;
+        }
+        RSA.KeyPair keyPair = RSA.generateKeyPair();
+        handshakeKeyPair = keyPair;
+        transmit(new TransmitPublicKeyInstructionDatum(keyPair.getPublicKey()));
+    }
+
+    /**
+     * @return the key pair generated by initiateHandshake(), which is discarded once the handshake completes.
+     */
+    RSA.KeyPair takeHandshakeKeyPair() {
+        RSA.KeyPair keyPair = handshakeKeyPair;
+        handshakeKeyPair = null;
+        return keyPair;
+    }
+
+    /**
+     * @return the X25519 key pair generated by initiateHandshake(), which is discarded once the handshake completes.
+     */
+    X25519.KeyPair takeKeyShareKeyPair() {
+        X25519.KeyPair keyPair = keyShareKeyPair;
+        keyShareKeyPair = null;
+        return keyPair;
+    }
+
+    /**
+     * Begin a handshake which resumes the session of an earlier link to the same server, by presenting a ticket the
+     * server issued on that link. This requires no key generation on either side, and establishes encryption within a
+     * single round trip. If the ticket is null or has expired, or the server refuses it, a full handshake is performed
+     * instead.
+     */
+    public void resumeHandshake(SessionTicket sessionTicket) {
+        if (sessionTicket == null || sessionTicket.isExpired()) {
+            initiateHandshake();
+            return;
+        }
+        byte[] nonce = SessionTickets.generateNonce();
+        resumptionNonce = nonce;
+        resumingTicket = sessionTicket;
+        transmit(new ResumeSessionInstructionDatum(sessionTicket.getTicket(), nonce));
+    }
+
+    /**
+     * @return the ticket presented by resumeHandshake(), which is discarded once the server responds.
+     */
+    SessionTicket takeResumingTicket() {
+        SessionTicket sessionTicket = resumingTicket;
+        resumingTicket = null;
+        return sessionTicket;
+    }
+
+    byte[] getResumptionNonce() {
+        return resumptionNonce;
+    }
+
+    void setResumptionSecret(byte[] resumptionSecret) {
+        this.resumptionSecret = resumptionSecret;
+    }
+
+    byte[] getResumptionSecret() {
+        return resumptionSecret;
+    }
+
+    void setSessionTicket(SessionTicket sessionTicket) {
+        this.sessionTicket = sessionTicket;
+    }
+
+    /**
+     * @return the most recent session ticket the server issued on this link, with which a later link may resume this
+     * session, or null if none has been issued.
+     */
+    public SessionTicket getSessionTicket() {
+        return sessionTicket;
+    }
+
     public boolean isEncrypted() {
         return encrypted;
     }
 
+    public BufferPool.Account getBufferAccount() {
+        return BUFFER_ACCOUNT;
+    }
+
+    /**
+     * @return the metrics recorded by this link, which may be published via JMX with LinkMetrics.register().
+     */
+    public LinkMetrics getMetrics() {
+        return METRICS;
+    }
+
+    /**
+     * @return the number of bytes transmitted by this link but not yet written, for links which queue their writes.
+     */
+    long getPendingTransmitBytes() {
+        return 0;
+    }
+
+    /**
+     * @return the number of bytes transmitted by this link which have since left its queue - written, shed or
+     * discarded. A transmission has left the queue once this reaches the bytes transmitted in total as it was queued.
+     */
+    long getDequeuedTransmitBytes() {
+        long transmittedBytes = METRICS.getBytesTransmitted(); //read first, so that the result errs low
+        return transmittedBytes - getPendingTransmitBytes();
+    }
+
+    /**
+     * @return the number of transmissions queued for this link to receive, for links which queue their receptions.
+     */
+    long getPendingReceptions() {
+        return 0;
+    }
+
+    /**
+     * Set the number of bytes transmitted but not yet written above which this link becomes unwritable, and to which
+     * they must fall for it to become writable again.
+     */
+    public void setWatermarks(long lowWatermark, long highWatermark) {
+        BACKPRESSURE.setWatermarks(lowWatermark, highWatermark);
+    }
+
+    public long getLowWatermark() {
+        return BACKPRESSURE.getLowWatermark();
+    }
+
+    public long getHighWatermark() {
+        return BACKPRESSURE.getHighWatermark();
+    }
+
+    /**
+     * Set the number of bytes transmitted but not yet written beyond which the BLOCK policy disconnects the link
+     * rather than queue more from a thread which must not wait - see SlowConsumerPolicy.BLOCK. A limit below the high
+     * watermark is treated as the high watermark.
+     */
+    public void setHardLimit(long hardLimit) {
+        BACKPRESSURE.setHardLimit(hardLimit);
+    }
+
+    public long getHardLimit() {
+        return BACKPRESSURE.getHardLimit();
+    }
+
+    /**
+     * Set what this link does with instructions transmitted while it is unwritable. By default, it blocks.
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        BACKPRESSURE.setSlowConsumerPolicy(slowConsumerPolicy);
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return BACKPRESSURE.getSlowConsumerPolicy();
+    }
+
+    /**
+     * @return false if this link's unwritten data has exceeded its high watermark and not yet fallen back to its low
+     * watermark - a producer serving many links may skip those which are unwritable, rather than wait for them.
+     */
+    public boolean isWritable() {
+        return BACKPRESSURE.isWritable();
+    }
+
     public void terminate() {
         terminated = true;
+        closeTransfers();
+    }
+
+    /**
+     * Cancel any streams in progress, discard any instructions awaiting acknowledgement, release any transmitters
+     * waiting for writability, and withdraw this link's metrics from JMX. Links call this when they close.
+     */
+    void closeTransfers() {
+        BACKPRESSURE.close();
+        STREAM_TRANSFERS.close();
+        METRICS.unregister();
+        METRICS.leave();
+        AcknowledgementWindow acknowledgementWindow = this.acknowledgementWindow;
+        if (acknowledgementWindow != null)
+            acknowledgementWindow.close();
+    }
+
+    /**
+     * Transmit the contents of a channel to the peer as a stream of chunks, blocking until it has all been transmitted.
+     * Only a few chunks are in flight at once, so streams of any length may be transmitted in bounded memory.
+     * This must not be called from the thread on which this link receives, since the peer's flow control credit arrives
+     * there.
+     * @param source a blocking channel from which to read the stream
+     * @param length the number of bytes to transmit, or -1 to transmit everything until the end of the channel
+     * @param metadata implementation specific data describing the stream, passed to the peer's DataHandler
+     * @return the number of bytes transmitted.
+     * @throws StreamCancelledException if the peer refused or cancelled the stream, or this link was closed.
+     */
+    public long transmitStream(ReadableByteChannel source, long length, byte[] metadata) throws IOException {
+        return STREAM_TRANSFERS.transmit(source, length, metadata);
+    }
+
+    /**
+     * As above, reading the stream from an InputStream.
+     */
+    public long transmitStream(InputStream source, long length, byte[] metadata) throws IOException {
+        return transmitStream(Channels.newChannel(source), length, metadata);
+    }
+
+    /**
+     * As above, transmitting the entire contents of a file.
+     */
+    public long transmitFile(Path path, byte[] metadata) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return transmitStream(fileChannel, fileChannel.size(), metadata);
+        }
+    }
+
+    /**
+     * @return true if the calling thread is the one on which this link receives instructions.
+     */
+    boolean isReceiveThread() {
+        return thread != null && Thread.currentThread() == thread;
+    }
+
+    /**
+     * @return true if this link receives on a thread shared with other links, which must not be held up by slow work
+     * such as writing streams to their sinks.
+     */
+    boolean sharesReceiveThread() {
+        return false;
+    }
+
+    /**
+     * Set the ThreadFactory used by all links which do not specify their own.
+     */
+    public static void setDefaultThreadFactory(ThreadFactory threadFactory) {
+        defaultThreadFactory = threadFactory;
+    }
+
+    public static void setDefaultExecutionMode(ExecutionMode executionMode) {
+        setDefaultThreadFactory(executionMode.threadFactory());
+    }
+
+    /**
+     * Set the ThreadFactory for this link. This must be done before the link is started.
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Launch this link's receive loop on a new thread from its ThreadFactory.
+     * @throws IllegalStateException if the link has already been started.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            throw new IllegalStateException("DataLink already started.");
+        thread = threadFactory().newThread(this);
+        thread.start();
+    }
+
+    /**
+     * Run a task too slow for the receiving thread, such as key generation, on a new thread from this link's
+     * ThreadFactory - logging it if it fails, since nothing waits on it.
+     */
+    void startTask(Runnable task) {
+        threadFactory().newThread(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LogHub.logNonFatalError("Link task failure", e);
+            }
+        }).start();
+    }
+
+    private synchronized ThreadFactory threadFactory() {
+        return threadFactory == null ? defaultThreadFactory : threadFactory;
+    }
+
+    /**
+     * @return the thread running this link's receive loop, or null if the link has not been started on its own thread.
+     */
+    public Thread getThread() {
+        return thread;
     }
 
     @Override
@@ -38,6 +494,181 @@ public abstract class DataLink extends Thread {
 
     protected abstract void receive();
 
+    /**
+     * Apply the slow consumer policy to an instruction about to be transmitted, if this link is unwritable.
+     * Links call this before packing each instruction, and updateWritability() once it is queued.
+     * @return true if the instruction should be transmitted, false if it should be discarded.
+     * @throws SlowConsumerException if the instruction is refused by the FAIL_FAST policy.
+     */
+    boolean admit(InstructionDatum instructionDatum) {
+        return BACKPRESSURE.admit(instructionDatum);
+    }
+
+    /**
+     * Compare the bytes transmitted but not yet written against the watermarks, and notify the DataHandler if this
+     * link's writability changes. Links call this whenever they queue or write data.
+     */
+    void updateWritability() {
+        BACKPRESSURE.updateWritability();
+    }
+
+    /**
+     * @return true if the calling thread may wait for this link to become writable - links must not wait on threads
+     * they depend upon to write or to receive acknowledgements.
+     */
+    boolean mayBlock() {
+        return !isReceiveThread() && !HandlerDispatcher.isDispatchThread();
+    }
+
+    /**
+     * Called on the receiving thread when a HandlerDispatcher has no capacity to queue another instruction received by
+     * this link. Links whose receiving thread must not wait for it suspend their reads instead, until the dispatcher
+     * runs a task registered with its whenAvailable().
+     * @return true if this link has suspended its reads, so the instruction should be queued regardless.
+     */
+    boolean suspendForDispatch(HandlerDispatcher handlerDispatcher) {
+        return false;
+    }
+
+    /**
+     * @return true if this link's queue is full regardless of its watermarks, for links whose queues are bounded.
+     */
+    boolean isQueueFull() {
+        return false;
+    }
+
+    /**
+     * Discard queued application instructions, oldest first, until no more than the specified number of bytes remain
+     * unwritten. Links which can withdraw what they have queued override this.
+     * @return the number of transmissions discarded.
+     */
+    int shed(long targetBytes) {
+        return 0;
+    }
+
+    /**
+     * Close this link in response to a slow consumer, or a peer which breaks the protocol.
+     */
+    void disconnect() {
+        terminate();
+    }
+
+    /**
+     * Pack an instruction for remote transmission once encryption is established, with the settings negotiated during
+     * the handshake - numbering it and retaining it for retransmission if this link acknowledges instructions.
+     */
+    ByteBuffer packEncrypted(InstructionDatum instructionDatum, IntFunction<ByteBuffer> allocator) {
+        AcknowledgementWindow acknowledgementWindow = this.acknowledgementWindow;
+        if (acknowledgementWindow != null)
+            return acknowledgementWindow.pack(instructionDatum, allocator);
+        return instructionDatum.pack(0, packSettings, allocator);
+    }
+
+    /**
+     * Validate and handle an instruction received by this link. If this link acknowledges instructions, they are
+     * handled in sequence, and any held for want of an earlier instruction are handled once it arrives.
+     * @param instruction the instruction data as transmitted, which is decrypted if necessary without modifying it
+     * @param sequenceIndex the sequence index carried in the instruction's header
+     * @param checkValue the check value carried in the instruction's trailer
+     */
+    void handleInstruction(ByteBuffer instruction, int sequenceIndex, int checkValue) {
+        METRICS.frameReceived();
+        byte[] data;
+        int offset;
+        int length = instruction.remaining();
+        if (instruction.hasArray()) {
+            data = instruction.array();
+            offset = instruction.arrayOffset() + instruction.position();
+        } else { //direct buffers must be copied out for deserialization
+            data = new byte[length];
+            instruction.duplicate().get(data);
+            offset = 0;
+        }
+        boolean authenticated = false;
+        if (encrypted) {
+            long startNanos = LinkMetrics.startTiming();
+            data = linkCipher.decrypt(data, offset, length, sequenceIndex);
+            METRICS.decrypted(startNanos);
+            if (data == null) { //failed authentication - corrupted, forged or replayed
+                METRICS.frameDropped(LinkMetrics.DropReason.AUTHENTICATION_FAILURE);
+                return;
+            }
+            offset = 0;
+            length = data.length;
+            authenticated = linkCipher.isAuthenticated();
+        }
+        //authenticated data has already been verified - otherwise a check value mismatch means the instruction has been
+        //corrupted, in which case we simply discard it
+        if (!authenticated && getFrameIntegrity().checksum(data, offset, length) != checkValue) {
+            METRICS.frameDropped(LinkMetrics.DropReason.CHECKSUM_MISMATCH);
+            return;
+        }
+        AcknowledgementWindow acknowledgementWindow = getAcknowledgementWindow();
+        if (acknowledgementWindow == null) {
+            deliver(data, offset, length);
+            return;
+        }
+        if (length < AcknowledgementWindow.BLOCK_LENGTH) {
+            METRICS.frameDropped(LinkMetrics.DropReason.TRUNCATED);
+            return;
+        }
+        int acknowledgedSequenceIndex = acknowledgementWindow.acknowledged(data, offset);
+        offset += AcknowledgementWindow.BLOCK_LENGTH;
+        length -= AcknowledgementWindow.BLOCK_LENGTH;
+        if (acknowledgedSequenceIndex != AcknowledgementWindow.UNSEQUENCED) {
+            if (acknowledgedSequenceIndex != sequenceIndex) { //the header has been corrupted
+                METRICS.frameDropped(LinkMetrics.DropReason.SEQUENCE_MISMATCH);
+                return;
+            }
+            AcknowledgementWindow.Reception reception =
+                    acknowledgementWindow.receive(sequenceIndex, data, offset, length);
+            if (reception == AcknowledgementWindow.Reception.DISCARDED)
+                METRICS.frameDropped(LinkMetrics.DropReason.DUPLICATE);
+            if (reception != AcknowledgementWindow.Reception.NEXT) return; //held until its turn, or discarded
+        }
+        deliver(data, offset, length);
+        byte[] held;
+        while ((held = acknowledgementWindow.takeHeld()) != null)
+            deliver(held, 0, held.length);
+    }
+
+    /**
+     * Acknowledge whatever this link has received since it last transmitted, if it acknowledges instructions. Links
+     * call this after handling each batch of received instructions, so that any responses transmitted while handling
+     * them carry the acknowledgement instead.
+     */
+    void acknowledgeReceived() {
+        AcknowledgementWindow acknowledgementWindow = getAcknowledgementWindow();
+        if (acknowledgementWindow != null && acknowledgementWindow.isAcknowledgementPending())
+            transmit(new AcknowledgeInstructionDatum());
+    }
+
+    /**
+     * Decompress validated instruction data if necessary, and pass it on to the DataHandler.
+     */
+    private void deliver(byte[] data, int offset, int length) {
+        PayloadCompression payloadCompression = getPayloadCompression();
+        if (payloadCompression.isEnabled()) { //strip the flag, or decompress
+            if (length == 0) {
+                METRICS.frameDropped(LinkMetrics.DropReason.TRUNCATED);
+                return;
+            }
+            if (data[offset] == PayloadCompression.STORED) {
+                ++offset;
+                --length;
+            } else {
+                data = payloadCompression.decompress(data, offset, length);
+                if (data == null) { //malformed
+                    METRICS.frameDropped(LinkMetrics.DropReason.MALFORMED_COMPRESSION);
+                    return;
+                }
+                offset = 0;
+                length = data.length;
+            }
+        }
+        DATA_HANDLER.handle(data, offset, length, this);
+    }
+
     public abstract void transmit(InstructionDatum instructionDatum);
     protected abstract void transmit(byte[] data);
 }
@@ -0,0 +1,59 @@
+package link;
+
+import main.LogHub;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Determines what kind of thread runs a DataLink's receive loop.
+ * PLATFORM links each occupy a full operating system thread.
+ * VIRTUAL links run on JVM-managed virtual threads, so blocking reads on many mostly idle links cost very little.
+ * Virtual threads require a Java 21 or later runtime - where they are not available, VIRTUAL falls back to PLATFORM.
+ */
+public enum ExecutionMode {
+    PLATFORM,
+    VIRTUAL;
+
+    private static final String THREAD_NAME_PREFIX = "DataLink-";
+
+    private static final AtomicLong platformThreadCount = new AtomicLong(0);
+
+    /**
+     * @return a ThreadFactory producing threads of this mode, suitable for DataLink.setThreadFactory().
+     */
+    public ThreadFactory threadFactory() {
+        if (this == VIRTUAL) {
+            ThreadFactory virtualThreadFactory = virtualThreadFactory();
+            if (virtualThreadFactory != null)
+                return virtualThreadFactory;
+        }
+        return runnable -> new Thread(runnable, THREAD_NAME_PREFIX + platformThreadCount.getAndIncrement());
+    }
+
+    public static boolean isVirtualSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Build a virtual thread factory via Thread.ofVirtual(), which we access reflectively so that this library still
+     * compiles and runs on older JDKs.
+     * @return the factory, or null if this runtime does not support virtual threads.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME_PREFIX, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LogHub.logNonFatalError("Virtual threads unavailable, falling back to platform threads", e);
+            return null;
+        }
+    }
+}
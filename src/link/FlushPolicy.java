@@ -0,0 +1,43 @@
+package link;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Determines when a link's OutboundPipeline writes queued packets to the network.
+ * Packets are written as soon as the total queued reaches the size threshold, or once the oldest unwritten packet has
+ * waited for the maximum delay, whichever comes first. Whatever has accumulated by then is written together.
+ * IMMEDIATE writes every packet as soon as it is queued - packets still coalesce whenever several threads transmit
+ * at once, or while an earlier write is in progress.
+ */
+public final class FlushPolicy {
+
+    public static final FlushPolicy IMMEDIATE = new FlushPolicy(0, 0L);
+
+    final int sizeThreshold;
+    final long maxDelayNanos;
+
+    private FlushPolicy(int sizeThreshold, long maxDelayNanos) {
+        this.sizeThreshold = sizeThreshold;
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    /**
+     * Write once the specified number of bytes are queued, or after the specified delay.
+     */
+    public static FlushPolicy sizeThreshold(int sizeThreshold, long maxDelay, TimeUnit unit) {
+        if (sizeThreshold < 0) throw new IllegalArgumentException("Size threshold must not be negative.");
+        if (maxDelay <= 0) throw new IllegalArgumentException("Maximum delay must be positive.");
+        return new FlushPolicy(sizeThreshold, unit.toNanos(maxDelay));
+    }
+
+    /**
+     * Write everything queued at most the specified delay after the first packet was queued, regardless of size.
+     */
+    public static FlushPolicy maxDelay(long maxDelay, TimeUnit unit) {
+        return sizeThreshold(Integer.MAX_VALUE, maxDelay, unit);
+    }
+
+    public boolean isImmediate() {
+        return sizeThreshold == 0;
+    }
+}
@@ -0,0 +1,337 @@
+package link;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import static link.instructions.InstructionDatum.*;
+
+/**
+ * Incrementally derives packed instructions from a stream of bytes.
+ * Data is read in bulk into a single buffer leased from a BufferPool, which grows as required to hold the largest
+ * pending instruction and is returned to the pool whenever no undecoded data remains.
+ * Headers and trailers are parsed where they lie, and each instruction's data is exposed as a view of that buffer
+ * rather than copied out of it.
+ * The decoder may be fed from a blocking InputStream or from a non-blocking channel, and is not thread safe - each link
+ * should own its own.
+ * A link's decoder records what it reads, and every loss of synchronisation with the stream, in the link's metrics.
+ */
+public class FrameDecoder {
+
+    public static final int DEFAULT_INITIAL_CAPACITY = 0x4000;
+
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    //the first byte of either header indicator, repeated across a word, and the masks used to find it in a word
+    private static final long HEADER_INDICATOR_BYTES = 0x7f7f7f7f7f7f7f7fL;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private final BufferPool.Account bufferAccount;
+    private final int initialCapacity;
+    //null unless owned by a link
+    private final LinkMetrics linkMetrics;
+
+    //undecoded data lies between the buffer's position and limit - free space lies between its limit and capacity.
+    //while the decoder is idle this is an empty placeholder, and no buffer is leased.
+    private ByteBuffer buffer = EMPTY_BUFFER;
+    //a view of the buffer, positioned over the data of the most recently decoded instruction
+    private ByteBuffer instructionView = EMPTY_BUFFER;
+
+    //adapts blocking streams for pools of direct buffers, which cannot be read into via an array
+    private InputStream adaptedInputStream = null;
+    private ReadableByteChannel inputStreamChannel = null;
+
+    //the number of bytes of the pending instruction already scanned for a trailer, so we need not rescan them
+    private int scannedLength = 0;
+
+    private boolean starved = false;
+    //set from losing our place in the stream until the next instruction is decoded, so that a recovery counts as a
+    //single resync however many false headers it skips on the way
+    private boolean resyncing = false;
+
+    private int sequenceIndex = -1;
+    private int checkValue = 0;
+
+    public FrameDecoder(BufferPool.Account bufferAccount) {
+        this(bufferAccount, DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public FrameDecoder(BufferPool.Account bufferAccount, int initialCapacity) {
+        this(bufferAccount, initialCapacity, null);
+    }
+
+    FrameDecoder(BufferPool.Account bufferAccount, LinkMetrics linkMetrics) {
+        this(bufferAccount, DEFAULT_INITIAL_CAPACITY, linkMetrics);
+    }
+
+    FrameDecoder(BufferPool.Account bufferAccount, int initialCapacity, LinkMetrics linkMetrics) {
+        this.bufferAccount = bufferAccount;
+        this.initialCapacity = Math.min(initialCapacity, MAX_PACKET_LENGTH);
+        this.linkMetrics = linkMetrics;
+    }
+
+    /**
+     * Read whatever is available from the stream, blocking until at least one byte arrives.
+     * If the buffer pool's memory budget is exhausted, this blocks or throws BufferBudgetExceededException according
+     * to the pool's policy.
+     * Any instruction view previously obtained from this decoder is invalid once this is called.
+     * @return the number of bytes read, or -1 at the end of the stream.
+     */
+    public int readFrom(InputStream inputStream) throws IOException {
+        prepareForRead(true);
+        if (!buffer.hasArray()) {
+            if (adaptedInputStream != inputStream) {
+                adaptedInputStream = inputStream;
+                inputStreamChannel = Channels.newChannel(inputStream);
+            }
+            return counted(readFrom(inputStreamChannel, buffer));
+        }
+        int limit = buffer.limit();
+        int bytesRead = inputStream.read(buffer.array(), buffer.arrayOffset() + limit, buffer.capacity() - limit);
+        if (bytesRead > 0)
+            buffer.limit(limit + bytesRead);
+        return counted(bytesRead);
+    }
+
+    /**
+     * Read whatever is available from the channel. This never blocks on the buffer pool - if the memory budget is
+     * exhausted nothing is read, and isStarved() returns true until a subsequent read succeeds.
+     * Any instruction view previously obtained from this decoder is invalid once this is called.
+     * @return the number of bytes read, possibly zero for a non-blocking channel, or -1 at the end of the stream.
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        if (!prepareForRead(false))
+            return 0;
+        return counted(readFrom(channel, buffer));
+    }
+
+    private int counted(int bytesRead) {
+        if (linkMetrics != null && bytesRead > 0)
+            linkMetrics.received(bytesRead);
+        return bytesRead;
+    }
+
+    private void resynced() {
+        if (resyncing)
+            return;
+        resyncing = true;
+        if (linkMetrics != null)
+            linkMetrics.resynced();
+    }
+
+    private static int readFrom(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int position = buffer.position();
+        buffer.position(buffer.limit());
+        buffer.limit(buffer.capacity());
+        int bytesRead;
+        try {
+            bytesRead = channel.read(buffer);
+        } finally {
+            buffer.limit(buffer.position());
+            buffer.position(position);
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Attempt to decode the next instruction from the data read so far.
+     * Both frame formats are recognised by their header indicator, so a link may switch format between instructions.
+     * Version 1 instructions are located by scanning for their trailer; version 2 instructions are located from the
+     * size in their header alone, and their trailer is only verified where it is expected to lie.
+     * Data which cannot belong to a valid instruction - a missing header indicator, or a trailer indicator which does
+     * not follow exactly the expected number of bytes after the header - is skipped.
+     * @return true if an instruction was decoded, in which case its data, sequence index and check value are available
+     * from instruction(), sequenceIndex() and checkValue(); false if more data is required.
+     */
+    public boolean nextFrame() {
+        while (buffer.remaining() >= HEADER_LENGTH) {
+            int start = buffer.position();
+            int headerIndicator = buffer.getShort(start) & 0xffff;
+            if (headerIndicator != HEADER_INDICATOR && headerIndicator != HEADER_INDICATOR_V2) {
+                skipToNextHeader(start + 1);
+                continue;
+            }
+            int expectedInstructionSize =
+                    ((buffer.get(start + HEADER_INDICATOR_LENGTH) & 0xff) << 16) |
+                            (buffer.getShort(start + HEADER_INDICATOR_LENGTH + 1) & 0xffff);
+            if (expectedInstructionSize > MAX_DATUM_SIZE) { //corrupted header
+                skipToNextHeader(start + 1);
+                continue;
+            }
+            int instructionStart = start + HEADER_LENGTH;
+            int instructionEnd;
+            if (headerIndicator == HEADER_INDICATOR_V2) {
+                instructionEnd = instructionStart + expectedInstructionSize;
+                if (instructionEnd + TRAILER_LENGTH > buffer.limit())
+                    return false; //incomplete - wait for more data
+                if (buffer.getInt(instructionEnd) != TRAILER_INDICATOR) { //corrupted
+                    skipToNextHeader(start + 1);
+                    continue;
+                }
+            } else {
+                int readingAt = instructionStart + scannedLength;
+                int limit = buffer.limit();
+                boolean trailerFound = false;
+                boolean corrupt = false;
+                while (readingAt + TRAILER_INDICATOR_LENGTH <= limit) {
+                    if (buffer.getInt(readingAt) == TRAILER_INDICATOR) {
+                        trailerFound = readingAt - instructionStart == expectedInstructionSize;
+                        corrupt = !trailerFound;
+                        break;
+                    }
+                    if (readingAt - instructionStart == expectedInstructionSize) {
+                        corrupt = true;
+                        break;
+                    }
+                    ++readingAt;
+                }
+                if (corrupt) {
+                    //begin looking for the next instruction from wherever this one went wrong
+                    resynced();
+                    skipTo(readingAt);
+                    continue;
+                }
+                if (!trailerFound || readingAt + TRAILER_LENGTH > limit) {
+                    //incomplete - remember how far we got and wait for more data
+                    scannedLength = readingAt - instructionStart;
+                    return false;
+                }
+                instructionEnd = readingAt;
+            }
+            sequenceIndex = buffer.getInt(start + HEADER_INDICATOR_LENGTH + HEADER_SIZE_LENGTH);
+            checkValue = buffer.getInt(instructionEnd + TRAILER_INDICATOR_LENGTH);
+            instructionView.clear();
+            instructionView.position(instructionStart);
+            instructionView.limit(instructionEnd);
+            skipTo(instructionEnd + TRAILER_LENGTH);
+            resyncing = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return a view of the data belonging to the instruction most recently decoded by nextFrame(). This is backed by
+     * the decoder's buffer, and is only valid until the next call to readFrom().
+     */
+    public ByteBuffer instruction() {
+        return instructionView;
+    }
+
+    public int sequenceIndex() {
+        return sequenceIndex;
+    }
+
+    public int checkValue() {
+        return checkValue;
+    }
+
+    /**
+     * @return true if the last read could not proceed for want of buffer memory.
+     */
+    public boolean isStarved() {
+        return starved;
+    }
+
+    /**
+     * @return the capacity the decoder requires for its next read, which callers may wait on when starved.
+     */
+    public int requiredCapacity() {
+        return buffer == EMPTY_BUFFER ? initialCapacity : Math.min(buffer.capacity() * 2, MAX_PACKET_LENGTH);
+    }
+
+    /**
+     * Return the buffer to the pool if no undecoded data remains - this keeps the footprint of idle links small.
+     */
+    public void trim() {
+        if (buffer != EMPTY_BUFFER && !buffer.hasRemaining())
+            release();
+    }
+
+    /**
+     * Return the buffer to the pool, discarding any undecoded data. This should be called when the link closes.
+     */
+    public void release() {
+        if (buffer == EMPTY_BUFFER) return;
+        bufferAccount.release(buffer);
+        setBuffer(EMPTY_BUFFER);
+        scannedLength = 0;
+    }
+
+    private void skipTo(int position) {
+        buffer.position(position);
+        scannedLength = 0;
+    }
+
+    /**
+     * Skip to the first byte from the given position which could begin a header indicator, or as near the end of the
+     * data as one could begin. Corrupted data is searched a word at a time, so resynchronising on a large payload does
+     * not cost a full decode attempt per byte.
+     */
+    private void skipToNextHeader(int position) {
+        resynced();
+        int limit = buffer.limit();
+        while (position + Long.BYTES <= limit) {
+            //a byte of the word is zero where it equals the first byte of the header indicator
+            long word = buffer.getLong(position) ^ HEADER_INDICATOR_BYTES;
+            long matches = (word - LOW_BITS) & ~word & HIGH_BITS;
+            if (matches != 0) {
+                //the buffer is big-endian, so the first matching byte is the most significant
+                position += Long.numberOfLeadingZeros(matches) >>> 3;
+                skipTo(position);
+                return;
+            }
+            position += Long.BYTES;
+        }
+        while (position < limit && buffer.get(position) != (byte) (HEADER_INDICATOR >>> 8))
+            ++position;
+        skipTo(position);
+    }
+
+    /**
+     * Ensure there is free space following the undecoded data, by moving that data to the front of the buffer or, if
+     * it already fills the buffer, by exchanging it for a larger one from the pool, up to the maximum packet length.
+     * A full buffer of maximum length cannot contain a valid instruction, so it is discarded.
+     * @param block whether to wait on the pool's memory budget
+     * @return true if there is free space, false if the pool could not provide a buffer.
+     */
+    private boolean prepareForRead(boolean block) {
+        starved = false;
+        if (buffer != EMPTY_BUFFER && !buffer.hasRemaining()) {
+            buffer.position(0);
+            buffer.limit(0);
+        }
+        if (buffer.limit() < buffer.capacity())
+            return true;
+        if (buffer.position() > 0) {
+            buffer.compact();
+            buffer.flip();
+        } else if (buffer.capacity() >= MAX_PACKET_LENGTH) {
+            resynced();
+            buffer.limit(0);
+            scannedLength = 0;
+        } else {
+            int requiredCapacity = requiredCapacity();
+            ByteBuffer grownBuffer =
+                    block ? bufferAccount.acquire(requiredCapacity) : bufferAccount.tryAcquire(requiredCapacity);
+            if (grownBuffer == null) {
+                starved = true;
+                return false;
+            }
+            grownBuffer.put(buffer);
+            grownBuffer.flip();
+            if (buffer != EMPTY_BUFFER)
+                bufferAccount.release(buffer);
+            setBuffer(grownBuffer);
+        }
+        return true;
+    }
+
+    private void setBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+        instructionView = buffer.duplicate();
+    }
+}
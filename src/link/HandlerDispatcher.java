@@ -0,0 +1,324 @@
+package link;
+
+import link.instructions.InstructionDatum;
+import link.instructions.KeyedInstructionDatum;
+import main.LogHub;
+
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Moves the deserialization and handling of received instructions off the threads on which links receive, so a slow
+ * handler stalls neither its own link's reads nor those of any link sharing its thread, and handling may use more
+ * cores than there are active links.
+ * Work is divided among a fixed set of stripes, each handling one instruction at a time on its own thread. Each link's
+ * instructions are handled by the same stripe in the order they arrive, unless they implement KeyedInstructionDatum,
+ * in which case they are handled in order by the stripe for their key - so instructions on different links, or with
+ * different keys, are handled in parallel.
+ * The instructions used internally by DataHandler and DataLink - the handshake, streams and acknowledgements - are
+ * still handled on the receiving thread, since the link's state must be updated before it receives anything further.
+ * At most capacity instructions may be queued or in handling at once - beyond that, receiving threads wait, so a
+ * backlog propagates back to the peers rather than growing without bound. A SelectorLoop must never wait, since it
+ * serves many other links, so links it receives for instead suspend their reads until capacity is released.
+ * A dispatcher may be shared among any number of DataHandlers - see DataHandler.setHandlerDispatcher().
+ */
+public final class HandlerDispatcher {
+
+    public static final int DEFAULT_CAPACITY = 0x1000;
+
+    //how often receiving threads waiting for capacity check whether the dispatcher has been terminated
+    private static final long TERMINATION_POLL_MILLIS = 100;
+
+    //the stripe whose thread is the current thread, if any
+    private static final ThreadLocal<Stripe> CURRENT_STRIPE = new ThreadLocal<>();
+
+    private final Stripe[] stripes;
+
+    private final Semaphore capacity;
+    //instructions queued without capacity by threads which must not wait, to be repaid as capacity is released
+    private final AtomicInteger overdrawnCapacity = new AtomicInteger(0);
+    private final Queue<Runnable> capacityListeners = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder handledCount = new LongAdder();
+    private final LongAdder handlingNanos = new LongAdder();
+    private final LongAdder queueingNanos = new LongAdder();
+    private final AtomicLong maxHandlingNanos = new AtomicLong(0);
+
+    private volatile boolean terminated = false;
+
+    /**
+     * Construct a dispatcher with one stripe per available processor.
+     */
+    public HandlerDispatcher() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param stripeCount the number of instructions which may be handled in parallel
+     * @param capacity the number of instructions which may be queued or in handling before receiving threads wait
+     */
+    public HandlerDispatcher(int stripeCount, int capacity) {
+        if (stripeCount < 1) throw new IllegalArgumentException("Stripe count must be at least 1: " + stripeCount);
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+        this.capacity = new Semaphore(capacity);
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; ++i) {
+            stripes[i] = new Stripe("HandlerDispatcher-" + i);
+            stripes[i].start();
+        }
+    }
+
+    /**
+     * @return true if the calling thread belongs to any dispatcher.
+     */
+    static boolean isDispatchThread() {
+        return CURRENT_STRIPE.get() != null;
+    }
+
+    /**
+     * Queue data received by a link, to be deserialized and handled by the link's stripe.
+     * @param data the transmitted data, which the dispatcher takes ownership of
+     */
+    void execute(DataHandler dataHandler, DataLink dataLink, byte[] data) {
+        if (!acquire(dataLink)) { //terminated - fall back to handling on the calling thread
+            InstructionDatum instructionDatum = dataHandler.decode(data, 0, data.length, dataLink);
+            if (instructionDatum != null)
+                dataHandler.handleNow(instructionDatum, dataLink);
+            return;
+        }
+        long queuedNanos = System.nanoTime();
+        stripeFor(dataLink).tasks.add(() -> {
+            long startNanos = System.nanoTime();
+            InstructionDatum instructionDatum;
+            try {
+                instructionDatum = dataHandler.decode(data, 0, data.length, dataLink);
+            } catch (RuntimeException e) {
+                LogHub.logNonFatalError("Instruction deserialization failure", e);
+                instructionDatum = null;
+            }
+            if (instructionDatum == null) { //nothing to handle
+                completed(queuedNanos, startNanos);
+                return;
+            }
+            handle(dataHandler, dataLink, instructionDatum, queuedNanos, startNanos);
+        });
+    }
+
+    /**
+     * Queue an instruction which was never packed, to be handled by the link's stripe.
+     */
+    void execute(DataHandler dataHandler, DataLink dataLink, InstructionDatum instructionDatum) {
+        if (!acquire(dataLink)) {
+            dataHandler.handleNow(instructionDatum, dataLink);
+            return;
+        }
+        long queuedNanos = System.nanoTime();
+        stripeFor(dataLink).tasks.add(
+                () -> handle(dataHandler, dataLink, instructionDatum, queuedNanos, System.nanoTime())
+        );
+    }
+
+    /**
+     * Handle an instruction on the current stripe, or if it is keyed to another stripe, queue it there instead.
+     * Either way, it remains accounted against the dispatcher's capacity until it has been handled.
+     */
+    private void handle(
+            DataHandler dataHandler,
+            DataLink dataLink,
+            InstructionDatum instructionDatum,
+            long queuedNanos,
+            long startNanos
+    ) {
+        Object key = instructionDatum instanceof KeyedInstructionDatum
+                ? ((KeyedInstructionDatum) instructionDatum).dispatchKey()
+                : null;
+        Stripe keyStripe = key == null ? null : stripes[index(key.hashCode())];
+        if (keyStripe != null && keyStripe != CURRENT_STRIPE.get()) {
+            long decodingNanos = System.nanoTime() - startNanos;
+            keyStripe.tasks.add(() -> handle(
+                    dataHandler,
+                    dataLink,
+                    instructionDatum,
+                    queuedNanos,
+                    System.nanoTime() - decodingNanos
+            ));
+            return;
+        }
+        try {
+            dataHandler.handleNow(instructionDatum, dataLink);
+        } catch (RuntimeException e) {
+            LogHub.logNonFatalError("Instruction handling failure", e);
+        } finally {
+            completed(queuedNanos, startNanos);
+        }
+    }
+
+    /**
+     * Record the handling of an instruction, and release its share of the capacity.
+     */
+    private void completed(long queuedNanos, long startNanos) {
+        long endNanos = System.nanoTime();
+        long elapsedNanos = endNanos - startNanos;
+        handledCount.increment();
+        handlingNanos.add(elapsedNanos);
+        queueingNanos.add(endNanos - queuedNanos - elapsedNanos);
+        long max;
+        while (elapsedNanos > (max = maxHandlingNanos.get()))
+            if (maxHandlingNanos.compareAndSet(max, elapsedNanos))
+                break;
+        release();
+    }
+
+    /**
+     * Take capacity to queue another instruction received by the dataLink, waiting for it if necessary - unless the
+     * link would rather suspend its reads, in which case the instruction is queued regardless.
+     * @return false if the dispatcher has been terminated, or the calling thread was interrupted while waiting.
+     */
+    private boolean acquire(DataLink dataLink) {
+        if (!capacity.tryAcquire()) {
+            if (dataLink.suspendForDispatch(this))
+                overdrawnCapacity.incrementAndGet();
+            else {
+                try {
+                    while (!capacity.tryAcquire(TERMINATION_POLL_MILLIS, TimeUnit.MILLISECONDS))
+                        if (terminated)
+                            return false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        if (terminated) {
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Release capacity taken by acquire(), repaying any overdrawn first, then notify those waiting for it.
+     */
+    private void release() {
+        int overdrawn;
+        while ((overdrawn = overdrawnCapacity.get()) > 0)
+            if (overdrawnCapacity.compareAndSet(overdrawn, overdrawn - 1))
+                return;
+        capacity.release();
+        Runnable capacityListener;
+        while ((terminated || capacity.availablePermits() > 0) && (capacityListener = capacityListeners.poll()) != null)
+            capacityListener.run();
+    }
+
+    /**
+     * Run the specified task once, as soon as there is capacity to queue another instruction - for receiving threads
+     * which cannot wait for it. The task is run either immediately or by whichever thread next releases capacity, and
+     * should do no more than schedule a retry.
+     */
+    void whenAvailable(Runnable task) {
+        capacityListeners.add(task);
+        //if capacity was released before we got here, nobody else will run the task
+        if ((terminated || capacity.availablePermits() > 0) && capacityListeners.remove(task))
+            task.run();
+    }
+
+    private Stripe stripeFor(DataLink dataLink) {
+        return stripes[index(System.identityHashCode(dataLink))];
+    }
+
+    private int index(int hash) {
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    public int countStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * @return the number of instructions waiting to be handled by all stripes.
+     */
+    public int getQueueDepth() {
+        int queueDepth = 0;
+        for (Stripe stripe : stripes)
+            queueDepth += stripe.tasks.size();
+        return queueDepth;
+    }
+
+    /**
+     * @return the number of instructions waiting to be handled by the specified stripe.
+     */
+    public int getQueueDepth(int stripe) {
+        return stripes[stripe].tasks.size();
+    }
+
+    /**
+     * @return the number of instructions handled, including any which could not be deserialized.
+     */
+    public long getHandledCount() {
+        return handledCount.sum();
+    }
+
+    /**
+     * @return the mean time taken to deserialize and handle an instruction, in nanoseconds.
+     */
+    public long getAverageHandlingNanos() {
+        long handled = handledCount.sum();
+        return handled == 0 ? 0 : handlingNanos.sum() / handled;
+    }
+
+    /**
+     * @return the longest time taken to deserialize and handle a single instruction, in nanoseconds.
+     */
+    public long getMaxHandlingNanos() {
+        return maxHandlingNanos.get();
+    }
+
+    /**
+     * @return the mean time an instruction waited in its queue before handling began, in nanoseconds.
+     */
+    public long getAverageQueueingNanos() {
+        long handled = handledCount.sum();
+        return handled == 0 ? 0 : queueingNanos.sum() / handled;
+    }
+
+    /**
+     * Stop all stripes, discarding any instructions still queued. Anything dispatched from now on is handled on the
+     * receiving thread.
+     */
+    public void terminate() {
+        terminated = true;
+        for (Stripe stripe : stripes)
+            stripe.interrupt();
+        Runnable capacityListener;
+        while ((capacityListener = capacityListeners.poll()) != null)
+            capacityListener.run();
+    }
+
+    private final class Stripe extends Thread {
+
+        private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+
+        private Stripe(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            CURRENT_STRIPE.set(this);
+            while (!terminated) {
+                try {
+                    tasks.take().run();
+                } catch (InterruptedException e) {
+                    return; //terminated
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package link;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds, recorded from any number of threads without locking.
+ * Durations are counted in log-linear buckets, in the manner of HdrHistogram - each power of two is divided into
+ * 2^subBucketBits linear sub-buckets, so percentiles are reported as the upper bound of the sub-bucket they fall in,
+ * never more than 2^-subBucketBits above the true value. By default that is 1/16th, and a histogram occupies under
+ * 5 KB however many durations it records. Durations of 2^MAX_BITS nanoseconds (about 18 minutes) or more share the
+ * last bucket, though the maximum is kept exactly.
+ * Buckets are plain counts in an array, rather than a LongAdder each, which would cost more memory than the counts
+ * themselves. Histograms recorded by many threads at once - such as the process-wide totals of LinkMetrics - keep a
+ * number of such arrays, each thread counting in its own, so they share no hot cache line - see striped().
+ */
+public final class LatencyHistogram {
+
+    public static final int DEFAULT_SUB_BUCKET_BITS = 4;
+    public static final int MAX_SUB_BUCKET_BITS = 10;
+
+    //durations of more significant bits than this are counted in the last bucket
+    private static final int MAX_BITS = 40;
+
+    private static final int STRIPE_COUNT = stripeCount();
+
+    private final int subBucketBits;
+    private final int subBucketCount;
+    //durations below subBucketCount are counted exactly, and each power of two above it in subBucketCount buckets
+    private final int bucketCount;
+
+    private final AtomicLongArray[] stripes;
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+    public LatencyHistogram() {
+        this(DEFAULT_SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @param subBucketBits the log2 of the number of sub-buckets into which each power of two is divided, from 0 to
+     * MAX_SUB_BUCKET_BITS - each more halves the error in reported percentiles, and doubles the memory occupied.
+     */
+    public LatencyHistogram(int subBucketBits) {
+        this(subBucketBits, 1);
+    }
+
+    private LatencyHistogram(int subBucketBits, int stripeCount) {
+        if (subBucketBits < 0 || subBucketBits > MAX_SUB_BUCKET_BITS)
+            throw new IllegalArgumentException("Invalid sub-bucket bits: " + subBucketBits);
+        this.subBucketBits = subBucketBits;
+        subBucketCount = 1 << subBucketBits;
+        bucketCount = (MAX_BITS - subBucketBits + 1) * subBucketCount;
+        stripes = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; ++i)
+            stripes[i] = new AtomicLongArray(bucketCount);
+    }
+
+    /**
+     * @return a histogram of the default precision, with a set of buckets for each of a number of threads - for
+     * histograms which many threads record at once.
+     */
+    static LatencyHistogram striped() {
+        return new LatencyHistogram(DEFAULT_SUB_BUCKET_BITS, STRIPE_COUNT);
+    }
+
+    /**
+     * A view of a histogram's contents, taken without pausing recording - so durations recorded meanwhile may be
+     * reflected in some of its statistics but not others.
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final long meanNanos;
+        private final long maxNanos;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long p999Nanos;
+
+        private Snapshot(LatencyHistogram latencyHistogram, long[] counts, long totalNanos, long maxNanos) {
+            long count = 0;
+            for (long bucketCount : counts)
+                count += bucketCount;
+            this.count = count;
+            this.meanNanos = count == 0 ? 0 : totalNanos / count;
+            this.maxNanos = maxNanos;
+            p50Nanos = percentile(latencyHistogram, counts, count, 0.5, maxNanos);
+            p99Nanos = percentile(latencyHistogram, counts, count, 0.99, maxNanos);
+            p999Nanos = percentile(latencyHistogram, counts, count, 0.999, maxNanos);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return meanNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getP50Nanos() {
+            return p50Nanos;
+        }
+
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        public long getP999Nanos() {
+            return p999Nanos;
+        }
+
+        private static long percentile(
+                LatencyHistogram latencyHistogram,
+                long[] counts,
+                long count,
+                double fraction,
+                long maxNanos
+        ) {
+            if (count == 0)
+                return 0;
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(latencyHistogram.upperBound(i), maxNanos);
+            }
+            return maxNanos;
+        }
+    }
+
+    /**
+     * Record a duration - negative durations, from a clock adjustment, are recorded as zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        stripe().incrementAndGet(index(nanos));
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * Add everything recorded by another histogram to this one - to the precision of the coarser of the two.
+     */
+    void add(LatencyHistogram latencyHistogram) {
+        AtomicLongArray stripe = stripe();
+        for (AtomicLongArray otherStripe : latencyHistogram.stripes)
+            for (int i = 0; i < latencyHistogram.bucketCount; ++i) {
+                long count = otherStripe.get(i);
+                if (count != 0)
+                    stripe.addAndGet(index(latencyHistogram.lowerBound(i)), count);
+            }
+        totalNanos.add(latencyHistogram.totalNanos.sum());
+        maxNanos.accumulate(latencyHistogram.maxNanos.get());
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[bucketCount];
+        for (AtomicLongArray stripe : stripes)
+            for (int i = 0; i < bucketCount; ++i)
+                counts[i] += stripe.get(i);
+        return new Snapshot(this, counts, totalNanos.sum(), maxNanos.get());
+    }
+
+    /**
+     * @return the buckets the calling thread counts in.
+     */
+    private AtomicLongArray stripe() {
+        if (stripes.length == 1)
+            return stripes[0];
+        return stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+    }
+
+    private int index(long nanos) {
+        if (nanos < subBucketCount)
+            return (int) nanos;
+        //the number of low bits below the subBucketBits + 1 most significant, which this bucket does not distinguish
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos) - subBucketBits;
+        int index = (shift + 1) * subBucketCount + (int) (nanos >>> shift) - subBucketCount;
+        return Math.min(index, bucketCount - 1);
+    }
+
+    /**
+     * @return the least duration counted by the bucket at the specified index.
+     */
+    private long lowerBound(int index) {
+        if (index < subBucketCount)
+            return index;
+        int shift = index / subBucketCount - 1;
+        long mantissa = subBucketCount + index % subBucketCount;
+        return mantissa << shift;
+    }
+
+    /**
+     * @return the greatest duration counted by the bucket at the specified index.
+     */
+    private long upperBound(int index) {
+        if (index == bucketCount - 1)
+            return Long.MAX_VALUE;
+        return lowerBound(index + 1) - 1;
+    }
+
+    /**
+     * @return the least power of two no smaller than the number of processors.
+     */
+    private static int stripeCount() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripeCount = 1;
+        while (stripeCount < processors)
+            stripeCount <<= 1;
+        return stripeCount;
+    }
+}
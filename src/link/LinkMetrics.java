@@ -0,0 +1,492 @@
+package link;
+
+import link.instructions.PackObserver;
+import main.LogHub;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what a link transmits and receives, what it drops and why, and how long it spends packing, unpacking and
+ * handling instructions. Every link has its own metrics - see DataLink.getMetrics() - and everything recorded by any
+ * link is also recorded by the process-wide totals - see getTotal(). Links may also record into a running aggregate,
+ * such as a Server keeps of the links it accepts, which keeps what they recorded once they close - see newAggregate().
+ * The metrics of any number of links may be summed as they stand with aggregate().
+ * Counters are LongAdders, and durations are recorded in LatencyHistograms - striped by thread in the totals and
+ * aggregates, which every link records into - so recording from many threads at once never contends on a lock or a
+ * single cache line. Timing costs two reads of the clock per duration, and may be disabled with setTimed().
+ * Metrics may be read directly, flattened into a map for scraping with toMap(), or published as MXBeans with
+ * register().
+ */
+public final class LinkMetrics implements LinkMetricsMXBean, PackObserver {
+
+    public static final String JMX_DOMAIN = "ShadowComm";
+
+    //the start time of a duration which is not being timed
+    static final long UNTIMED = Long.MIN_VALUE;
+
+    /**
+     * The reasons for which a received frame may be dropped.
+     */
+    public enum DropReason {
+        CHECKSUM_MISMATCH, //the check value did not match the data
+        AUTHENTICATION_FAILURE, //an authenticated cipher suite rejected the data - corrupted, forged or replayed
+        SEQUENCE_MISMATCH, //the sequence index in the header did not match the acknowledgement block
+        DUPLICATE, //already received, or too far ahead of the acknowledgement window to hold
+        TRUNCATED, //too short to carry an acknowledgement block
+        MALFORMED_COMPRESSION, //the data could not be decompressed
+        UNDECODABLE //the data could not be deserialized into an instruction
+    }
+
+    private enum Counter {
+        BYTES_RECEIVED,
+        BYTES_TRANSMITTED,
+        FRAMES_RECEIVED,
+        FRAMES_TRANSMITTED,
+        FRAMES_RETRANSMITTED,
+        FRAMES_SHED,
+        RESYNCS
+    }
+
+    private enum Latency {
+        SERIALIZATION,
+        ENCRYPTION,
+        DECRYPTION,
+        DESERIALIZATION,
+        HANDLING
+    }
+
+    private static final LinkMetrics TOTAL = new LinkMetrics(null, null, null);
+
+    private static volatile boolean timed = true;
+
+    //the link whose queues are reported, or null for totals and aggregates
+    private final DataLink dataLink;
+    //the totals, which record everything this does, or null if this is the totals or an aggregate
+    private final LinkMetrics parent;
+    //the running aggregate this link has joined, which records everything this does from then on, or null
+    private volatile LinkMetrics runningAggregate = null;
+    //the links which have joined this running aggregate and not yet closed, or null if this is not a running aggregate
+    private final Set<LinkMetrics> members;
+
+    private final LongAdder[] counters = newAdders(Counter.values().length);
+    private final LongAdder[] framesDropped = newAdders(DropReason.values().length);
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Latency.values().length];
+
+    //the summed queue depths of the links an aggregate was taken from
+    private long aggregatePendingTransmitBytes = 0;
+    private long aggregatePendingReceptions = 0;
+    private long aggregateUnacknowledgedCount = 0;
+
+    private volatile ObjectName objectName = null;
+
+    private LinkMetrics(DataLink dataLink, LinkMetrics parent, Set<LinkMetrics> members) {
+        this.dataLink = dataLink;
+        this.parent = parent;
+        this.members = members;
+        for (int i = 0; i < latencies.length; ++i) //a link's own histograms are recorded by few threads at once
+            latencies[i] = dataLink == null ? LatencyHistogram.striped() : new LatencyHistogram();
+    }
+
+    LinkMetrics(DataLink dataLink) {
+        this(dataLink, TOTAL, null);
+    }
+
+    /**
+     * @return everything recorded by every link in this process since it started. The totals report no queue depths.
+     */
+    public static LinkMetrics getTotal() {
+        return TOTAL;
+    }
+
+    /**
+     * @return a running aggregate, empty until links join it - see join(). It records everything its links record
+     * once they have joined, and keeps it after they close, while its queue depths are those of its open links.
+     */
+    public static LinkMetrics newAggregate() {
+        return new LinkMetrics(null, null, ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * Sum the metrics of a number of links, such as those gathered by a DataLinkAggregator, as they stand now.
+     * @return a detached set of metrics, which does not change as the links continue to record.
+     */
+    public static LinkMetrics aggregate(Iterable<? extends DataLink> dataLinks) {
+        LinkMetrics aggregate = new LinkMetrics(null, null, null);
+        for (DataLink dataLink : dataLinks) {
+            LinkMetrics linkMetrics = dataLink.getMetrics();
+            for (int i = 0; i < aggregate.counters.length; ++i)
+                aggregate.counters[i].add(linkMetrics.counters[i].sum());
+            for (int i = 0; i < aggregate.framesDropped.length; ++i)
+                aggregate.framesDropped[i].add(linkMetrics.framesDropped[i].sum());
+            for (int i = 0; i < aggregate.latencies.length; ++i)
+                aggregate.latencies[i].add(linkMetrics.latencies[i]);
+            aggregate.aggregatePendingTransmitBytes += linkMetrics.getPendingTransmitBytes();
+            aggregate.aggregatePendingReceptions += linkMetrics.getPendingReceptions();
+            aggregate.aggregateUnacknowledgedCount += linkMetrics.getUnacknowledgedCount();
+        }
+        return aggregate;
+    }
+
+    /**
+     * Record everything this link records from now on into a running aggregate as well, until the link closes -
+     * leaving any aggregate it joined before.
+     * @throws IllegalArgumentException if the aggregate was not created by newAggregate().
+     * @throws IllegalStateException if these are not a link's metrics.
+     */
+    public synchronized void join(LinkMetrics runningAggregate) {
+        if (runningAggregate.members == null)
+            throw new IllegalArgumentException("Only running aggregates may be joined.");
+        if (dataLink == null)
+            throw new IllegalStateException("Only a link's metrics may join an aggregate.");
+        leave();
+        this.runningAggregate = runningAggregate;
+        runningAggregate.members.add(this);
+    }
+
+    /**
+     * Set whether links in this process time their work. They do by default - counters are kept regardless.
+     */
+    public static void setTimed(boolean timed) {
+        LinkMetrics.timed = timed;
+    }
+
+    public static boolean isTimed() {
+        return timed;
+    }
+
+    /**
+     * Publish these metrics as an MXBean named ShadowComm:type=LinkMetrics,name=[name], on the platform MBean server.
+     * Links withdraw their metrics when they close.
+     * @throws IllegalArgumentException if the name is not a valid ObjectName value.
+     * @throws IllegalStateException if other metrics are registered under the name.
+     */
+    public synchronized void register(String name) {
+        unregister();
+        ObjectName objectName;
+        try {
+            objectName = new ObjectName(JMX_DOMAIN + ":type=LinkMetrics,name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException("Invalid metrics name: " + name, e);
+        } catch (InstanceAlreadyExistsException e) {
+            throw new IllegalStateException("Metrics already registered as " + name, e);
+        } catch (JMException e) {
+            LogHub.logNonFatalError("Metrics registration failure", e);
+            return;
+        }
+        this.objectName = objectName;
+    }
+
+    /**
+     * Withdraw these metrics from JMX, if they are registered.
+     */
+    public synchronized void unregister() {
+        ObjectName objectName = this.objectName;
+        if (objectName == null) return;
+        this.objectName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (InstanceNotFoundException e) {
+            //unregistered by someone else
+        } catch (JMException e) {
+            LogHub.logNonFatalError("Metrics unregistration failure", e);
+        }
+    }
+
+    /**
+     * @return every metric by a dotted name, such as frames.dropped.checksum_mismatch or latency.handling.p99_nanos, in
+     * a consistent order.
+     */
+    public Map<String, Long> toMap() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("bytes.received", getBytesReceived());
+        map.put("bytes.transmitted", getBytesTransmitted());
+        map.put("frames.received", getFramesReceived());
+        map.put("frames.transmitted", getFramesTransmitted());
+        map.put("frames.retransmitted", getFramesRetransmitted());
+        map.put("frames.shed", getFramesShed());
+        map.put("frames.dropped", getFramesDropped());
+        for (DropReason dropReason : DropReason.values())
+            map.put("frames.dropped." + name(dropReason), framesDropped[dropReason.ordinal()].sum());
+        map.put("resyncs", getResyncs());
+        for (Latency latency : Latency.values()) {
+            String prefix = "latency." + name(latency) + ".";
+            LatencyHistogram.Snapshot snapshot = latencies[latency.ordinal()].snapshot();
+            map.put(prefix + "count", snapshot.getCount());
+            map.put(prefix + "mean_nanos", snapshot.getMeanNanos());
+            map.put(prefix + "max_nanos", snapshot.getMaxNanos());
+            map.put(prefix + "p50_nanos", snapshot.getP50Nanos());
+            map.put(prefix + "p99_nanos", snapshot.getP99Nanos());
+            map.put(prefix + "p999_nanos", snapshot.getP999Nanos());
+        }
+        map.put("queue.pending_transmit_bytes", getPendingTransmitBytes());
+        map.put("queue.pending_receptions", getPendingReceptions());
+        map.put("queue.unacknowledged", getUnacknowledgedCount());
+        return map;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return sum(Counter.BYTES_RECEIVED);
+    }
+
+    @Override
+    public long getBytesTransmitted() {
+        return sum(Counter.BYTES_TRANSMITTED);
+    }
+
+    @Override
+    public long getFramesReceived() {
+        return sum(Counter.FRAMES_RECEIVED);
+    }
+
+    @Override
+    public long getFramesTransmitted() {
+        return sum(Counter.FRAMES_TRANSMITTED);
+    }
+
+    @Override
+    public long getFramesRetransmitted() {
+        return sum(Counter.FRAMES_RETRANSMITTED);
+    }
+
+    /**
+     * @return the number of frames discarded before transmission, under the DROP_OLDEST slow consumer policy.
+     */
+    @Override
+    public long getFramesShed() {
+        return sum(Counter.FRAMES_SHED);
+    }
+
+    @Override
+    public long getFramesDropped() {
+        long sum = 0;
+        for (LongAdder adder : framesDropped)
+            sum += adder.sum();
+        return sum;
+    }
+
+    public long getFramesDropped(DropReason dropReason) {
+        return framesDropped[dropReason.ordinal()].sum();
+    }
+
+    @Override
+    public Map<String, Long> getFramesDroppedByReason() {
+        Map<DropReason, Long> map = new EnumMap<>(DropReason.class);
+        for (DropReason dropReason : DropReason.values())
+            map.put(dropReason, getFramesDropped(dropReason));
+        Map<String, Long> namedMap = new LinkedHashMap<>();
+        map.forEach((dropReason, count) -> namedMap.put(dropReason.name(), count));
+        return Collections.unmodifiableMap(namedMap);
+    }
+
+    /**
+     * @return the number of times the receiving side's frame decoder lost its place in the stream and had to search
+     * for the next header - once per recovery, however many false headers the search passed over.
+     */
+    @Override
+    public long getResyncs() {
+        return sum(Counter.RESYNCS);
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getSerializationLatency() {
+        return latencies[Latency.SERIALIZATION.ordinal()].snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getEncryptionLatency() {
+        return latencies[Latency.ENCRYPTION.ordinal()].snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getDecryptionLatency() {
+        return latencies[Latency.DECRYPTION.ordinal()].snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getDeserializationLatency() {
+        return latencies[Latency.DESERIALIZATION.ordinal()].snapshot();
+    }
+
+    /**
+     * @return the time taken by DataHandlers to handle received instructions, excluding any time spent queued for a
+     * HandlerDispatcher.
+     */
+    @Override
+    public LatencyHistogram.Snapshot getHandlingLatency() {
+        return latencies[Latency.HANDLING.ordinal()].snapshot();
+    }
+
+    /**
+     * @return the number of bytes transmitted but not yet written to the network.
+     */
+    @Override
+    public long getPendingTransmitBytes() {
+        if (members != null) {
+            long sum = 0;
+            for (LinkMetrics member : members)
+                sum += member.getPendingTransmitBytes();
+            return sum;
+        }
+        return dataLink == null ? aggregatePendingTransmitBytes : dataLink.getPendingTransmitBytes();
+    }
+
+    /**
+     * @return the number of transmissions queued for a local link to receive.
+     */
+    @Override
+    public long getPendingReceptions() {
+        if (members != null) {
+            long sum = 0;
+            for (LinkMetrics member : members)
+                sum += member.getPendingReceptions();
+            return sum;
+        }
+        return dataLink == null ? aggregatePendingReceptions : dataLink.getPendingReceptions();
+    }
+
+    /**
+     * @return the number of instructions transmitted but not yet acknowledged by the peer.
+     */
+    @Override
+    public long getUnacknowledgedCount() {
+        if (members != null) {
+            long sum = 0;
+            for (LinkMetrics member : members)
+                sum += member.getUnacknowledgedCount();
+            return sum;
+        }
+        if (dataLink == null)
+            return aggregateUnacknowledgedCount;
+        AcknowledgementWindow acknowledgementWindow = dataLink.getAcknowledgementWindow();
+        return acknowledgementWindow == null ? 0 : acknowledgementWindow.getUnacknowledgedCount();
+    }
+
+    /**
+     * Withdraw this link's queues from its running aggregate, if it joined one - the link has closed. What it has
+     * recorded remains, as does anything it records while closing.
+     */
+    synchronized void leave() {
+        LinkMetrics runningAggregate = this.runningAggregate;
+        if (runningAggregate != null)
+            runningAggregate.members.remove(this);
+    }
+
+    /**
+     * @return the start time of a duration to be timed, or UNTIMED if timing is disabled.
+     */
+    static long startTiming() {
+        return timed ? System.nanoTime() : UNTIMED;
+    }
+
+    /**
+     * @return this, to be notified of the cost of packing, or null if timing is disabled.
+     */
+    PackObserver packObserver() {
+        return timed ? this : null;
+    }
+
+    @Override
+    public void packed(long serializationNanos, long encryptionNanos) {
+        record(Latency.SERIALIZATION, serializationNanos);
+        record(Latency.ENCRYPTION, encryptionNanos);
+    }
+
+    void received(int byteCount) {
+        add(Counter.BYTES_RECEIVED, byteCount);
+    }
+
+    void frameReceived() {
+        add(Counter.FRAMES_RECEIVED, 1);
+    }
+
+    void frameTransmitted(int byteCount) {
+        add(Counter.FRAMES_TRANSMITTED, 1);
+        add(Counter.BYTES_TRANSMITTED, byteCount);
+    }
+
+    void framesRetransmitted(int frameCount) {
+        add(Counter.FRAMES_RETRANSMITTED, frameCount);
+    }
+
+    void framesShed(int frameCount) {
+        add(Counter.FRAMES_SHED, frameCount);
+    }
+
+    void frameDropped(DropReason dropReason) {
+        framesDropped[dropReason.ordinal()].increment();
+        LinkMetrics runningAggregate = this.runningAggregate;
+        if (runningAggregate != null)
+            runningAggregate.frameDropped(dropReason);
+        if (parent != null)
+            parent.frameDropped(dropReason);
+    }
+
+    void resynced() {
+        add(Counter.RESYNCS, 1);
+    }
+
+    void decrypted(long startNanos) {
+        recordSince(Latency.DECRYPTION, startNanos);
+    }
+
+    void deserialized(long startNanos) {
+        recordSince(Latency.DESERIALIZATION, startNanos);
+    }
+
+    void handled(long startNanos) {
+        recordSince(Latency.HANDLING, startNanos);
+    }
+
+    private void add(Counter counter, long count) {
+        counters[counter.ordinal()].add(count);
+        LinkMetrics runningAggregate = this.runningAggregate;
+        if (runningAggregate != null)
+            runningAggregate.add(counter, count);
+        if (parent != null)
+            parent.add(counter, count);
+    }
+
+    private long sum(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    private void recordSince(Latency latency, long startNanos) {
+        if (startNanos != UNTIMED)
+            record(latency, System.nanoTime() - startNanos);
+    }
+
+    private void record(Latency latency, long nanos) {
+        latencies[latency.ordinal()].record(nanos);
+        LinkMetrics runningAggregate = this.runningAggregate;
+        if (runningAggregate != null)
+            runningAggregate.record(latency, nanos);
+        if (parent != null)
+            parent.record(latency, nanos);
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; ++i)
+            adders[i] = new LongAdder();
+        return adders;
+    }
+
+    private static String name(Enum<?> e) {
+        return e.name().toLowerCase(Locale.ROOT);
+    }
+}
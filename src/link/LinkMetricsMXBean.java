@@ -0,0 +1,46 @@
+package link;
+
+import java.util.Map;
+
+/**
+ * The management interface through which LinkMetrics are published over JMX - see LinkMetrics.register().
+ */
+public interface LinkMetricsMXBean {
+
+    long getBytesReceived();
+
+    long getBytesTransmitted();
+
+    long getFramesReceived();
+
+    long getFramesTransmitted();
+
+    long getFramesRetransmitted();
+
+    long getFramesShed();
+
+    long getFramesDropped();
+
+    /**
+     * @return the number of frames dropped for each LinkMetrics.DropReason.
+     */
+    Map<String, Long> getFramesDroppedByReason();
+
+    long getResyncs();
+
+    LatencyHistogram.Snapshot getSerializationLatency();
+
+    LatencyHistogram.Snapshot getEncryptionLatency();
+
+    LatencyHistogram.Snapshot getDecryptionLatency();
+
+    LatencyHistogram.Snapshot getDeserializationLatency();
+
+    LatencyHistogram.Snapshot getHandlingLatency();
+
+    long getPendingTransmitBytes();
+
+    long getPendingReceptions();
+
+    long getUnacknowledgedCount();
+}
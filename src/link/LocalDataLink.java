@@ -1,97 +1,241 @@
 package link;
 
 import crypto.ByteCipher;
+import crypto.CipherSuite;
+import crypto.LinkCipher;
 import link.instructions.InstructionDatum;
-import main.LogHub;
 
-import java.util.ArrayDeque;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * The local version of DataLink.
- * All data is stored in byte arrays, and the link maintains pointers to each array.
- * LocalDataLinks must be paired via the static method pair().
+ * All data is passed as byte arrays through a bounded, lock-free queue owned by the receiving link, which its receive
+ * loop waits on according to a WaitStrategy rather than polling.
+ * LocalDataLinks must be paired via the static method pair(), or via pairByReference() to pass InstructionData
+ * directly to the paired link's DataHandler without packing them at all.
+ * A link's watermarks apply to the bytes of packed data pending in the paired link's queue. Since that queue is also
+ * bounded in the number of transmissions, the link's SlowConsumerPolicy applies whenever it is full, as well as while
+ * the link is unwritable - instructions passed by reference are bounded only thus.
+ * Threads which the paired link may itself be waiting on - either link's receive thread, or a HandlerDispatcher's -
+ * never wait for space in its queue, lest two links replying to one another each wait for the other forever. Their
+ * transmissions overflow into an unbounded queue instead, which the paired link moves into its own as it makes room.
  */
 public class LocalDataLink extends DataLink {
 
-    private class ByteArrayPointer {
-        ArrayDeque<byte[]> pendingTransmissions = new ArrayDeque<>();
+    //holds packed data as byte arrays, or InstructionData passed by reference
+    private final LocalRingBuffer<Object> input;
+    private LocalRingBuffer<Object> output = null;
+    private LocalDataLink peer = null;
 
-        void pendTransmission(byte[] val) {
-            pendingTransmissions.addLast(val);
-        }
-        boolean isPendingTransmissions() {
-            return !pendingTransmissions.isEmpty();
-        }
-        byte[] getNextPendingTransmission() {
-            return pendingTransmissions.removeFirst();
-        }
-    }
+    //transmissions which found the paired link's queue full on a thread which must not wait, in order - all later
+    //transmissions follow them here until they have been moved into the paired link's queue
+    private final Queue<Object> overflow = new ConcurrentLinkedQueue<>();
 
-    private ByteArrayPointer input = new ByteArrayPointer();
-    private ByteArrayPointer output = new ByteArrayPointer();
+    private boolean passByReference = false;
 
     public LocalDataLink(DataHandler dataHandler) {
+        this(dataHandler, LocalRingBuffer.DEFAULT_CAPACITY, WaitStrategy.BACKOFF);
+    }
+
+    /**
+     * @param queueCapacity the maximum number of transmissions which may be pending reception by this link, beyond
+     *                      which the paired link waits to transmit, or overflows if it must not wait
+     * @param waitStrategy how this link's receive loop waits for transmissions, and how the paired link waits for
+     *                     space in a full queue
+     */
+    public LocalDataLink(DataHandler dataHandler, int queueCapacity, WaitStrategy waitStrategy) {
         super(dataHandler);
+        input = new LocalRingBuffer<>(queueCapacity, waitStrategy);
+    }
+
+    public boolean isPassByReference() {
+        return passByReference;
     }
 
     /**
-     * Reception is accomplished by looping infinitely, checking with a delay for any changes to the input array.
-     * When the input array has data, it's immediately passed on to the associated DataHandler, then cleared from the
-     * input array.
+     * Reception is accomplished by taking each transmission from the input queue as soon as it arrives, and passing it
+     * on to the associated DataHandler. The loop ends when the link is terminated.
      */
     @Override
     protected void receive() {
         do {
-            while (!input.isPendingTransmissions()) { //wait until we have something to do
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    LogHub.logFatalCrash("Thread interrupted during local data reception.", e);
+            Object transmission = input.take();
+            if (transmission == null) return; //terminated
+            peer.drainOverflow();
+            if (transmission instanceof InstructionDatum) {
+                METRICS.frameReceived();
+                DATA_HANDLER.dispatch((InstructionDatum) transmission, this);
+                continue;
+            }
+            byte[] data = (byte[]) transmission;
+            input.addPendingBytes(-data.length);
+            peer.updateWritability();
+            METRICS.received(data.length);
+            METRICS.frameReceived();
+            int offset = InstructionDatum.HEADER_LENGTH;
+            int length = data.length - (InstructionDatum.HEADER_LENGTH + InstructionDatum.TRAILER_LENGTH);
+            if (encrypted) { //decrypt if necessary
+                long startNanos = LinkMetrics.startTiming();
+                int sequenceIndex = InstructionDatum.toInt(
+                        data,
+                        InstructionDatum.HEADER_INDICATOR_LENGTH + InstructionDatum.HEADER_SIZE_LENGTH,
+                        InstructionDatum.HEADER_SEQUENCE_LENGTH
+                );
+                data = linkCipher.decrypt(data, offset, length, sequenceIndex);
+                METRICS.decrypted(startNanos);
+                if (data == null) { //failed authentication
+                    METRICS.frameDropped(LinkMetrics.DropReason.AUTHENTICATION_FAILURE);
+                    continue;
                 }
+                offset = 0;
+                length = data.length;
             }
-            byte[] data = input.getNextPendingTransmission();
-            int remainderSize = data.length - (InstructionDatum.HEADER_LENGTH + InstructionDatum.TRAILER_LENGTH);
-            byte[] remainder = new byte[remainderSize];
-            System.arraycopy(data, InstructionDatum.HEADER_LENGTH, remainder, 0, remainderSize);
-            if (encrypted) remainder = ByteCipher.decrypt(remainder); //decrypt if necessary
-            DATA_HANDLER.handle(remainder, this);
+            DATA_HANDLER.handle(data, offset, length, this);
         } while (!terminated);
     }
 
+    /**
+     * Wake the receive loop so it can finish. Anything transmitted to this link from now on is discarded.
+     */
+    @Override
+    public void terminate() {
+        super.terminate();
+        input.close();
+        if (peer != null) //nothing more will be taken from what the paired link has queued
+            peer.updateWritability();
+    }
+
     /**
      * Since a local data link need not worry about encryption, simply send the transmission for the datum.
+     * If the links pass InstructionData by reference, the datum is not packed at all - the paired link receives it, or
+     * whatever copy it provides for local transmission.
      */
     @Override
     public void transmit(InstructionDatum id) {
-        transmit(id.pack(0, encrypted));
+        if (!admit(id))
+            return;
+        if (passByReference) {
+            METRICS.frameTransmitted(0);
+            transmit((Object) id.copyForLocalTransmission());
+        } else
+            transmit(id.pack(0, packSettings, ByteBuffer::allocate).array());
     }
+
     /**
-     * Transmission is accomplished locally by storing the data to be transmitted in the output array, which becomes
-     * the input array for the paired Link.
-     * A short delay is built in to ensure that pending output data is not overwritten until it has been cleared by the
-     * paired Link's receive() method.
+     * Transmission is accomplished locally by queueing the data to be transmitted on the paired link's input queue.
+     * If that queue is full, this waits until the paired link has caught up, unless the calling thread must not wait.
      */
     @Override
     protected void transmit(byte[] data) {
-        output.pendTransmission(data);
+        METRICS.frameTransmitted(data.length);
+        LocalRingBuffer<Object> output = this.output;
+        if (output == null)
+            throw new IllegalStateException("LocalDataLink must be paired before transmission.");
+        output.addPendingBytes(data.length);
+        enqueue(output, data);
+        updateWritability();
+    }
+
+    @Override
+    long getPendingTransmitBytes() {
+        LocalRingBuffer<Object> output = this.output;
+        return output == null ? 0 : output.getPendingBytes();
+    }
+
+    @Override
+    boolean isQueueFull() {
+        LocalRingBuffer<Object> output = this.output;
+        return output != null && (output.isFull() || !overflow.isEmpty());
+    }
+
+    /**
+     * The paired link's receive thread must not wait for it either, since this link may be waiting on it to take.
+     */
+    @Override
+    boolean mayBlock() {
+        LocalDataLink peer = this.peer;
+        return super.mayBlock() && (peer == null || !peer.isReceiveThread());
+    }
+
+    @Override
+    long getPendingReceptions() {
+        return input.size();
+    }
+
+    private void transmit(Object transmission) {
+        LocalRingBuffer<Object> output = this.output;
+        if (output == null)
+            throw new IllegalStateException("LocalDataLink must be paired before transmission.");
+        enqueue(output, transmission);
+    }
+
+    /**
+     * Queue a transmission on the paired link's input queue - or, if it is full and the calling thread must not wait,
+     * on this link's overflow queue, from which the transmitting thread or the paired link moves it along in order.
+     */
+    private void enqueue(LocalRingBuffer<Object> output, Object transmission) {
+        if (overflow.isEmpty()) {
+            if (mayBlock()) {
+                output.offer(transmission);
+                return;
+            }
+            if (output.tryOffer(transmission))
+                return;
+        }
+        overflow.add(transmission);
+        //the paired link may have taken everything since we found its queue full, so it cannot be left to move this
+        drainOverflow();
+    }
+
+    /**
+     * Move as much of the overflow queue as there is room for into the paired link's input queue, without waiting.
+     * The paired link calls this whenever it takes a transmission.
+     */
+    private void drainOverflow() {
+        if (overflow.isEmpty()) return;
+        synchronized (overflow) { //one thread at a time, to preserve the order
+            Object transmission;
+            while ((transmission = overflow.peek()) != null && output.tryOffer(transmission))
+                overflow.poll();
+        }
     }
 
     public static void pair(LocalDataLink link1, LocalDataLink link2) {
         pair(link1, link2, false);
     }
     /**
-     * Pair two LocalDataLinks so that their input and output pointers match each other's output and input arrays.
-     * If local encryption is desired, it should be specified as part of this call.
+     * Pair two LocalDataLinks so that each transmits to the other's input queue.
+     * If local encryption is desired, it should be specified as part of this call - the pair then shares a new secret
+     * key, using this process's preferred cipher suite.
      */
     public static void pair(LocalDataLink link1, LocalDataLink link2, boolean forceEncryption) {
-        link1.input = link2.output;
         link1.output = link2.input;
+        link2.output = link1.input;
+        link1.peer = link2;
+        link2.peer = link1;
         if (forceEncryption) {
+            CipherSuite cipherSuite = CipherSuite.negotiate(CipherSuite.preferredSuiteIds());
+            byte[] secretKey = ByteCipher.generateKey();
+            byte[] keySalt = LinkCipher.generateKeySalt();
+            link1.setLinkCipher(new LinkCipher(cipherSuite, secretKey, keySalt, true));
+            link2.setLinkCipher(new LinkCipher(cipherSuite, secretKey, keySalt, false));
             link1.establishEndToEndEncryption();
             link2.establishEndToEndEncryption();
         }
-        new Thread(link1).start();
-        new Thread(link2).start();
+        link1.start();
+        link2.start();
+    }
+
+    /**
+     * Pair two LocalDataLinks which pass InstructionData to each other's DataHandlers by reference, skipping
+     * serialization and encryption entirely. This suits links between services trusted to share objects, such as
+     * components of a single application - see InstructionDatum.copyForLocalTransmission().
+     */
+    public static void pairByReference(LocalDataLink link1, LocalDataLink link2) {
+        link1.passByReference = true;
+        link2.passByReference = true;
+        pair(link1, link2, false);
     }
 }
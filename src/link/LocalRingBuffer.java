@@ -0,0 +1,162 @@
+package link;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue of transmissions between LocalDataLinks - packed data or InstructionData themselves -
+ * which any number of threads may offer to but only the receiving link's thread may take from.
+ * Transmitters claim a slot by advancing the tail, then publish their data into it. The receiver waits according to
+ * the WaitStrategy while the queue is empty, announcing itself before it parks so that the next transmitter wakes it.
+ * Transmitters finding the queue full wait in the same way, but park only briefly, since nothing wakes them - or, if
+ * they must not wait, use tryOffer() instead.
+ * The links also account here for the bytes of packed data pending, so the transmitter may apply its watermarks.
+ */
+final class LocalRingBuffer<E> {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final long FULL_PARK_NANOS = 100_000L;
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+
+    //the sequence of the next slot to be claimed by a transmitter
+    private final AtomicLong tail = new AtomicLong(0);
+    //the sequence of the next slot to be taken by the receiver - written only by the receiver
+    private volatile long head = 0;
+
+    //the bytes of packed data offered but not yet taken, as accounted by the links
+    private final AtomicLong pendingBytes = new AtomicLong(0);
+
+    private volatile Thread parkedReceiver = null;
+    private volatile boolean closed = false;
+
+    /**
+     * @param capacity the maximum number of pending transmissions, which is rounded up to a power of two
+     */
+    LocalRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        if (capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Invalid queue capacity: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Queue a transmission, waiting for space if the queue is full.
+     * @return false if the queue was closed, in which case the transmission is discarded.
+     */
+    boolean offer(E transmission) {
+        long sequence;
+        int attempt = 0;
+        do {
+            if (closed) return false;
+            sequence = tail.get();
+            if (sequence - head > mask) { //full
+                waitStrategy.idle(attempt, this, FULL_PARK_NANOS);
+                attempt = nextAttempt(attempt);
+            } else if (tail.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        } while (true);
+        publish(sequence, transmission);
+        return true;
+    }
+
+    /**
+     * Queue a transmission only if there is space, without waiting.
+     * @return false if the queue is full. If it has been closed, the transmission is discarded.
+     */
+    boolean tryOffer(E transmission) {
+        long sequence;
+        do {
+            if (closed) return true;
+            sequence = tail.get();
+            if (sequence - head > mask) return false;
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        publish(sequence, transmission);
+        return true;
+    }
+
+    /**
+     * Take the next transmission, waiting according to the WaitStrategy until one is available.
+     * This must only be called by the receiving thread.
+     * @return the transmission, or null if the queue has been closed.
+     */
+    E take() {
+        long sequence = head;
+        int attempt = 0;
+        while (sequence == tail.get()) {
+            if (closed) return null;
+            if (waitStrategy.parksOn(attempt)) {
+                parkedReceiver = Thread.currentThread();
+                if (sequence == tail.get() && !closed)
+                    LockSupport.park(this);
+                parkedReceiver = null;
+            } else {
+                waitStrategy.idle(attempt, this, 0L);
+            }
+            attempt = nextAttempt(attempt);
+        }
+        int index = (int) sequence & mask;
+        E transmission;
+        while ((transmission = slots.get(index)) == null) //claimed, but not yet published
+            Thread.yield();
+        slots.lazySet(index, null);
+        head = sequence + 1;
+        return transmission;
+    }
+
+    /**
+     * Discard all further transmissions, and wake the receiver if it is waiting.
+     */
+    void close() {
+        closed = true;
+        Thread receiver = parkedReceiver;
+        if (receiver != null)
+            LockSupport.unpark(receiver);
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    boolean isFull() {
+        return tail.get() - head > mask;
+    }
+
+    void addPendingBytes(long byteCount) {
+        pendingBytes.addAndGet(byteCount);
+    }
+
+    /**
+     * @return the bytes of packed data pending - none, once the queue is closed, since they will never be taken.
+     */
+    long getPendingBytes() {
+        return closed ? 0 : pendingBytes.get();
+    }
+
+    /**
+     * @return the number of transmissions claimed but not yet taken - an estimate, if transmitters are active.
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    private void publish(long sequence, E transmission) {
+        slots.lazySet((int) sequence & mask, transmission);
+        //the claim is a full fence, so either we see the parked receiver or it sees our claim before parking
+        Thread receiver = parkedReceiver;
+        if (receiver != null)
+            LockSupport.unpark(receiver);
+    }
+
+    private static int nextAttempt(int attempt) {
+        return attempt == Integer.MAX_VALUE ? attempt : attempt + 1;
+    }
+}
@@ -0,0 +1,278 @@
+package link;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Queues packets for transmission on a link from any number of threads, and writes them from one thread at a time.
+ * Whatever has accumulated when a write begins is written together, with a single gathering write where possible,
+ * and the FlushPolicy determines how long packets may wait to accumulate.
+ * Writes are performed by the write executor if one is provided - a SelectorLoop, for non-blocking channels - or
+ * otherwise by whichever transmitting thread first finds the pipeline idle, unless writes are deferred to a shared
+ * writer thread so that transmitting threads never wait on the channel. All packets must be leased from the
+ * pipeline's buffer account, and are returned to it once written.
+ * Packets enqueued as sheddable may be shed, oldest first, until the writer takes them, to bound what is queued for a
+ * slow peer - all others are always written.
+ */
+class OutboundPipeline {
+
+    interface WriteListener {
+        /**
+         * The channel is non-blocking and would not accept everything queued. The link should call flushNow() again
+         * once the channel is writable.
+         */
+        void writeStalled();
+
+        void writeFailed(IOException ioe);
+
+        /**
+         * Some queued data has been written, reducing the pending bytes. This is called by the writer.
+         */
+        void written();
+    }
+
+    private static final int MAX_GATHERED_PACKETS = 64;
+
+    //delayed flushes are timed by a single shared thread, which hands any blocking writes to another - as are deferred
+    //writes
+    private static final ScheduledExecutorService FLUSH_TIMER = Executors.newSingleThreadScheduledExecutor(
+            runnable -> daemon(runnable, "OutboundPipeline-Timer")
+    );
+    private static final ExecutorService DELAYED_WRITER = Executors.newCachedThreadPool(
+            runnable -> daemon(runnable, "OutboundPipeline-Writer")
+    );
+
+    private final GatheringByteChannel channel;
+    private final BufferPool.Account bufferAccount;
+    private final Executor writeExecutor;
+    private final WriteListener writeListener;
+
+    private volatile FlushPolicy flushPolicy;
+    private volatile boolean writesDeferred = false;
+
+    //each queued packet is held either directly or, if it may be shed, by a reference which the writer and the shedder
+    //race to clear - whichever does so takes the packet
+    private final Queue<Object> pendingPackets = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong(0);
+
+    //set while a write is scheduled or in progress - the thread which sets it becomes the sole writer
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+    private final AtomicBoolean flushTimed = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    //packets taken from the queue by the writer, but not yet completely written - accessed only by the writer
+    private final ByteBuffer[] gatheredPackets = new ByteBuffer[MAX_GATHERED_PACKETS];
+    private int gatheredCount = 0;
+
+    /**
+     * @param writeExecutor the executor on which to perform writes, or null to write on the transmitting thread
+     */
+    OutboundPipeline(
+            GatheringByteChannel channel,
+            BufferPool.Account bufferAccount,
+            FlushPolicy flushPolicy,
+            Executor writeExecutor,
+            WriteListener writeListener
+    ) {
+        this.channel = channel;
+        this.bufferAccount = bufferAccount;
+        this.flushPolicy = flushPolicy;
+        this.writeExecutor = writeExecutor;
+        this.writeListener = writeListener;
+    }
+
+    void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+        if (pendingBytes.get() > 0)
+            flush();
+    }
+
+    /**
+     * Set whether writes without a write executor are performed by a shared writer thread, rather than by the
+     * transmitting thread - so that a peer which stops reading from a blocking stream stalls only that thread.
+     */
+    void setWritesDeferred(boolean writesDeferred) {
+        this.writesDeferred = writesDeferred;
+    }
+
+    long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Queue a packet, and write it now or later according to the flush policy.
+     * @param sheddable true if the packet may be shed rather than written - only application instructions should be,
+     *                  since the link depends on its own to make progress.
+     */
+    void enqueue(ByteBuffer packet, boolean sheddable) {
+        pendingPackets.add(sheddable ? new AtomicReference<>(packet) : packet);
+        pendingBytes.addAndGet(packet.remaining());
+        if (closed) { //too late to write anything
+            releasePending();
+            return;
+        }
+        applyFlushPolicy();
+    }
+
+    /**
+     * Discard sheddable packets, oldest first, until no more than the target number of bytes remain pending. Packets
+     * the writer has already taken are never discarded, since they may have been partially written.
+     * @return the number of packets discarded.
+     */
+    int shed(long targetBytes) {
+        int shedCount = 0;
+        Iterator<Object> iterator = pendingPackets.iterator();
+        while (pendingBytes.get() > targetBytes && iterator.hasNext()) {
+            Object queued = iterator.next();
+            if (!(queued instanceof AtomicReference)) continue;
+            ByteBuffer packet = take(queued);
+            if (packet == null) continue; //taken by the writer
+            iterator.remove();
+            pendingBytes.addAndGet(-packet.remaining());
+            bufferAccount.release(packet);
+            ++shedCount;
+        }
+        return shedCount;
+    }
+
+    /**
+     * Write everything queued as soon as possible, regardless of the flush policy.
+     */
+    void flush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            if (writeExecutor != null)
+                writeExecutor.execute(this::flushNow);
+            else if (writesDeferred)
+                DELAYED_WRITER.execute(this::flushNow);
+            else
+                flushNow();
+        }
+    }
+
+    /**
+     * Write queued packets until the queue is empty or a non-blocking channel will accept no more.
+     * Only the thread holding the flush request may call this.
+     * @return true if everything queued has been written.
+     */
+    boolean flushNow() {
+        boolean complete;
+        try {
+            complete = write();
+        } catch (IOException ioe) {
+            closed = true;
+            releaseGathered();
+            releasePending();
+            writeListener.writeFailed(ioe);
+            return false;
+        }
+        if (!complete) { //retain the flush request until the channel is writable again
+            writeListener.writeStalled();
+            return false;
+        }
+        flushRequested.set(false);
+        //anything queued while we were writing was left for us, so check again
+        if (!pendingPackets.isEmpty())
+            applyFlushPolicy();
+        return true;
+    }
+
+    /**
+     * Discard everything queued, returning it to the buffer pool. Further packets are discarded as they arrive.
+     * If the pipeline has a write executor, this must be called from it.
+     */
+    void close() {
+        closed = true;
+        if (writeExecutor != null)
+            releaseGathered();
+        releasePending();
+    }
+
+    private void applyFlushPolicy() {
+        FlushPolicy currentPolicy = flushPolicy;
+        if (pendingBytes.get() >= currentPolicy.sizeThreshold)
+            flush();
+        else if (flushTimed.compareAndSet(false, true))
+            FLUSH_TIMER.schedule(this::timedFlush, currentPolicy.maxDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void timedFlush() {
+        flushTimed.set(false);
+        if (pendingBytes.get() == 0 || !flushRequested.compareAndSet(false, true)) return;
+        (writeExecutor == null ? DELAYED_WRITER : writeExecutor).execute(this::flushNow);
+    }
+
+    private boolean write() throws IOException {
+        for (;;) {
+            Object queued;
+            while (gatheredCount < MAX_GATHERED_PACKETS && (queued = pendingPackets.poll()) != null) {
+                ByteBuffer packet = take(queued);
+                if (packet != null) //else shed
+                    gatheredPackets[gatheredCount++] = packet;
+            }
+            if (gatheredCount == 0)
+                return true;
+            long bytesWritten = gatheredCount == 1
+                    ? channel.write(gatheredPackets[0])
+                    : channel.write(gatheredPackets, 0, gatheredCount);
+            pendingBytes.addAndGet(-bytesWritten);
+            if (bytesWritten > 0)
+                writeListener.written();
+            int written = 0;
+            while (written < gatheredCount && !gatheredPackets[written].hasRemaining())
+                bufferAccount.release(gatheredPackets[written++]);
+            System.arraycopy(gatheredPackets, written, gatheredPackets, 0, gatheredCount - written);
+            for (int i = gatheredCount - written; i < gatheredCount; ++i)
+                gatheredPackets[i] = null;
+            gatheredCount -= written;
+            if (gatheredCount > 0 && written == 0 && bytesWritten == 0)
+                return false;
+        }
+    }
+
+    private void releaseGathered() {
+        for (int i = 0; i < gatheredCount; ++i) {
+            pendingBytes.addAndGet(-gatheredPackets[i].remaining());
+            bufferAccount.release(gatheredPackets[i]);
+            gatheredPackets[i] = null;
+        }
+        gatheredCount = 0;
+    }
+
+    private void releasePending() {
+        Object queued;
+        while ((queued = pendingPackets.poll()) != null) {
+            ByteBuffer packet = take(queued);
+            if (packet == null) continue;
+            pendingBytes.addAndGet(-packet.remaining());
+            bufferAccount.release(packet);
+        }
+    }
+
+    /**
+     * @return the queued packet, or null if it was sheddable and has already been taken.
+     */
+    @SuppressWarnings("unchecked")
+    private static ByteBuffer take(Object queued) {
+        if (queued instanceof ByteBuffer)
+            return (ByteBuffer) queued;
+        return ((AtomicReference<ByteBuffer>) queued).getAndSet(null);
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,102 @@
+package link;
+
+import main.LogHub;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * A single event loop thread which multiplexes any number of non-blocking ChannelDataLinks over one Selector.
+ * All channel reads, writes, and interest changes for a registered link take place on this thread - other threads
+ * interact with the loop only by submitting tasks via execute().
+ */
+public class SelectorLoop extends Thread implements Executor {
+
+    private final Selector selector;
+
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean terminated = false;
+
+    public SelectorLoop(String name) throws IOException {
+        super(name);
+        selector = Selector.open();
+    }
+
+    /**
+     * Run a task on this loop's thread. If called from any other thread, the selector is woken so the task runs
+     * promptly rather than waiting for the next channel event.
+     */
+    @Override
+    public void execute(Runnable task) {
+        pendingTasks.add(task);
+        if (Thread.currentThread() != this)
+            selector.wakeup();
+    }
+
+    public void terminate() {
+        terminated = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Register a link's channel for reading. This is performed on the loop thread, since registration blocks while
+     * another thread is inside select().
+     */
+    void register(ChannelDataLink channelDataLink) {
+        execute(() -> {
+            try {
+                channelDataLink.registered(
+                        channelDataLink.getChannel().register(selector, SelectionKey.OP_READ, channelDataLink)
+                );
+            } catch (ClosedChannelException cce) {
+                channelDataLink.closed();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (!terminated) {
+            try {
+                //tasks submitted from this thread do not wake the selector, so don't block if any are waiting
+                if (pendingTasks.isEmpty())
+                    selector.select();
+                else
+                    selector.selectNow();
+                runPendingTasks();
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    ChannelDataLink channelDataLink = (ChannelDataLink) key.attachment();
+                    if (key.isValid() && key.isReadable())
+                        channelDataLink.receive();
+                    if (key.isValid() && key.isWritable())
+                        channelDataLink.writable();
+                }
+            } catch (IOException e) { //one bad select should not take down every link on this loop
+                LogHub.logNonFatalError("Selector failure on " + getName(), e);
+            }
+        }
+        try {
+            for (SelectionKey key : selector.keys())
+                ((ChannelDataLink) key.attachment()).closed();
+            selector.close();
+        } catch (IOException e) {
+            LogHub.logNonFatalError("Failed to close selector on " + getName(), e);
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null)
+            task.run();
+    }
+}
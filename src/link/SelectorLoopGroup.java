@@ -0,0 +1,44 @@
+package link;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of SelectorLoops among which new ChannelDataLinks are distributed round-robin.
+ * By default one loop is created per available processor.
+ */
+public class SelectorLoopGroup {
+
+    private final SelectorLoop[] selectorLoops;
+
+    private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+    public SelectorLoopGroup() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public SelectorLoopGroup(int loopCount) throws IOException {
+        if (loopCount < 1) throw new IllegalArgumentException("Loop count must be at least 1: " + loopCount);
+        selectorLoops = new SelectorLoop[loopCount];
+        for (int i = 0; i < loopCount; ++i) {
+            selectorLoops[i] = new SelectorLoop("SelectorLoop-" + i);
+            selectorLoops[i].start();
+        }
+    }
+
+    /**
+     * @return the loop which should service the next link.
+     */
+    public SelectorLoop next() {
+        return selectorLoops[Math.abs(nextLoop.getAndIncrement() % selectorLoops.length)];
+    }
+
+    public int countLoops() {
+        return selectorLoops.length;
+    }
+
+    public void terminate() {
+        for (SelectorLoop selectorLoop : selectorLoops)
+            selectorLoop.terminate();
+    }
+}
@@ -0,0 +1,38 @@
+package link;
+
+/**
+ * A session ticket issued to this client by a server, with which a later link to the same server may resume encrypted
+ * communication without a full handshake - see DataLink.getSessionTicket() and DataLink.resumeHandshake().
+ * The ticket itself is opaque to the client. The resumption secret accompanying it never leaves this object.
+ */
+public final class SessionTicket {
+
+    private final byte[] ticket;
+    private final byte[] resumptionSecret;
+    private final long expiryMillis;
+
+    SessionTicket(byte[] ticket, byte[] resumptionSecret, long expiryMillis) {
+        this.ticket = ticket;
+        this.resumptionSecret = resumptionSecret;
+        this.expiryMillis = expiryMillis;
+    }
+
+    byte[] getTicket() {
+        return ticket;
+    }
+
+    byte[] getResumptionSecret() {
+        return resumptionSecret;
+    }
+
+    /**
+     * @return the time after which the server will refuse this ticket, in milliseconds since the epoch.
+     */
+    public long getExpiryMillis() {
+        return expiryMillis;
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expiryMillis;
+    }
+}
@@ -0,0 +1,16 @@
+package link;
+
+/**
+ * Thrown when an instruction is transmitted on an unwritable link whose SlowConsumerPolicy is FAIL_FAST.
+ */
+public class SlowConsumerException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SlowConsumerException(long pendingBytes, long highWatermark) {
+        super(
+                "Slow consumer: " + pendingBytes + " bytes pending transmission, above the high watermark of " +
+                        highWatermark + " bytes."
+        );
+    }
+}
@@ -0,0 +1,25 @@
+package link;
+
+/**
+ * Determines what a link does with an instruction transmitted while it is unwritable - that is, while more of what it
+ * has already transmitted remains unwritten than its watermarks permit, because the peer is not keeping up.
+ * Policies apply only to instructions transmitted by the application - those used internally by links, such as
+ * handshakes, acknowledgements and stream chunks, are always transmitted.
+ * BLOCK waits until the link is writable again, bounding memory at the cost of stalling the transmitting thread - it
+ * never waits on threads which the link itself depends upon to make progress, such as its receive thread, a
+ * HandlerDispatcher thread or a SelectorLoop, which transmit regardless. So that these cannot queue without limit,
+ * once the link's unwritten data exceeds its hard limit as well, they disconnect it as DISCONNECT does - see
+ * DataLink.setHardLimit().
+ * DROP_OLDEST discards queued application instructions, oldest first, until no more than the low watermark remains,
+ * then transmits - suiting links whose instructions supersede one another, such as state broadcasts. Internal
+ * instructions are never discarded, and on links which acknowledge instructions those discarded are retransmitted as
+ * lost. Links which cannot withdraw what they have queued discard the instruction being transmitted instead.
+ * FAIL_FAST throws a SlowConsumerException to the transmitting thread, leaving it to decide what to do.
+ * DISCONNECT closes the link, discarding the instruction - its DataHandler is notified of the lost connection as usual.
+ */
+public enum SlowConsumerPolicy {
+    BLOCK,
+    DROP_OLDEST,
+    FAIL_FAST,
+    DISCONNECT
+}
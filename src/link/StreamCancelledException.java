@@ -0,0 +1,16 @@
+package link;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a stream transfer ends before completion - because the peer refused or cancelled it, or because the
+ * link was closed.
+ */
+public class StreamCancelledException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public StreamCancelledException(String message) {
+        super(message);
+    }
+}
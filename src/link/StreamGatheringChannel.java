@@ -0,0 +1,89 @@
+package link;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Adapts a blocking OutputStream, such as that of a Socket, into a GatheringByteChannel.
+ * A gathering write copies consecutive small buffers into one pooled buffer and writes them to the stream together,
+ * so a batch of small packets costs a single system call. Large buffers are written directly.
+ * The batch buffer is only taken if the memory budget allows it without waiting - the writer must never wait for
+ * memory, since the packets it is draining may be what holds the budget - and otherwise the buffers are written one
+ * by one.
+ */
+class StreamGatheringChannel implements GatheringByteChannel {
+
+    private static final int COALESCE_LIMIT = 0x10000;
+
+    private final OutputStream outputStream;
+    private final WritableByteChannel outputChannel;
+    private final BufferPool.Account bufferAccount;
+
+    StreamGatheringChannel(OutputStream outputStream, BufferPool.Account bufferAccount) {
+        this.outputStream = outputStream;
+        this.outputChannel = Channels.newChannel(outputStream);
+        this.bufferAccount = bufferAccount;
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+        long bytesWritten = 0;
+        int index = offset;
+        int end = offset + length;
+        while (index < end) {
+            ByteBuffer source = sources[index];
+            if (source.remaining() > COALESCE_LIMIT / 2 || index + 1 == end || !source.hasArray()) {
+                bytesWritten += write(source);
+                ++index;
+                continue;
+            }
+            ByteBuffer batch = bufferAccount.tryAcquire(COALESCE_LIMIT);
+            if (batch == null) { //no memory to spare for coalescing
+                bytesWritten += write(source);
+                ++index;
+                continue;
+            }
+            try {
+                while (index < end && sources[index].hasArray() && sources[index].remaining() <= batch.remaining())
+                    batch.put(sources[index++]);
+                batch.flip();
+                bytesWritten += write(batch);
+            } finally {
+                bufferAccount.release(batch);
+            }
+        }
+        return bytesWritten;
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources) throws IOException {
+        return write(sources, 0, sources.length);
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        int bytesWritten = source.remaining();
+        if (source.hasArray()) {
+            outputStream.write(source.array(), source.arrayOffset() + source.position(), bytesWritten);
+            source.position(source.limit());
+        } else {
+            while (source.hasRemaining())
+                outputChannel.write(source);
+        }
+        return bytesWritten;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return outputChannel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        outputChannel.close();
+    }
+}
@@ -0,0 +1,354 @@
+package link;
+
+import link.instructions.*;
+import main.LogHub;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transfers streams of any length over a single DataLink, as a sequence of chunks small enough to be transmitted as
+ * ordinary InstructionData.
+ * Each stream is flow controlled by credit - the sender may have at most INITIAL_CREDIT bytes in flight, and the
+ * receiver grants more as it writes each chunk to the stream's sink - so neither side holds more than a few chunks of
+ * any stream in memory, however large the stream is. A sender which receives no credit for CREDIT_TIMEOUT_MILLIS
+ * cancels the stream.
+ * Each chunk carries its offset within the stream, and the receiver cancels the stream if one goes missing.
+ * Streams are transmitted on the calling thread and received on the link's receive loop, and any number of streams may
+ * be in progress in each direction at once. Chunks are written to their sinks in order on the receive loop too, unless
+ * it is shared with other links - a SelectorLoop - in which case they are written on a shared writer thread instead.
+ */
+final class StreamTransfers {
+
+    //a quarter of the maximum datum size, which leaves ample room for encryption and the codec's fields
+    static final int CHUNK_SIZE = 0x4_0000;
+    static final int INITIAL_CREDIT = 4 * CHUNK_SIZE;
+
+    static final long CREDIT_TIMEOUT_MILLIS = 60_000;
+
+    private static final ExecutorService SINK_WRITER = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "StreamTransfers-Writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final DataLink dataLink;
+
+    private final AtomicInteger nextStreamId = new AtomicInteger(0);
+
+    private final ConcurrentHashMap<Integer, OutboundStream> outboundStreams = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, InboundStream> inboundStreams = new ConcurrentHashMap<>();
+
+    private volatile boolean closed = false;
+
+    StreamTransfers(DataLink dataLink) {
+        this.dataLink = dataLink;
+    }
+
+    /**
+     * Transmit the contents of a channel as a stream, blocking until it has all been transmitted.
+     * @param length the number of bytes to transmit, or -1 to transmit everything until the end of the channel
+     * @return the number of bytes transmitted.
+     * @throws StreamCancelledException if the peer refused or cancelled the stream, granted no credit in time, or the
+     * link was closed.
+     * @throws EOFException if the channel ended before the specified length was reached.
+     */
+    long transmit(ReadableByteChannel source, long length, byte[] metadata) throws IOException {
+        if (dataLink.isReceiveThread())
+            throw new IllegalStateException("Streams cannot be transmitted from the receiving thread of their link.");
+        int streamId = nextStreamId.getAndIncrement();
+        OutboundStream outboundStream = new OutboundStream();
+        outboundStreams.put(streamId, outboundStream);
+        try {
+            if (closed)
+                throw new StreamCancelledException("Link closed.");
+            dataLink.transmit(new StreamOpenInstructionDatum(streamId, length, metadata));
+            long transmitted = 0;
+            boolean last;
+            do {
+                int chunkSize = length < 0 ? CHUNK_SIZE : (int) Math.min(CHUNK_SIZE, length - transmitted);
+                ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+                boolean ended = readFully(source, chunk);
+                if (ended && length >= 0 && transmitted + chunk.position() < length)
+                    throw new EOFException("Stream ended after " + (transmitted + chunk.position()) + " of " + length +
+                            " bytes.");
+                long offset = transmitted;
+                transmitted += chunk.position();
+                last = ended || transmitted == length;
+                outboundStream.acquireCredit(chunk.position());
+                dataLink.transmit(new StreamChunkInstructionDatum(streamId, offset, toArray(chunk), last));
+            } while (!last);
+            return transmitted;
+        } catch (IOException | RuntimeException e) {
+            if (!outboundStream.isCancelled() && !closed)
+                dataLink.transmit(new StreamCancelInstructionDatum(streamId, true));
+            throw e;
+        } finally {
+            outboundStreams.remove(streamId);
+        }
+    }
+
+    /**
+     * Handle a stream instruction received by the link - this is only called from the link's receive loop.
+     */
+    void receive(StreamInstructionDatum streamInstructionDatum) {
+        int streamId = streamInstructionDatum.STREAM_ID;
+        if (streamInstructionDatum instanceof StreamChunkInstructionDatum) {
+            StreamChunkInstructionDatum streamChunkInstructionDatum =
+                    (StreamChunkInstructionDatum) streamInstructionDatum;
+            InboundStream inboundStream = inboundStreams.get(streamId);
+            if (inboundStream == null) return; //refused or cancelled - discard whatever was already in flight
+            try {
+                inboundStream.accept(streamChunkInstructionDatum);
+            } catch (IOException ioe) {
+                fail(streamId, inboundStream, ioe);
+                return;
+            }
+            inboundStream.submit(() -> write(streamId, inboundStream, streamChunkInstructionDatum));
+        } else if (streamInstructionDatum instanceof StreamCreditInstructionDatum) {
+            OutboundStream outboundStream = outboundStreams.get(streamId);
+            if (outboundStream != null)
+                outboundStream.grantCredit(((StreamCreditInstructionDatum) streamInstructionDatum).CREDIT);
+        } else if (streamInstructionDatum instanceof StreamOpenInstructionDatum) {
+            StreamOpenInstructionDatum streamOpenInstructionDatum = (StreamOpenInstructionDatum) streamInstructionDatum;
+            WritableByteChannel sink = closed ? null : dataLink.DATA_HANDLER.acceptStream(
+                    dataLink,
+                    streamOpenInstructionDatum.LENGTH,
+                    streamOpenInstructionDatum.METADATA
+            );
+            if (sink == null)
+                dataLink.transmit(new StreamCancelInstructionDatum(streamId, false));
+            else
+                inboundStreams.put(
+                        streamId,
+                        new InboundStream(
+                                sink,
+                                streamOpenInstructionDatum.LENGTH,
+                                streamOpenInstructionDatum.METADATA,
+                                dataLink.sharesReceiveThread() ? SINK_WRITER : Runnable::run
+                        )
+                );
+        } else if (streamInstructionDatum instanceof StreamCancelInstructionDatum) {
+            if (((StreamCancelInstructionDatum) streamInstructionDatum).FROM_SENDER) {
+                InboundStream inboundStream = inboundStreams.get(streamId);
+                if (inboundStream != null)
+                    end(streamId, inboundStream, false);
+            } else {
+                OutboundStream outboundStream = outboundStreams.get(streamId);
+                if (outboundStream != null)
+                    outboundStream.cancel();
+            }
+        } else {
+            throw new IllegalArgumentException(
+                    "Unsupported InstructionDatum class: " + streamInstructionDatum.getClass()
+            );
+        }
+    }
+
+    /**
+     * Cancel every stream in progress, in either direction. This is called when the link closes.
+     */
+    void close() {
+        closed = true;
+        for (OutboundStream outboundStream : outboundStreams.values())
+            outboundStream.cancel();
+        for (Integer streamId : inboundStreams.keySet()) {
+            InboundStream inboundStream = inboundStreams.get(streamId);
+            if (inboundStream != null)
+                end(streamId, inboundStream, false);
+        }
+    }
+
+    /**
+     * Write a chunk to its stream's sink, then grant the sender credit for it, or end the stream if it was the last.
+     * This runs in order with the stream's other tasks.
+     */
+    private void write(int streamId, InboundStream inboundStream, StreamChunkInstructionDatum chunk) {
+        if (inboundStream.failed) return; //ending already
+        try {
+            inboundStream.write(chunk.DATA);
+        } catch (IOException ioe) {
+            fail(streamId, inboundStream, ioe);
+            return;
+        }
+        if (chunk.LAST)
+            end(streamId, inboundStream, inboundStream.isComplete());
+        else
+            dataLink.transmit(new StreamCreditInstructionDatum(streamId, chunk.DATA.length));
+    }
+
+    /**
+     * Cancel an inbound stream which could not be received, and end it.
+     */
+    private void fail(int streamId, InboundStream inboundStream, IOException ioe) {
+        inboundStream.failed = true;
+        LogHub.logNonFatalError("Stream transfer failed.", ioe);
+        if (!closed)
+            dataLink.transmit(new StreamCancelInstructionDatum(streamId, false));
+        end(streamId, inboundStream, false);
+    }
+
+    /**
+     * Stop receiving an inbound stream - at most once per stream. Once everything already accepted has been written,
+     * its sink is closed and the DataHandler notified.
+     */
+    private void end(int streamId, InboundStream inboundStream, boolean complete) {
+        if (!inboundStreams.remove(streamId, inboundStream)) return;
+        inboundStream.submit(() -> {
+            boolean closedCleanly = true;
+            try {
+                inboundStream.sink.close();
+            } catch (IOException ioe) {
+                LogHub.logNonFatalError("Failed to close stream sink.", ioe);
+                closedCleanly = false;
+            }
+            dataLink.DATA_HANDLER.streamEnded(
+                    dataLink,
+                    inboundStream.metadata,
+                    inboundStream.received,
+                    complete && closedCleanly && !inboundStream.failed
+            );
+        });
+    }
+
+    /**
+     * Read from the channel until the buffer is full or the channel ends.
+     * @return true if the channel ended.
+     */
+    private static boolean readFully(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            if (source.read(buffer) < 0)
+                return true;
+        return false;
+    }
+
+    private static byte[] toArray(ByteBuffer chunk) {
+        if (chunk.position() == chunk.capacity())
+            return chunk.array();
+        byte[] data = new byte[chunk.position()];
+        System.arraycopy(chunk.array(), 0, data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * The sending side of a stream, on which the transmitting thread waits for credit.
+     */
+    private static final class OutboundStream {
+        private long credit = INITIAL_CREDIT;
+        private boolean cancelled = false;
+
+        synchronized void acquireCredit(int bytes) throws IOException {
+            long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CREDIT_TIMEOUT_MILLIS);
+            try {
+                while (credit < bytes && !cancelled) {
+                    long remainingNanos = deadlineNanos - System.nanoTime();
+                    if (remainingNanos <= 0)
+                        throw new StreamCancelledException("Timed out awaiting stream credit from the receiver.");
+                    TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while awaiting stream credit.");
+            }
+            if (cancelled)
+                throw new StreamCancelledException("Stream cancelled by the receiver, or the link was closed.");
+            credit -= bytes;
+        }
+
+        synchronized void grantCredit(int bytes) {
+            credit += bytes;
+            notifyAll();
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * The receiving side of a stream. Chunks are accepted by the link's receive loop, and written by the stream's
+     * tasks, which run one at a time, in order, on its executor.
+     */
+    private static final class InboundStream {
+        private final WritableByteChannel sink;
+        private final long length;
+        private final byte[] metadata;
+        private final Executor executor;
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean running = new AtomicBoolean(false);
+
+        //the offset of the next chunk expected - accessed only by the link's receive loop
+        private long acceptedLength = 0;
+        //the number of bytes written to the sink - accessed only by the stream's tasks
+        private long received = 0;
+        private volatile boolean failed = false;
+
+        InboundStream(WritableByteChannel sink, long length, byte[] metadata, Executor executor) {
+            this.sink = sink;
+            this.length = length;
+            this.metadata = metadata;
+            this.executor = executor;
+        }
+
+        /**
+         * Check that a chunk follows on from those already accepted, and lies within the stream's declared length.
+         */
+        void accept(StreamChunkInstructionDatum chunk) throws IOException {
+            if (chunk.OFFSET != acceptedLength)
+                throw new IOException("Stream chunk received at offset " + chunk.OFFSET + ", expected " +
+                        acceptedLength + " - a chunk was lost.");
+            if (length >= 0 && acceptedLength + chunk.DATA.length > length)
+                throw new IOException("Stream exceeded its declared length of " + length + " bytes.");
+            acceptedLength += chunk.DATA.length;
+        }
+
+        void write(byte[] data) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining())
+                sink.write(buffer);
+            received += data.length;
+        }
+
+        boolean isComplete() {
+            return length < 0 || received == length;
+        }
+
+        /**
+         * Run a task after all those previously submitted for this stream.
+         */
+        void submit(Runnable task) {
+            tasks.add(task);
+            if (running.compareAndSet(false, true))
+                executor.execute(this::runTasks);
+        }
+
+        private void runTasks() {
+            do {
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+                running.set(false);
+                //anything submitted while we were finishing up was left for us, so check again
+            } while (!tasks.isEmpty() && running.compareAndSet(false, true));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package link;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Determines how a thread waits for a LocalDataLink's queue to change - a receiver waiting for data, or a transmitter
+ * waiting for space.
+ * A waiting thread first spins for the specified number of attempts, then yields its processor for the specified
+ * number of attempts, and finally parks until it is woken. Spinning gives the lowest latency at the cost of a busy
+ * core, while parking costs nothing while idle but takes some microseconds to wake from.
+ * BACKOFF suits most uses. BUSY_SPIN never parks, and should only be used where a core can be dedicated to each link.
+ */
+public final class WaitStrategy {
+
+    public static final WaitStrategy BACKOFF = new WaitStrategy(100, 10);
+    public static final WaitStrategy PARKING = new WaitStrategy(0, 0);
+    public static final WaitStrategy BUSY_SPIN = new WaitStrategy(Integer.MAX_VALUE, 0);
+
+    private final int spinAttempts;
+    private final int yieldAttempts;
+
+    private WaitStrategy(int spinAttempts, int yieldAttempts) {
+        this.spinAttempts = spinAttempts;
+        this.yieldAttempts = yieldAttempts;
+    }
+
+    /**
+     * Spin, then yield, for up to the specified numbers of attempts before parking.
+     */
+    public static WaitStrategy backoff(int spinAttempts, int yieldAttempts) {
+        if (spinAttempts < 0 || yieldAttempts < 0)
+            throw new IllegalArgumentException("Wait attempts must not be negative.");
+        return new WaitStrategy(spinAttempts, yieldAttempts);
+    }
+
+    /**
+     * Wait once, given the number of times the caller has already waited for the current condition.
+     * @param blocker the object to report as blocking the thread, should it park
+     * @param parkNanos the longest time to park for, or zero to park until unparked
+     */
+    void idle(int attempt, Object blocker, long parkNanos) {
+        if (attempt < spinAttempts)
+            return; //spin
+        if (attempt - spinAttempts < yieldAttempts) {
+            Thread.yield();
+            return;
+        }
+        if (parkNanos > 0)
+            LockSupport.parkNanos(blocker, parkNanos);
+        else
+            LockSupport.park(blocker);
+    }
+
+    /**
+     * @return true if a thread would park on the specified attempt - a receiver must announce itself before parking,
+     * so that transmitters know to wake it.
+     */
+    boolean parksOn(int attempt) {
+        return attempt >= spinAttempts && attempt - spinAttempts >= yieldAttempts;
+    }
+}
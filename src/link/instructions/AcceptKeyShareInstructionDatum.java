@@ -0,0 +1,53 @@
+package link.instructions;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The server's response to a TransmitKeyShareInstructionDatum, carrying the public value of its own ephemeral key
+ * pair. Encryption is established on both sides as soon as this is transmitted and received, without further
+ * confirmation.
+ */
+public class AcceptKeyShareInstructionDatum extends HandshakeSelectionInstructionDatum {
+
+    private static final long serialVersionUID = 3576707419263611996L;
+
+    static final InstructionCodec<AcceptKeyShareInstructionDatum> CODEC =
+            new InstructionCodec<AcceptKeyShareInstructionDatum>() {
+                @Override
+                public void write(AcceptKeyShareInstructionDatum instructionDatum, DataOutput out)
+                        throws IOException {
+                    InstructionCodecRegistry.writeBytes(instructionDatum.PUBLIC_VALUE, out);
+                    writeSelection(instructionDatum, out);
+                }
+
+                @Override
+                public AcceptKeyShareInstructionDatum read(DataInput in) throws IOException {
+                    return new AcceptKeyShareInstructionDatum(
+                            InstructionCodecRegistry.readBytes(in),
+                            in.readByte(),
+                            in.readByte(),
+                            in.readByte(),
+                            in.readByte(),
+                            in.readInt(),
+                            InstructionCodecRegistry.readBytes(in)
+                    );
+                }
+            };
+
+    public final byte[] PUBLIC_VALUE;
+
+    public AcceptKeyShareInstructionDatum(
+            byte[] publicValue,
+            byte cipherSuite,
+            byte frameIntegrity,
+            byte frameFormatVersion,
+            byte payloadCompression,
+            int acknowledgementWindow,
+            byte[] keySalt
+    ) {
+        super(cipherSuite, frameIntegrity, frameFormatVersion, payloadCompression, acknowledgementWindow, keySalt);
+        PUBLIC_VALUE = publicValue;
+    }
+}
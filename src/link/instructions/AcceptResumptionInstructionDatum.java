@@ -0,0 +1,46 @@
+package link.instructions;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The server's acceptance of a session ticket. Encryption is established on both sides as soon as this is transmitted
+ * and received, without further confirmation.
+ */
+public class AcceptResumptionInstructionDatum extends HandshakeSelectionInstructionDatum {
+
+    private static final long serialVersionUID = 7489605838018123475L;
+
+    static final InstructionCodec<AcceptResumptionInstructionDatum> CODEC =
+            new InstructionCodec<AcceptResumptionInstructionDatum>() {
+                @Override
+                public void write(AcceptResumptionInstructionDatum instructionDatum, DataOutput out)
+                        throws IOException {
+                    writeSelection(instructionDatum, out);
+                }
+
+                @Override
+                public AcceptResumptionInstructionDatum read(DataInput in) throws IOException {
+                    return new AcceptResumptionInstructionDatum(
+                            in.readByte(),
+                            in.readByte(),
+                            in.readByte(),
+                            in.readByte(),
+                            in.readInt(),
+                            InstructionCodecRegistry.readBytes(in)
+                    );
+                }
+            };
+
+    public AcceptResumptionInstructionDatum(
+            byte cipherSuite,
+            byte frameIntegrity,
+            byte frameFormatVersion,
+            byte payloadCompression,
+            int acknowledgementWindow,
+            byte[] keySalt
+    ) {
+        super(cipherSuite, frameIntegrity, frameFormatVersion, payloadCompression, acknowledgementWindow, keySalt);
+    }
+}
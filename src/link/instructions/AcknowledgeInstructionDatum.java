@@ -0,0 +1,24 @@
+package link.instructions;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+/**
+ * Carries nothing but the acknowledgement block which precedes it, for links which have received instructions but have
+ * nothing of their own to transmit. It is consumed internally, and never handled by the implementation.
+ */
+public class AcknowledgeInstructionDatum extends InstructionDatum {
+
+    private static final long serialVersionUID = 7263644319120681609L;
+
+    static final InstructionCodec<AcknowledgeInstructionDatum> CODEC =
+            new InstructionCodec<AcknowledgeInstructionDatum>() {
+                @Override
+                public void write(AcknowledgeInstructionDatum instructionDatum, DataOutput out) {}
+
+                @Override
+                public AcknowledgeInstructionDatum read(DataInput in) {
+                    return new AcknowledgeInstructionDatum();
+                }
+            };
+}
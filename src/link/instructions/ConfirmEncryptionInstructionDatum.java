@@ -2,4 +2,6 @@ package link.instructions;
 
 public class ConfirmEncryptionInstructionDatum extends HandshakeInstructionDatum {
 
+    //as computed for the original class
+    private static final long serialVersionUID = 8476452990683897991L;
 }
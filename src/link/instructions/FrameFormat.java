@@ -0,0 +1,54 @@
+package link.instructions;
+
+/**
+ * The wire formats in which instructions may be packed, distinguished by their header indicators so that a decoder
+ * may accept both.
+ * SCANNING is the original format, whose decoder scans every byte of an instruction for the trailer indicator - it
+ * cannot carry data which happens to contain that indicator, and is used during the handshake and with peers which
+ * support nothing newer.
+ * LENGTH_PREFIXED has the same layout, but its decoder trusts the size field, and checks the trailer indicator only
+ * where the size says it should be, so an instruction is decoded with a handful of bulk operations whatever it carries.
+ * The format is negotiated alongside the cipher suite during the handshake, and applies once encryption is established.
+ */
+public enum FrameFormat {
+    SCANNING(1, InstructionDatum.HEADER_INDICATOR),
+    LENGTH_PREFIXED(2, InstructionDatum.HEADER_INDICATOR_V2);
+
+    public static final FrameFormat LATEST = LENGTH_PREFIXED;
+
+    private final byte version;
+    private final int headerIndicator;
+
+    FrameFormat(int version, int headerIndicator) {
+        this.version = (byte) version;
+        this.headerIndicator = headerIndicator;
+    }
+
+    public byte getVersion() {
+        return version;
+    }
+
+    public int getHeaderIndicator() {
+        return headerIndicator;
+    }
+
+    public static FrameFormat forVersion(byte version) {
+        for (FrameFormat frameFormat : values())
+            if (frameFormat.version == version)
+                return frameFormat;
+        return null;
+    }
+
+    /**
+     * Select the format to use with a peer.
+     * @param offeredVersion the latest version supported by the peer
+     * @return the latest format supported by both ends.
+     */
+    public static FrameFormat negotiate(byte offeredVersion) {
+        FrameFormat selected = SCANNING;
+        for (FrameFormat frameFormat : values())
+            if (frameFormat.version <= offeredVersion && frameFormat.version > selected.version)
+                selected = frameFormat;
+        return selected;
+    }
+}
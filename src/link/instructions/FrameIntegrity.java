@@ -0,0 +1,179 @@
+package link.instructions;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * The checks a link may use to detect corruption of instructions, carried in each instruction's trailer.
+ * The check is negotiated alongside the cipher suite during the handshake, and applies once encryption is established
+ * - until then, and with peers which offer nothing else, BYTE_SUM is used. Authenticated cipher suites verify the data
+ * themselves, so no check is calculated for them at all.
+ * CRC32C is intrinsified on most processors, and detects reordered and compensating corruption which the byte sum
+ * cannot. It requires Java 9 or later, so it is loaded reflectively, and CRC32 serves in its place on older JVMs.
+ */
+public enum FrameIntegrity {
+    BYTE_SUM(0, ByteSum::new),
+    CRC_32(1, CRC32::new),
+    CRC_32C(2, reflectiveChecksum("java.util.zip.CRC32C"));
+
+    //data is checked and copied a chunk at a time, so it is still in cache when it is copied
+    private static final int CHUNK_LENGTH = 0x4000;
+
+    private static volatile FrameIntegrity[] preferredChecks = availableChecks(new FrameIntegrity[]{
+            CRC_32C, CRC_32, BYTE_SUM
+    });
+
+    private final byte id;
+    private final boolean available;
+
+    //checksums are reset and reused by each thread
+    private final ThreadLocal<Checksum> checksum;
+
+    FrameIntegrity(int id, Supplier<Checksum> checksumSupplier) {
+        this.id = (byte) id;
+        this.available = checksumSupplier != null;
+        this.checksum = checksumSupplier == null ? null : ThreadLocal.withInitial(checksumSupplier);
+    }
+
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * @return true if this check is supported by the running JVM.
+     */
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Calculate the check value of a range of an array.
+     */
+    public int checksum(byte[] data, int offset, int length) {
+        Checksum checksum = checksum();
+        checksum.update(data, offset, length);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Copy data into a buffer, calculating its check value in the same pass.
+     * @return the check value of the data.
+     */
+    public int copy(byte[] data, ByteBuffer destination) {
+        Checksum checksum = checksum();
+        for (int offset = 0; offset < data.length; offset += CHUNK_LENGTH) {
+            int length = Math.min(CHUNK_LENGTH, data.length - offset);
+            checksum.update(data, offset, length);
+            destination.put(data, offset, length);
+        }
+        return (int) checksum.getValue();
+    }
+
+    private Checksum checksum() {
+        if (!available)
+            throw new IllegalStateException("Frame integrity check " + this + " is unavailable.");
+        Checksum checksum = this.checksum.get();
+        checksum.reset();
+        return checksum;
+    }
+
+    public static FrameIntegrity forId(byte id) {
+        for (FrameIntegrity frameIntegrity : values())
+            if (frameIntegrity.id == id)
+                return frameIntegrity;
+        return null;
+    }
+
+    /**
+     * Set the checks this process will use, in order of preference. Unavailable checks are ignored.
+     */
+    public static void setPreferredChecks(FrameIntegrity... frameIntegrities) {
+        FrameIntegrity[] available = availableChecks(frameIntegrities);
+        if (available.length == 0)
+            throw new IllegalArgumentException("No preferred frame integrity check is available.");
+        preferredChecks = available;
+    }
+
+    /**
+     * @return the ids of the checks this process will use, in order of preference, as offered during the handshake.
+     */
+    public static byte[] preferredCheckIds() {
+        FrameIntegrity[] frameIntegrities = preferredChecks;
+        byte[] ids = new byte[frameIntegrities.length];
+        for (int i = 0; i < frameIntegrities.length; ++i)
+            ids[i] = frameIntegrities[i].id;
+        return ids;
+    }
+
+    /**
+     * Select the check to use with a peer.
+     * @param offeredIds the ids of the checks offered by the peer
+     * @return the first of our preferred checks which the peer offered, or BYTE_SUM if there are none.
+     */
+    public static FrameIntegrity negotiate(byte[] offeredIds) {
+        for (FrameIntegrity frameIntegrity : preferredChecks)
+            for (byte offeredId : offeredIds)
+                if (frameIntegrity.id == offeredId)
+                    return frameIntegrity;
+        return BYTE_SUM;
+    }
+
+    private static FrameIntegrity[] availableChecks(FrameIntegrity[] frameIntegrities) {
+        List<FrameIntegrity> available = new ArrayList<>();
+        for (FrameIntegrity frameIntegrity : frameIntegrities)
+            if (frameIntegrity.available && !available.contains(frameIntegrity))
+                available.add(frameIntegrity);
+        return available.toArray(new FrameIntegrity[0]);
+    }
+
+    /**
+     * @return a supplier of the named Checksum implementation, or null if this JVM does not provide it.
+     */
+    private static Supplier<Checksum> reflectiveChecksum(String className) {
+        final Class<? extends Checksum> checksumClass;
+        try {
+            checksumClass = Class.forName(className).asSubclass(Checksum.class);
+            checksumClass.getConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            return null;
+        }
+        return () -> {
+            try {
+                return checksumClass.getConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Failed to construct " + className, e);
+            }
+        };
+    }
+
+    /**
+     * The original check - the sum of the data bytes.
+     */
+    private static final class ByteSum implements Checksum {
+        private int sum = 0;
+
+        @Override
+        public void update(int b) {
+            sum += (byte) b;
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            sum += InstructionDatum.checksum(b, off, len);
+        }
+
+        @Override
+        public long getValue() {
+            return sum;
+        }
+
+        @Override
+        public void reset() {
+            sum = 0;
+        }
+    }
+}
@@ -1,4 +1,7 @@
 package link.instructions;
 
 public abstract class HandshakeInstructionDatum extends InstructionDatum {
+
+    //as computed for the original class, which the original handshake instructions still descend from
+    private static final long serialVersionUID = -6530048798946646738L;
 }
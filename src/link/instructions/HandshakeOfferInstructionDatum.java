@@ -0,0 +1,72 @@
+package link.instructions;
+
+import crypto.CipherSuite;
+import link.AcknowledgementWindow;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The first instruction of a handshake, in which the client offers the settings it supports for the link - from which
+ * the server selects those to use.
+ */
+public abstract class HandshakeOfferInstructionDatum extends HandshakeInstructionDatum {
+
+    //fixed, since TransmitPublicKeyInstructionDatum descends from this and must stay readable by peers of this version
+    private static final long serialVersionUID = 3122169112603296247L;
+
+    //the ids of the cipher suites the client supports, in its order of preference
+    public final byte[] CIPHER_SUITES;
+    //the ids of the frame integrity checks the client supports, in its order of preference
+    public final byte[] FRAME_INTEGRITIES;
+    //the latest frame format version the client supports
+    public final byte FRAME_FORMAT_VERSION;
+    //the ids of the payload compressions the client supports, in its order of preference, and the id of its preset
+    //compression dictionary
+    public final byte[] PAYLOAD_COMPRESSIONS;
+    public final int DICTIONARY_ID;
+    //the largest acknowledgement window the client will use, or zero if it does not acknowledge instructions
+    public final int ACKNOWLEDGEMENT_WINDOW;
+
+    /**
+     * Offer the settings this process prefers.
+     */
+    protected HandshakeOfferInstructionDatum() {
+        this(
+                CipherSuite.preferredSuiteIds(),
+                FrameIntegrity.preferredCheckIds(),
+                FrameFormat.LATEST.getVersion(),
+                PayloadCompression.preferredCompressionIds(),
+                PayloadCompression.getDictionaryId(),
+                AcknowledgementWindow.getPreferredSize()
+        );
+    }
+
+    protected HandshakeOfferInstructionDatum(
+            byte[] cipherSuites,
+            byte[] frameIntegrities,
+            byte frameFormatVersion,
+            byte[] payloadCompressions,
+            int dictionaryId,
+            int acknowledgementWindow
+    ) {
+        CIPHER_SUITES = cipherSuites;
+        FRAME_INTEGRITIES = frameIntegrities;
+        FRAME_FORMAT_VERSION = frameFormatVersion;
+        PAYLOAD_COMPRESSIONS = payloadCompressions;
+        DICTIONARY_ID = dictionaryId;
+        ACKNOWLEDGEMENT_WINDOW = acknowledgementWindow;
+    }
+
+    /**
+     * Utility for codecs - write the offered settings, in the order of the full constructor's parameters.
+     */
+    static void writeOffer(HandshakeOfferInstructionDatum instructionDatum, DataOutput out) throws IOException {
+        InstructionCodecRegistry.writeBytes(instructionDatum.CIPHER_SUITES, out);
+        InstructionCodecRegistry.writeBytes(instructionDatum.FRAME_INTEGRITIES, out);
+        out.writeByte(instructionDatum.FRAME_FORMAT_VERSION);
+        InstructionCodecRegistry.writeBytes(instructionDatum.PAYLOAD_COMPRESSIONS, out);
+        out.writeInt(instructionDatum.DICTIONARY_ID);
+        out.writeInt(instructionDatum.ACKNOWLEDGEMENT_WINDOW);
+    }
+}
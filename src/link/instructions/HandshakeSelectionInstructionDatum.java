@@ -0,0 +1,52 @@
+package link.instructions;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The server's response to a HandshakeOfferInstructionDatum, carrying the settings it selected for the link and the
+ * salt from which the link's key is derived.
+ */
+public abstract class HandshakeSelectionInstructionDatum extends HandshakeInstructionDatum {
+
+    //fixed, as TransmitEncryptedSecretKeyInstructionDatum descends from this
+    private static final long serialVersionUID = 3039051849332193063L;
+
+    //the ids of the cipher suite, frame integrity check, frame format version and payload compression selected by the
+    //server, the acknowledgement window size, and the salt from which the link's key is derived
+    public final byte CIPHER_SUITE;
+    public final byte FRAME_INTEGRITY;
+    public final byte FRAME_FORMAT_VERSION;
+    public final byte PAYLOAD_COMPRESSION;
+    public final int ACKNOWLEDGEMENT_WINDOW;
+    public final byte[] KEY_SALT;
+
+    protected HandshakeSelectionInstructionDatum(
+            byte cipherSuite,
+            byte frameIntegrity,
+            byte frameFormatVersion,
+            byte payloadCompression,
+            int acknowledgementWindow,
+            byte[] keySalt
+    ) {
+        CIPHER_SUITE = cipherSuite;
+        FRAME_INTEGRITY = frameIntegrity;
+        FRAME_FORMAT_VERSION = frameFormatVersion;
+        PAYLOAD_COMPRESSION = payloadCompression;
+        ACKNOWLEDGEMENT_WINDOW = acknowledgementWindow;
+        KEY_SALT = keySalt;
+    }
+
+    /**
+     * Utility for codecs - write the selected settings and salt, in the order of the constructor's parameters.
+     */
+    static void writeSelection(HandshakeSelectionInstructionDatum instructionDatum, DataOutput out)
+            throws IOException {
+        out.writeByte(instructionDatum.CIPHER_SUITE);
+        out.writeByte(instructionDatum.FRAME_INTEGRITY);
+        out.writeByte(instructionDatum.FRAME_FORMAT_VERSION);
+        out.writeByte(instructionDatum.PAYLOAD_COMPRESSION);
+        out.writeInt(instructionDatum.ACKNOWLEDGEMENT_WINDOW);
+        InstructionCodecRegistry.writeBytes(instructionDatum.KEY_SALT, out);
+    }
+}
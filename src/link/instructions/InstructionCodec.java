@@ -0,0 +1,17 @@
+package link.instructions;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A compact binary writer and reader for a single InstructionDatum class, used in place of Java serialization once
+ * registered with InstructionCodecRegistry.
+ * Implementations must read exactly the fields they write, in the same order.
+ */
+public interface InstructionCodec<T extends InstructionDatum> {
+
+    void write(T instructionDatum, DataOutput out) throws IOException;
+
+    T read(DataInput in) throws IOException;
+}
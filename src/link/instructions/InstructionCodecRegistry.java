@@ -0,0 +1,170 @@
+package link.instructions;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Assigns compact numeric type ids to InstructionDatum classes, each with a hand-written InstructionCodec.
+ * An InstructionDatum of a registered class is transmitted as a codec marker byte, its two byte type id, and whatever
+ * its codec writes. Any other InstructionDatum falls back to Java serialization, whose stream header can never be
+ * mistaken for the codec marker, so both forms may be received on the same link.
+ * Type ids below RESERVED_TYPE_ID_COUNT are reserved for the instructions used internally by DataHandler and
+ * DataLink - except those which open the original handshake, which remain on Java serialization so that peers which
+ * predate codecs can still take part in it, and learn whether the other side supports anything newer.
+ */
+public final class InstructionCodecRegistry {
+
+    public static final int CODEC_MARKER = 0x01;
+
+    public static final int RESERVED_TYPE_ID_COUNT = 0x40;
+    public static final int MAX_TYPE_ID = 0xffff;
+
+    private static final class Registration<T extends InstructionDatum> {
+        final int typeId;
+        final Class<T> instructionClass;
+        final InstructionCodec<T> codec;
+
+        Registration(int typeId, Class<T> instructionClass, InstructionCodec<T> codec) {
+            this.typeId = typeId;
+            this.instructionClass = instructionClass;
+            this.codec = codec;
+        }
+    }
+
+    private static final ConcurrentHashMap<Class<?>, Registration<?>> registrationsByClass = new ConcurrentHashMap<>();
+    private static final AtomicReferenceArray<Registration<?>> registrationsById =
+            new AtomicReferenceArray<>(MAX_TYPE_ID + 1);
+
+    static {
+        //0x00 to 0x02 are left unassigned - see above
+        registerReserved(0x03, StreamOpenInstructionDatum.class, StreamOpenInstructionDatum.CODEC);
+        registerReserved(0x04, StreamChunkInstructionDatum.class, StreamChunkInstructionDatum.CODEC);
+        registerReserved(0x05, StreamCreditInstructionDatum.class, StreamCreditInstructionDatum.CODEC);
+        registerReserved(0x06, StreamCancelInstructionDatum.class, StreamCancelInstructionDatum.CODEC);
+        registerReserved(0x07, AcknowledgeInstructionDatum.class, AcknowledgeInstructionDatum.CODEC);
+        registerReserved(0x08, ResumeSessionInstructionDatum.class, ResumeSessionInstructionDatum.CODEC);
+        registerReserved(0x09, AcceptResumptionInstructionDatum.class, AcceptResumptionInstructionDatum.CODEC);
+        registerReserved(0x0a, RejectResumptionInstructionDatum.class, RejectResumptionInstructionDatum.CODEC);
+        registerReserved(0x0b, SessionTicketInstructionDatum.class, SessionTicketInstructionDatum.CODEC);
+        registerReserved(0x0c, TransmitKeyShareInstructionDatum.class, TransmitKeyShareInstructionDatum.CODEC);
+        registerReserved(0x0d, AcceptKeyShareInstructionDatum.class, AcceptKeyShareInstructionDatum.CODEC);
+    }
+
+    private InstructionCodecRegistry() {}
+
+    /**
+     * Register a codec for an implementation specific InstructionDatum class.
+     * @throws IllegalArgumentException if the type id is reserved or out of range, or if either the type id or the
+     * class has already been registered.
+     */
+    public static <T extends InstructionDatum> void register(
+            int typeId,
+            Class<T> instructionClass,
+            InstructionCodec<T> codec
+    ) {
+        if (typeId < RESERVED_TYPE_ID_COUNT)
+            throw new IllegalArgumentException("Type id " + typeId + " is reserved - use " + RESERVED_TYPE_ID_COUNT +
+                    " or greater.");
+        doRegister(typeId, instructionClass, codec);
+    }
+
+    /**
+     * Register a codec for one of the InstructionDatum classes used internally by this library.
+     */
+    static <T extends InstructionDatum> void registerReserved(
+            int typeId,
+            Class<T> instructionClass,
+            InstructionCodec<T> codec
+    ) {
+        if (typeId >= RESERVED_TYPE_ID_COUNT)
+            throw new IllegalArgumentException("Type id " + typeId + " is not reserved.");
+        doRegister(typeId, instructionClass, codec);
+    }
+
+    private static synchronized <T extends InstructionDatum> void doRegister(
+            int typeId,
+            Class<T> instructionClass,
+            InstructionCodec<T> codec
+    ) {
+        if (typeId < 0 || typeId > MAX_TYPE_ID)
+            throw new IllegalArgumentException("Type id out of range: " + typeId);
+        if (registrationsById.get(typeId) != null)
+            throw new IllegalArgumentException("Type id " + typeId + " already registered to " +
+                    registrationsById.get(typeId).instructionClass);
+        if (registrationsByClass.containsKey(instructionClass))
+            throw new IllegalArgumentException(instructionClass + " already registered.");
+        Registration<T> registration = new Registration<>(typeId, instructionClass, codec);
+        registrationsByClass.put(instructionClass, registration);
+        registrationsById.set(typeId, registration);
+    }
+
+    public static boolean isRegistered(Class<? extends InstructionDatum> instructionClass) {
+        return registrationsByClass.containsKey(instructionClass);
+    }
+
+    /**
+     * @return true if a range of an array holds the codec form of one of the instructions reserved for internal use,
+     * judged from its marker and type id alone.
+     */
+    public static boolean isReserved(byte[] b, int offset, int length) {
+        return length >= 1 + Short.BYTES &&
+                b[offset] == CODEC_MARKER &&
+                (((b[offset + 1] & 0xff) << 8) | (b[offset + 2] & 0xff)) < RESERVED_TYPE_ID_COUNT;
+    }
+
+    /**
+     * Write the codec form of an InstructionDatum - marker, type id and body.
+     * @return false if the datum's class has no registered codec, in which case nothing is written.
+     */
+    @SuppressWarnings("unchecked")
+    static boolean write(InstructionDatum instructionDatum, DataOutput out) throws IOException {
+        Registration<InstructionDatum> registration =
+                (Registration<InstructionDatum>) registrationsByClass.get(instructionDatum.getClass());
+        if (registration == null) return false;
+        out.writeByte(CODEC_MARKER);
+        out.writeShort(registration.typeId);
+        registration.codec.write(instructionDatum, out);
+        return true;
+    }
+
+    /**
+     * Read the codec form of an InstructionDatum, following its marker byte.
+     * @return the InstructionDatum, or null if its type id is not registered.
+     */
+    static InstructionDatum read(DataInput in) throws IOException {
+        Registration<?> registration = registrationsById.get(in.readUnsignedShort());
+        return registration == null ? null : registration.codec.read(in);
+    }
+
+    /**
+     * Utility for codecs - write a BigInteger as a length-prefixed two's complement byte array.
+     */
+    public static void writeBigInteger(BigInteger value, DataOutput out) throws IOException {
+        writeBytes(value.toByteArray(), out);
+    }
+
+    public static BigInteger readBigInteger(DataInput in) throws IOException {
+        return new BigInteger(readBytes(in));
+    }
+
+    /**
+     * Utility for codecs - write a length-prefixed byte array.
+     */
+    public static void writeBytes(byte[] value, DataOutput out) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    public static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > InstructionDatum.MAX_DATUM_SIZE)
+            throw new IOException("Invalid byte array length: " + length);
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+}
@@ -1,14 +1,14 @@
 package link.instructions;
 
-import crypto.ByteCipher;
+import crypto.LinkCipher;
 import main.LiveLog;
 import main.LogHub;
 
 import java.io.*;
-//todo - we need to design a scheme for acknowledging instructions, resending anything critical which failed, and
-// tracking discrepancies automatically so the client need not request a GameZone retransmission.
-// While we're here, let's also make sure we never have the client sending critical data (like Avatars - instead send a
-// number index which the engine can use to select an Avatar from its end based on the connected account).
+import java.nio.ByteBuffer;
+import java.util.function.IntFunction;
+//todo - let's make sure we never have the client sending critical data (like Avatars - instead send a number index
+// which the engine can use to select an Avatar from its end based on the connected account).
 
 //todo - more: find out why the engine's first three transmissions are near the size cap, and why they sometimes fail.
 /**
@@ -19,15 +19,22 @@ import java.io.*;
  * the desired data can be recovered and acted on.
  * It is also the responsibility of the end user to de-conflict implemented instruction code values with the
  * reserved codes in the provided abstract DataHandler, and with any additional implementions of this class.
+ * Implementations are transmitted via Java serialization unless a compact codec has been registered for them with
+ * InstructionCodecRegistry, which is strongly recommended for frequently transmitted instructions.
  */
 public abstract class InstructionDatum implements Serializable {
 
+    //the value computed for the original class - the handshake is still Java serialized, and every instruction's
+    //stream names this class, so it must not change for peers which predate negotiation to read it
+    private static final long serialVersionUID = -1606063016681190264L;
+
     private static final int MASK0 = 0xff00_0000;
     private static final int MASK1 = 0x00ff_0000;
     private static final int MASK2 = 0x0000_ff00;
     private static final int MASK3 = 0x0000_00ff;
 
     public static final int HEADER_INDICATOR = 0x7fff;
+    public static final int HEADER_INDICATOR_V2 = 0x7ffe; //see FrameFormat
     public static final int TRAILER_INDICATOR = 0x1e2d4b87;
 
     public static final int HEADER_INDICATOR_LENGTH = 2;
@@ -41,7 +48,7 @@ public abstract class InstructionDatum implements Serializable {
 
     public static final int MAX_DATUM_SIZE = 0x000f_ffff; //~1MB
 
-    private static final int MAX_SEQUENCE_INDEX = 0x3fff_ffff;
+    public static final int MAX_SEQUENCE_INDEX = 0x3fff_ffff;
 
     public static final int MAX_PACKET_LENGTH = HEADER_LENGTH + MAX_DATUM_SIZE + TRAILER_LENGTH;
 
@@ -49,7 +56,17 @@ public abstract class InstructionDatum implements Serializable {
      * Convert an array of bytes representing an InstructionDatum back into that InstructionDatum.
      */
     public static InstructionDatum fromByteArray(byte[] b) throws ClassCastException, StreamCorruptedException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(b);
+        return fromByteArray(b, 0, b.length);
+    }
+
+    /**
+     * Convert a range of an array of bytes representing an InstructionDatum back into that InstructionDatum.
+     */
+    public static InstructionDatum fromByteArray(byte[] b, int offset, int length)
+            throws ClassCastException, StreamCorruptedException {
+        if (length > 0 && b[offset] == InstructionCodecRegistry.CODEC_MARKER)
+            return fromCodecForm(b, offset + 1, length - 1);
+        ByteArrayInputStream bis = new ByteArrayInputStream(b, offset, length);
         ObjectInput objectInput = null;
         InstructionDatum instructionDatum = null;
         try {
@@ -72,52 +89,133 @@ public abstract class InstructionDatum implements Serializable {
     }
 
     /**
-     * Pack an InstructionDatum into a byte array carrying the instruction code corresponding to the InstructionDatum,
-     * followed by the size of the byte array representation of the InstructionDatum, followed by that array.
+     * Reconstruct an InstructionDatum whose class has a registered codec, following the codec marker byte.
+     */
+    private static InstructionDatum fromCodecForm(byte[] b, int offset, int length) throws StreamCorruptedException {
+        InstructionDatum instructionDatum;
+        try {
+            instructionDatum =
+                    InstructionCodecRegistry.read(new DataInputStream(new ByteArrayInputStream(b, offset, length)));
+        } catch (IOException e) {
+            throw new StreamCorruptedException("Malformed instruction: " + e.getMessage());
+        }
+        if (instructionDatum == null)
+            throw new StreamCorruptedException("Unregistered instruction type id.");
+        return instructionDatum;
+    }
+
+    /**
+     * Pack an InstructionDatum into a buffer carrying the instruction code corresponding to the InstructionDatum,
+     * followed by the size of the byte array representation of the InstructionDatum, followed by that array - as
+     * below, without an acknowledgement block.
+     */
+    public ByteBuffer pack(int sequenceIndex, PackSettings packSettings, IntFunction<ByteBuffer> allocator) {
+        return pack(sequenceIndex, packSettings, null, allocator);
+    }
+
+    /**
+     * Pack into a buffer obtained from the specified allocator, which is given the packed size and must return a
+     * buffer with at least that much space remaining. This permits packing into pooled buffers.
+     * The instruction is serialized, then framed - see serialize() and frame(), into which packing divides for those
+     * which must frame the same data again.
+     * @param packSettings the settings to pack with - see PackSettings.ORIGINAL for those of the handshake
+     * @param acknowledgement a block to precede the data, uncompressed but encrypted and checked with it, or null
+     * @return the allocated buffer, flipped so that the packed data lies between its position and limit.
+     */
+    public ByteBuffer pack(
+            int sequenceIndex,
+            PackSettings packSettings,
+            byte[] acknowledgement,
+            IntFunction<ByteBuffer> allocator
+    ) {
+        PackObserver packObserver = packSettings.getPackObserver();
+        long startNanos = packObserver == null ? 0 : System.nanoTime();
+        byte[] data = serialize(acknowledgement, packSettings.getPayloadCompression());
+        long serializedNanos = packObserver == null ? 0 : System.nanoTime();
+        ByteBuffer packedData = frame(data, sequenceIndex, packSettings, allocator);
+        if (packObserver != null)
+            packObserver.packed(serializedNanos - startNanos, System.nanoTime() - serializedNanos);
+        return packedData;
+    }
+
+    /**
+     * Serialize this InstructionDatum for framing, compressing it by the specified PayloadCompression if it is enabled.
+     * @param prefix a block to precede the data, uncompressed, or null
+     */
+    public byte[] serialize(byte[] prefix, PayloadCompression payloadCompression) {
+        byte[] rawData = toByteArray(prefix, payloadCompression.isEnabled());
+        if (payloadCompression.isEnabled()) {
+            byte[] compressedData = payloadCompression.compress(rawData, prefix == null ? 0 : prefix.length);
+            if (compressedData != null)
+                rawData = compressedData;
+        }
+        return rawData;
+    }
+
+    /**
+     * Frame serialized data into a buffer obtained from the specified allocator, as pack() does. The data is encrypted
+     * directly into the buffer by the settings' LinkCipher, unless it is null, and its check value is calculated by
+     * their FrameIntegrity as it is copied. Since the authenticated cipher suites verify the data themselves, no check
+     * value is calculated for them, and the trailer carries zero instead.
+     * Each frame of the same data is encrypted afresh, under a nonce of its own, so data which must be transmitted
+     * again should be framed again rather than the frame copied - the peer rejects a frame it has already received.
+     * @param data the data, as serialize() produced it with the same settings' PayloadCompression
+     * @return the allocated buffer, flipped so that the frame lies between its position and limit.
      */
-    public byte[] pack(int sequenceIndex, boolean encrypt) {
-        byte[] rawData = toByteArray();
-        int size = rawData.length;
+    public static ByteBuffer frame(
+            byte[] data,
+            int sequenceIndex,
+            PackSettings packSettings,
+            IntFunction<ByteBuffer> allocator
+    ) {
+        LinkCipher linkCipher = packSettings.getLinkCipher();
+        int size = data.length + (linkCipher == null ? 0 : linkCipher.getOverhead());
         if (size > MAX_DATUM_SIZE)
             throw new IllegalStateException("InstructionDatum too large to pack: " + size + " > " + MAX_DATUM_SIZE);
         if (sequenceIndex > MAX_SEQUENCE_INDEX)
             throw new IllegalStateException(
                     "InstructionDatum Sequence Index exceeds bounds: " + sequenceIndex + " > " + MAX_SEQUENCE_INDEX
             );
-        int packedDataSize = HEADER_LENGTH + size + TRAILER_LENGTH;
-        byte[] packedData = new byte[packedDataSize];
+        ByteBuffer packedData = allocator.apply(HEADER_LENGTH + size + TRAILER_LENGTH);
         //header - indicator
-        packedData[0] = (byte)((HEADER_INDICATOR & MASK2) >> 8);
-        packedData[1] = (byte)(HEADER_INDICATOR & MASK3);
+        packedData.putShort((short)packSettings.getFrameFormat().getHeaderIndicator());
         //header - size
-        packedData[2] = (byte)((size & MASK1) >> 16);
-        packedData[3] = (byte)((size & MASK2) >> 8);
-        packedData[4] = (byte)(size & MASK3);
+        packedData.put((byte)((size & MASK1) >> 16));
+        packedData.putShort((short)size);
         //header - sequence index
-        packedData[5] = (byte)((sequenceIndex & MASK0) >> 24);
-        packedData[6] = (byte)((sequenceIndex & MASK1) >> 16);
-        packedData[7] = (byte)((sequenceIndex & MASK2) >> 8);
-        packedData[8] = (byte)(sequenceIndex & MASK3);
-        int checksum = 0;
-        for (int i = 0; i < size; ++i){
-            byte b = rawData[i];
-            checksum += (int)b;
-            packedData[HEADER_LENGTH + i] = b;
-        }
+        packedData.putInt(sequenceIndex);
+        int checksum = linkCipher == null
+                ? packSettings.getFrameIntegrity().copy(data, packedData)
+                : linkCipher.encrypt(data, packedData, packSettings.getFrameIntegrity(), sequenceIndex);
         //trailer - indicator
-        packedData[packedDataSize - 8] = (byte)((TRAILER_INDICATOR & MASK0) >> 24);
-        packedData[packedDataSize - 7] = (byte)((TRAILER_INDICATOR & MASK1) >> 16);
-        packedData[packedDataSize - 6] = (byte)((TRAILER_INDICATOR & MASK2) >> 8);
-        packedData[packedDataSize - 5] = (byte)(TRAILER_INDICATOR & MASK3);
+        packedData.putInt(TRAILER_INDICATOR);
         //trailer - validation code
-        packedData[packedDataSize - 4] = (byte)((checksum & MASK0) >> 24);
-        packedData[packedDataSize - 3] = (byte)((checksum & MASK1) >> 16);
-        packedData[packedDataSize - 2] = (byte)((checksum & MASK2) >> 8);
-        packedData[packedDataSize - 1] = (byte)(checksum & MASK3);
-        System.arraycopy(encrypt ? ByteCipher.encrypt(rawData) : rawData, 0, packedData, HEADER_LENGTH, size);
+        packedData.putInt(checksum);
+        packedData.flip();
         return packedData;
     }
 
+    /**
+     * Produce the instance to hand directly to a LocalDataLink's paired link in place of transmitting it, when the
+     * links pass InstructionData by reference. Since the receiver then shares the instance with the transmitter,
+     * implementations whose state may change after transmission should override this to return a copy - by default,
+     * InstructionData are assumed immutable, and the instance itself is returned.
+     */
+    public InstructionDatum copyForLocalTransmission() {
+        return this;
+    }
+
+    /**
+     * Calculate the original checksum carried in the trailer of a packed instruction - the sum of the unencrypted data
+     * bytes. See FrameIntegrity.BYTE_SUM.
+     */
+    public static int checksum(byte[] data, int offset, int length) {
+        int checksum = 0;
+        for (int i = offset; i < offset + length; ++i)
+            checksum += data[i];
+        return checksum;
+    }
+
     /**
      * Find an integer value associated with up to 4 consecutive bytes at the specified offset within the provided
      * byte array.
@@ -147,16 +245,25 @@ public abstract class InstructionDatum implements Serializable {
     }
 
     /**
-     * @return a byte array representation of this InstructionDatum.
+     * @return a byte array representation of this InstructionDatum - its codec form if its class has a registered
+     * codec, otherwise its Java serialized form.
+     * @param prefix bytes to precede the representation, or null
+     * @param flagged whether to precede the representation by the PayloadCompression.STORED flag
      */
-    private byte[] toByteArray() {
+    private byte[] toByteArray(byte[] prefix, boolean flagged) {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ObjectOutput out;
         byte[] b = new byte[]{};
         try {
-            out = new ObjectOutputStream(bos);
-            out.writeObject(this);
-            out.flush();
+            if (prefix != null)
+                bos.write(prefix);
+            if (flagged)
+                bos.write(PayloadCompression.STORED);
+            if (!InstructionCodecRegistry.write(this, new DataOutputStream(bos))) {
+                out = new ObjectOutputStream(bos);
+                out.writeObject(this);
+                out.flush();
+            }
             b = bos.toByteArray();
         } catch (Exception e) {
             LogHub.logFatalCrash("Data conversion failure", e);
@@ -0,0 +1,17 @@
+package link.instructions;
+
+/**
+ * Implemented by InstructionDatum classes whose handling need only be ordered with respect to other instructions of
+ * the same key, rather than all other instructions received by the same link.
+ * When a DataHandler dispatches instructions via a HandlerDispatcher, instructions which share a key are handled in
+ * the order they arrive, one at a time, while instructions with different keys may be handled in parallel - even if
+ * they arrive on the same link.
+ */
+public interface KeyedInstructionDatum {
+
+    /**
+     * @return the key by which handling of this instruction is ordered, or null to order it with the other
+     * instructions received by its link.
+     */
+    Object dispatchKey();
+}
@@ -0,0 +1,14 @@
+package link.instructions;
+
+/**
+ * Notified of the cost of packing each instruction packed with PackSettings which carry it - links' settings carry
+ * their LinkMetrics.
+ */
+public interface PackObserver {
+
+    /**
+     * @param serializationNanos the time taken to serialize, and compress if enabled, the instruction
+     * @param encryptionNanos the time taken to encrypt, or copy and check, the serialized instruction
+     */
+    void packed(long serializationNanos, long encryptionNanos);
+}
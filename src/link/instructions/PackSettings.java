@@ -0,0 +1,94 @@
+package link.instructions;
+
+import crypto.LinkCipher;
+
+/**
+ * The settings with which InstructionData are packed - see InstructionDatum.pack(). Each link holds the settings it
+ * currently transmits with, replacing them as a whole whenever its handshake selects new ones, so that every
+ * instruction is packed with a consistent set.
+ * PackSettings are immutable - each of the with methods returns a copy with a single setting changed.
+ */
+public final class PackSettings {
+
+    /**
+     * The original settings, with which the handshake is packed - the original frame format and byte sum, without
+     * compression or encryption, and unobserved.
+     */
+    public static final PackSettings ORIGINAL = new PackSettings(
+            FrameFormat.SCANNING,
+            null,
+            FrameIntegrity.BYTE_SUM,
+            PayloadCompression.NONE,
+            null
+    );
+
+    private final FrameFormat frameFormat;
+    private final LinkCipher linkCipher;
+    private final FrameIntegrity frameIntegrity;
+    private final PayloadCompression payloadCompression;
+    private final PackObserver packObserver;
+
+    /**
+     * @param frameFormat the format to pack in, which determines the header indicator
+     * @param linkCipher the cipher with which to encrypt, or null to transmit unencrypted
+     * @param frameIntegrity the check calculated over data which the cipher does not authenticate
+     * @param payloadCompression the compression applied to the data, if it is enabled
+     * @param packObserver notified of the time spent serializing and encrypting, or null
+     */
+    public PackSettings(
+            FrameFormat frameFormat,
+            LinkCipher linkCipher,
+            FrameIntegrity frameIntegrity,
+            PayloadCompression payloadCompression,
+            PackObserver packObserver
+    ) {
+        if (frameFormat == null) throw new IllegalArgumentException("Frame format must not be null.");
+        if (frameIntegrity == null) throw new IllegalArgumentException("Frame integrity must not be null.");
+        if (payloadCompression == null) throw new IllegalArgumentException("Payload compression must not be null.");
+        this.frameFormat = frameFormat;
+        this.linkCipher = linkCipher;
+        this.frameIntegrity = frameIntegrity;
+        this.payloadCompression = payloadCompression;
+        this.packObserver = packObserver;
+    }
+
+    public FrameFormat getFrameFormat() {
+        return frameFormat;
+    }
+
+    public LinkCipher getLinkCipher() {
+        return linkCipher;
+    }
+
+    public FrameIntegrity getFrameIntegrity() {
+        return frameIntegrity;
+    }
+
+    public PayloadCompression getPayloadCompression() {
+        return payloadCompression;
+    }
+
+    public PackObserver getPackObserver() {
+        return packObserver;
+    }
+
+    public PackSettings withFrameFormat(FrameFormat frameFormat) {
+        return new PackSettings(frameFormat, linkCipher, frameIntegrity, payloadCompression, packObserver);
+    }
+
+    public PackSettings withLinkCipher(LinkCipher linkCipher) {
+        return new PackSettings(frameFormat, linkCipher, frameIntegrity, payloadCompression, packObserver);
+    }
+
+    public PackSettings withFrameIntegrity(FrameIntegrity frameIntegrity) {
+        return new PackSettings(frameFormat, linkCipher, frameIntegrity, payloadCompression, packObserver);
+    }
+
+    public PackSettings withPayloadCompression(PayloadCompression payloadCompression) {
+        return new PackSettings(frameFormat, linkCipher, frameIntegrity, payloadCompression, packObserver);
+    }
+
+    public PackSettings withPackObserver(PackObserver packObserver) {
+        return new PackSettings(frameFormat, linkCipher, frameIntegrity, payloadCompression, packObserver);
+    }
+}
@@ -0,0 +1,233 @@
+package link.instructions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression a link may apply to each instruction's data between serialization and encryption.
+ * Compression is negotiated alongside the cipher suite during the handshake, and applies once encryption is
+ * established. It is disabled by default - each side must prefer a compression other than NONE for it to be used.
+ * Once enabled, each instruction's data begins with a flag byte. Data smaller than the threshold, or which does not
+ * shrink, is STORED as it is; otherwise it is DEFLATED, followed by its original length and the compressed data.
+ * DEFLATE_DICTIONARY primes the compressor with a preset dictionary of data typical of the instructions transmitted,
+ * which greatly improves the compression of small instructions. Both sides must use the same dictionary - it is only
+ * negotiated if the client's dictionary id matches the server's.
+ */
+public enum PayloadCompression {
+    NONE(0),
+    DEFLATE(1),
+    DEFLATE_DICTIONARY(2);
+
+    public static final byte STORED = 0;
+    public static final byte DEFLATED = 1;
+
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    //the flag byte, followed by the original length
+    private static final int DEFLATED_HEADER_LENGTH = 1 + Integer.BYTES;
+
+    private static volatile PayloadCompression[] preferredCompressions = {NONE};
+
+    private static volatile byte[] presetDictionary = null;
+    private static volatile int dictionaryId = 0;
+
+    private static volatile int threshold = DEFAULT_THRESHOLD;
+    private static volatile int level = Deflater.DEFAULT_COMPRESSION;
+
+    //deflaters and inflaters are costly to create, so each thread keeps its own, reset for each instruction
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private final byte id;
+
+    PayloadCompression(int id) {
+        this.id = (byte) id;
+    }
+
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * @return true if instruction data carries the flag byte.
+     */
+    public boolean isEnabled() {
+        return this != NONE;
+    }
+
+    /**
+     * Compress instruction data which follows a placeholder flag byte.
+     * @param data the instruction data, preceded by the placeholder
+     * @param offset the position of the placeholder - anything before it is left uncompressed
+     * @return the data with its DEFLATED form in place of the placeholder and original data, or null if it should be
+     * STORED instead.
+     */
+    byte[] compress(byte[] data, int offset) {
+        int length = data.length - offset - 1;
+        if (!isEnabled() || length < threshold || length > InstructionDatum.MAX_DATUM_SIZE)
+            return null;
+        if (length <= DEFLATED_HEADER_LENGTH) //however low the threshold, the header alone would not fit
+            return null;
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        if (this == DEFLATE_DICTIONARY)
+            deflater.setDictionary(presetDictionary);
+        deflater.setInput(data, offset + 1, length);
+        deflater.finish();
+        //anything which does not fit in the original length did not shrink, and is not worth compressing
+        byte[] compressedData = new byte[offset + length];
+        System.arraycopy(data, 0, compressedData, 0, offset);
+        compressedData[offset] = DEFLATED;
+        for (int i = 0; i < Integer.BYTES; ++i)
+            compressedData[offset + 1 + i] = (byte) (length >>> (Byte.SIZE * (Integer.BYTES - 1 - i)));
+        int compressedLength = offset + DEFLATED_HEADER_LENGTH;
+        while (!deflater.finished()) {
+            if (compressedLength == compressedData.length)
+                return null;
+            compressedLength +=
+                    deflater.deflate(compressedData, compressedLength, compressedData.length - compressedLength);
+        }
+        return Arrays.copyOf(compressedData, compressedLength);
+    }
+
+    /**
+     * Decompress DEFLATED instruction data, beginning with its flag byte.
+     * @return the original data, or null if it is malformed or requires a dictionary we do not have.
+     */
+    public byte[] decompress(byte[] data, int offset, int length) {
+        if (length < DEFLATED_HEADER_LENGTH || data[offset] != DEFLATED)
+            return null;
+        int originalLength = InstructionDatum.toInt(data, offset + 1, Integer.BYTES);
+        if (originalLength < 0 || originalLength > InstructionDatum.MAX_DATUM_SIZE)
+            return null;
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(data, offset + DEFLATED_HEADER_LENGTH, length - DEFLATED_HEADER_LENGTH);
+        byte[] originalData = new byte[originalLength];
+        int inflatedLength = 0;
+        try {
+            while (inflatedLength < originalLength) {
+                int inflated = inflater.inflate(originalData, inflatedLength, originalLength - inflatedLength);
+                if (inflated == 0) {
+                    if (!inflater.needsDictionary())
+                        return null; //truncated
+                    byte[] dictionary = presetDictionary;
+                    if (this != DEFLATE_DICTIONARY || dictionary == null || inflater.getAdler() != dictionaryId)
+                        return null;
+                    inflater.setDictionary(dictionary);
+                }
+                inflatedLength += inflated;
+            }
+        } catch (DataFormatException dfe) {
+            return null;
+        }
+        return originalData;
+    }
+
+    public static PayloadCompression forId(byte id) {
+        for (PayloadCompression payloadCompression : values())
+            if (payloadCompression.id == id)
+                return payloadCompression;
+        return null;
+    }
+
+    /**
+     * Set the compressions this process will use, in order of preference. DEFLATE_DICTIONARY is ignored unless a preset
+     * dictionary has been set.
+     */
+    public static void setPreferredCompressions(PayloadCompression... payloadCompressions) {
+        List<PayloadCompression> preferred = new ArrayList<>();
+        for (PayloadCompression payloadCompression : payloadCompressions)
+            if (!preferred.contains(payloadCompression))
+                preferred.add(payloadCompression);
+        if (preferred.isEmpty())
+            throw new IllegalArgumentException("No preferred payload compression specified.");
+        preferredCompressions = preferred.toArray(new PayloadCompression[0]);
+    }
+
+    /**
+     * @return the ids of the compressions this process will use, in order of preference, as offered during the
+     * handshake.
+     */
+    public static byte[] preferredCompressionIds() {
+        List<PayloadCompression> available = availableCompressions();
+        byte[] ids = new byte[available.size()];
+        for (int i = 0; i < ids.length; ++i)
+            ids[i] = available.get(i).id;
+        return ids;
+    }
+
+    /**
+     * Select the compression to use with a peer.
+     * @param offeredIds the ids of the compressions offered by the peer
+     * @param offeredDictionaryId the id of the peer's preset dictionary
+     * @return the first of our preferred compressions which the peer offered, or NONE if there are none.
+     */
+    public static PayloadCompression negotiate(byte[] offeredIds, int offeredDictionaryId) {
+        for (PayloadCompression payloadCompression : availableCompressions()) {
+            if (payloadCompression == DEFLATE_DICTIONARY && offeredDictionaryId != dictionaryId)
+                continue;
+            for (byte offeredId : offeredIds)
+                if (payloadCompression.id == offeredId)
+                    return payloadCompression;
+        }
+        return NONE;
+    }
+
+    /**
+     * Set the preset dictionary for DEFLATE_DICTIONARY, or null for none. This should be done before any link is
+     * established, and must be identical on both sides of a link for the dictionary to be used.
+     */
+    public static synchronized void setPresetDictionary(byte[] dictionary) {
+        if (dictionary == null) {
+            presetDictionary = null;
+            dictionaryId = 0;
+            return;
+        }
+        Adler32 adler32 = new Adler32(); //the checksum by which a deflate stream identifies its dictionary
+        adler32.update(dictionary, 0, dictionary.length);
+        dictionaryId = (int) adler32.getValue();
+        presetDictionary = dictionary.clone();
+    }
+
+    /**
+     * @return the id of the preset dictionary, or zero if there is none.
+     */
+    public static int getDictionaryId() {
+        return presetDictionary == null ? 0 : dictionaryId;
+    }
+
+    /**
+     * Set the size below which instruction data is always STORED, since compressing it would save little or nothing.
+     * Data no longer than the DEFLATED header is STORED whatever the threshold.
+     */
+    public static void setThreshold(int threshold) {
+        if (threshold < 0)
+            throw new IllegalArgumentException("Invalid compression threshold: " + threshold);
+        PayloadCompression.threshold = threshold;
+    }
+
+    /**
+     * Set the deflate compression level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION.
+     */
+    public static void setLevel(int level) {
+        if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) &&
+                level != Deflater.DEFAULT_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        PayloadCompression.level = level;
+    }
+
+    private static List<PayloadCompression> availableCompressions() {
+        List<PayloadCompression> available = new ArrayList<>();
+        for (PayloadCompression payloadCompression : preferredCompressions)
+            if (payloadCompression != DEFLATE_DICTIONARY || presetDictionary != null)
+                available.add(payloadCompression);
+        return available;
+    }
+}
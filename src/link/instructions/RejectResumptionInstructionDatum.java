@@ -0,0 +1,24 @@
+package link.instructions;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+/**
+ * The server's refusal of a session ticket which has expired, or which it cannot redeem. The client falls back to a
+ * full handshake.
+ */
+public class RejectResumptionInstructionDatum extends HandshakeInstructionDatum {
+
+    private static final long serialVersionUID = 8755777653079174044L;
+
+    static final InstructionCodec<RejectResumptionInstructionDatum> CODEC =
+            new InstructionCodec<RejectResumptionInstructionDatum>() {
+                @Override
+                public void write(RejectResumptionInstructionDatum instructionDatum, DataOutput out) {}
+
+                @Override
+                public RejectResumptionInstructionDatum read(DataInput in) {
+                    return new RejectResumptionInstructionDatum();
+                }
+            };
+}
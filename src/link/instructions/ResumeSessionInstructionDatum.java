@@ -0,0 +1,68 @@
+package link.instructions;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Begins a handshake by presenting a session ticket from an earlier link, in place of a public key.
+ */
+public class ResumeSessionInstructionDatum extends HandshakeOfferInstructionDatum {
+
+    private static final long serialVersionUID = 8316914069988739004L;
+
+    static final InstructionCodec<ResumeSessionInstructionDatum> CODEC =
+            new InstructionCodec<ResumeSessionInstructionDatum>() {
+                @Override
+                public void write(ResumeSessionInstructionDatum instructionDatum, DataOutput out) throws IOException {
+                    InstructionCodecRegistry.writeBytes(instructionDatum.TICKET, out);
+                    InstructionCodecRegistry.writeBytes(instructionDatum.CLIENT_NONCE, out);
+                    writeOffer(instructionDatum, out);
+                }
+
+                @Override
+                public ResumeSessionInstructionDatum read(DataInput in) throws IOException {
+                    return new ResumeSessionInstructionDatum(
+                            InstructionCodecRegistry.readBytes(in),
+                            InstructionCodecRegistry.readBytes(in),
+                            InstructionCodecRegistry.readBytes(in),
+                            InstructionCodecRegistry.readBytes(in),
+                            in.readByte(),
+                            InstructionCodecRegistry.readBytes(in),
+                            in.readInt(),
+                            in.readInt()
+                    );
+                }
+            };
+
+    //the ticket, as issued by the server, and the nonce from which the client derives the resumed link's key
+    public final byte[] TICKET;
+    public final byte[] CLIENT_NONCE;
+
+    public ResumeSessionInstructionDatum(byte[] ticket, byte[] clientNonce) {
+        TICKET = ticket;
+        CLIENT_NONCE = clientNonce;
+    }
+
+    public ResumeSessionInstructionDatum(
+            byte[] ticket,
+            byte[] clientNonce,
+            byte[] cipherSuites,
+            byte[] frameIntegrities,
+            byte frameFormatVersion,
+            byte[] payloadCompressions,
+            int dictionaryId,
+            int acknowledgementWindow
+    ) {
+        super(
+                cipherSuites,
+                frameIntegrities,
+                frameFormatVersion,
+                payloadCompressions,
+                dictionaryId,
+                acknowledgementWindow
+        );
+        TICKET = ticket;
+        CLIENT_NONCE = clientNonce;
+    }
+}
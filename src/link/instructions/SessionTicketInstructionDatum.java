@@ -0,0 +1,38 @@
+package link.instructions;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Issues a session ticket to the client once encryption is established, with which it may resume encrypted
+ * communication on a later link. Unlike the HandshakeInstructionData, this is transmitted encrypted. It is consumed
+ * internally, and never handled by the implementation.
+ */
+public class SessionTicketInstructionDatum extends InstructionDatum {
+
+    private static final long serialVersionUID = 4119576932162081420L;
+
+    static final InstructionCodec<SessionTicketInstructionDatum> CODEC =
+            new InstructionCodec<SessionTicketInstructionDatum>() {
+                @Override
+                public void write(SessionTicketInstructionDatum instructionDatum, DataOutput out) throws IOException {
+                    InstructionCodecRegistry.writeBytes(instructionDatum.TICKET, out);
+                    out.writeLong(instructionDatum.LIFETIME_MILLIS);
+                }
+
+                @Override
+                public SessionTicketInstructionDatum read(DataInput in) throws IOException {
+                    return new SessionTicketInstructionDatum(InstructionCodecRegistry.readBytes(in), in.readLong());
+                }
+            };
+
+    //the ticket, which is opaque to the client, and how long the server will accept it for
+    public final byte[] TICKET;
+    public final long LIFETIME_MILLIS;
+
+    public SessionTicketInstructionDatum(byte[] ticket, long lifetimeMillis) {
+        TICKET = ticket;
+        LIFETIME_MILLIS = lifetimeMillis;
+    }
+}
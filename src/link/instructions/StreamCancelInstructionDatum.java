@@ -0,0 +1,32 @@
+package link.instructions;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class StreamCancelInstructionDatum extends StreamInstructionDatum {
+
+    private static final long serialVersionUID = 7788375666465721593L;
+
+    static final InstructionCodec<StreamCancelInstructionDatum> CODEC =
+            new InstructionCodec<StreamCancelInstructionDatum>() {
+                @Override
+                public void write(StreamCancelInstructionDatum instructionDatum, DataOutput out) throws IOException {
+                    out.writeInt(instructionDatum.STREAM_ID);
+                    out.writeBoolean(instructionDatum.FROM_SENDER);
+                }
+
+                @Override
+                public StreamCancelInstructionDatum read(DataInput in) throws IOException {
+                    return new StreamCancelInstructionDatum(in.readInt(), in.readBoolean());
+                }
+            };
+
+    //stream ids are chosen by senders, so each side may use the same id - this identifies which side's stream it is
+    public final boolean FROM_SENDER;
+
+    public StreamCancelInstructionDatum(int streamId, boolean fromSender) {
+        super(streamId);
+        FROM_SENDER = fromSender;
+    }
+}
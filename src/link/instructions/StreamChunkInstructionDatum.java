@@ -0,0 +1,47 @@
+package link.instructions;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class StreamChunkInstructionDatum extends StreamInstructionDatum {
+
+    private static final long serialVersionUID = 7383076336060400511L;
+
+    static final InstructionCodec<StreamChunkInstructionDatum> CODEC =
+            new InstructionCodec<StreamChunkInstructionDatum>() {
+                @Override
+                public void write(StreamChunkInstructionDatum instructionDatum, DataOutput out) throws IOException {
+                    out.writeInt(instructionDatum.STREAM_ID);
+                    out.writeLong(instructionDatum.OFFSET);
+                    out.writeBoolean(instructionDatum.LAST);
+                    InstructionCodecRegistry.writeBytes(instructionDatum.DATA, out);
+                }
+
+                @Override
+                public StreamChunkInstructionDatum read(DataInput in) throws IOException {
+                    int streamId = in.readInt();
+                    long offset = in.readLong();
+                    boolean last = in.readBoolean();
+                    return new StreamChunkInstructionDatum(
+                            streamId,
+                            offset,
+                            InstructionCodecRegistry.readBytes(in),
+                            last
+                    );
+                }
+            };
+
+    //the position of this chunk's first byte within the stream, so the receiver can detect a missing chunk
+    public final long OFFSET;
+    public final byte[] DATA;
+    //true if this is the final chunk of the stream
+    public final boolean LAST;
+
+    public StreamChunkInstructionDatum(int streamId, long offset, byte[] data, boolean last) {
+        super(streamId);
+        OFFSET = offset;
+        DATA = data;
+        LAST = last;
+    }
+}
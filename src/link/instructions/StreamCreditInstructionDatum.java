@@ -0,0 +1,32 @@
+package link.instructions;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class StreamCreditInstructionDatum extends StreamInstructionDatum {
+
+    private static final long serialVersionUID = -4225614144672223259L;
+
+    static final InstructionCodec<StreamCreditInstructionDatum> CODEC =
+            new InstructionCodec<StreamCreditInstructionDatum>() {
+                @Override
+                public void write(StreamCreditInstructionDatum instructionDatum, DataOutput out) throws IOException {
+                    out.writeInt(instructionDatum.STREAM_ID);
+                    out.writeInt(instructionDatum.CREDIT);
+                }
+
+                @Override
+                public StreamCreditInstructionDatum read(DataInput in) throws IOException {
+                    return new StreamCreditInstructionDatum(in.readInt(), in.readInt());
+                }
+            };
+
+    //the number of further bytes the receiver is prepared to accept
+    public final int CREDIT;
+
+    public StreamCreditInstructionDatum(int streamId, int credit) {
+        super(streamId);
+        CREDIT = credit;
+    }
+}
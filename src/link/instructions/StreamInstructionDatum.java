@@ -0,0 +1,16 @@
+package link.instructions;
+
+/**
+ * The instructions used internally by DataLinks to transfer streams too large to be transmitted as a single
+ * InstructionDatum. Each belongs to the stream identified by its STREAM_ID, which is chosen by the stream's sender.
+ */
+public abstract class StreamInstructionDatum extends InstructionDatum {
+
+    private static final long serialVersionUID = 3916378639860564245L;
+
+    public final int STREAM_ID;
+
+    protected StreamInstructionDatum(int streamId) {
+        STREAM_ID = streamId;
+    }
+}
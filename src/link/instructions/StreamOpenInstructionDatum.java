@@ -0,0 +1,40 @@
+package link.instructions;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class StreamOpenInstructionDatum extends StreamInstructionDatum {
+
+    private static final long serialVersionUID = -8745886069191477996L;
+
+    static final InstructionCodec<StreamOpenInstructionDatum> CODEC =
+            new InstructionCodec<StreamOpenInstructionDatum>() {
+                @Override
+                public void write(StreamOpenInstructionDatum instructionDatum, DataOutput out) throws IOException {
+                    out.writeInt(instructionDatum.STREAM_ID);
+                    out.writeLong(instructionDatum.LENGTH);
+                    InstructionCodecRegistry.writeBytes(instructionDatum.METADATA, out);
+                }
+
+                @Override
+                public StreamOpenInstructionDatum read(DataInput in) throws IOException {
+                    return new StreamOpenInstructionDatum(
+                            in.readInt(),
+                            in.readLong(),
+                            InstructionCodecRegistry.readBytes(in)
+                    );
+                }
+            };
+
+    //the total length of the stream, or -1 if it is not known in advance
+    public final long LENGTH;
+    //implementation specific data describing the stream, such as a file name
+    public final byte[] METADATA;
+
+    public StreamOpenInstructionDatum(int streamId, long length, byte[] metadata) {
+        super(streamId);
+        LENGTH = length;
+        METADATA = metadata;
+    }
+}
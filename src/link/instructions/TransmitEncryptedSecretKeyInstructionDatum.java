@@ -2,10 +2,23 @@ package link.instructions;
 
 import java.math.BigInteger;
 
-public class TransmitEncryptedSecretKeyInstructionDatum extends HandshakeInstructionDatum {
+public class TransmitEncryptedSecretKeyInstructionDatum extends HandshakeSelectionInstructionDatum {
+
+    //as computed for the original class, before the selection was added
+    private static final long serialVersionUID = 7288696622162337428L;
+
     public final BigInteger ENCRYPTED_SECRET_KEY;
 
-    public TransmitEncryptedSecretKeyInstructionDatum(BigInteger encryptedSecretKey) {
+    public TransmitEncryptedSecretKeyInstructionDatum(
+            BigInteger encryptedSecretKey,
+            byte cipherSuite,
+            byte frameIntegrity,
+            byte frameFormatVersion,
+            byte payloadCompression,
+            int acknowledgementWindow,
+            byte[] keySalt
+    ) {
+        super(cipherSuite, frameIntegrity, frameFormatVersion, payloadCompression, acknowledgementWindow, keySalt);
         ENCRYPTED_SECRET_KEY = encryptedSecretKey;
     }
 }
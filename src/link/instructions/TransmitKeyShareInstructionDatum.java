@@ -0,0 +1,63 @@
+package link.instructions;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Begins an X25519 handshake by transmitting the public value of the client's ephemeral key pair, in place of an RSA
+ * public key.
+ */
+public class TransmitKeyShareInstructionDatum extends HandshakeOfferInstructionDatum {
+
+    private static final long serialVersionUID = -9121926153927879572L;
+
+    static final InstructionCodec<TransmitKeyShareInstructionDatum> CODEC =
+            new InstructionCodec<TransmitKeyShareInstructionDatum>() {
+                @Override
+                public void write(TransmitKeyShareInstructionDatum instructionDatum, DataOutput out)
+                        throws IOException {
+                    InstructionCodecRegistry.writeBytes(instructionDatum.PUBLIC_VALUE, out);
+                    writeOffer(instructionDatum, out);
+                }
+
+                @Override
+                public TransmitKeyShareInstructionDatum read(DataInput in) throws IOException {
+                    return new TransmitKeyShareInstructionDatum(
+                            InstructionCodecRegistry.readBytes(in),
+                            InstructionCodecRegistry.readBytes(in),
+                            InstructionCodecRegistry.readBytes(in),
+                            in.readByte(),
+                            InstructionCodecRegistry.readBytes(in),
+                            in.readInt(),
+                            in.readInt()
+                    );
+                }
+            };
+
+    public final byte[] PUBLIC_VALUE;
+
+    public TransmitKeyShareInstructionDatum(byte[] publicValue) {
+        PUBLIC_VALUE = publicValue;
+    }
+
+    public TransmitKeyShareInstructionDatum(
+            byte[] publicValue,
+            byte[] cipherSuites,
+            byte[] frameIntegrities,
+            byte frameFormatVersion,
+            byte[] payloadCompressions,
+            int dictionaryId,
+            int acknowledgementWindow
+    ) {
+        super(
+                cipherSuites,
+                frameIntegrities,
+                frameFormatVersion,
+                payloadCompressions,
+                dictionaryId,
+                acknowledgementWindow
+        );
+        PUBLIC_VALUE = publicValue;
+    }
+}
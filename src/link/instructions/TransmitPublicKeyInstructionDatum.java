@@ -2,7 +2,10 @@ package link.instructions;
 
 import java.math.BigInteger;
 
-public class TransmitPublicKeyInstructionDatum extends HandshakeInstructionDatum {
+public class TransmitPublicKeyInstructionDatum extends HandshakeOfferInstructionDatum {
+
+    //as computed for the original class, before the offer was added
+    private static final long serialVersionUID = -859605731147827530L;
 
     public final BigInteger PUBLIC_KEY;
 
@@ -10,4 +13,24 @@ public class TransmitPublicKeyInstructionDatum extends HandshakeInstructionDatum
         PUBLIC_KEY = publicKey;
     }
 
+    public TransmitPublicKeyInstructionDatum(
+            BigInteger publicKey,
+            byte[] cipherSuites,
+            byte[] frameIntegrities,
+            byte frameFormatVersion,
+            byte[] payloadCompressions,
+            int dictionaryId,
+            int acknowledgementWindow
+    ) {
+        super(
+                cipherSuites,
+                frameIntegrities,
+                frameFormatVersion,
+                payloadCompressions,
+                dictionaryId,
+                acknowledgementWindow
+        );
+        PUBLIC_KEY = publicKey;
+    }
+
 }
@@ -1,12 +1,17 @@
 package main;
 
-import crypto.RSA;
+import link.ChannelDataLink;
 import link.DataHandler;
+import link.DataLink;
+import link.ExecutionMode;
 import link.RemoteDataLink;
-import link.instructions.TransmitPublicKeyInstructionDatum;
+import link.SelectorLoopGroup;
+import link.SessionTicket;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 /**
  * Provides access to a remote server.
@@ -19,10 +24,47 @@ public class Client {
      * @throws IOException if socket creation fails.
      */
     public static RemoteDataLink connect(DataHandler dataHandler, String hostName, int portNumber) throws IOException {
-        RemoteDataLink rdl = new RemoteDataLink(dataHandler, new Socket(hostName, portNumber));
-        rdl.start();
-        RSA.generateSessionKeys();
-        rdl.transmit(new TransmitPublicKeyInstructionDatum(RSA.getSessionPublicKey()));
-        return rdl;
+        return (RemoteDataLink) connect(dataHandler, hostName, portNumber, ConnectionOptions.DEFAULT);
+    }
+
+    /**
+     * Connect to a remote server at the specified host name and port number with the specified options.
+     * @return a remote data link connected by socket under BLOCKING transport, or a channel data link serviced by a
+     * selector loop from the options' group under NON_BLOCKING transport.
+     * @throws IOException if socket or channel creation fails.
+     * @throws IllegalArgumentException if NON_BLOCKING transport is selected without a SelectorLoopGroup.
+     */
+    public static DataLink connect(
+            DataHandler dataHandler,
+            String hostName,
+            int portNumber,
+            ConnectionOptions connectionOptions
+    ) throws IOException {
+        DataLink dataLink;
+        if (connectionOptions.getTransportMode() == Server.TransportMode.NON_BLOCKING) {
+            SelectorLoopGroup selectorLoopGroup = connectionOptions.getSelectorLoopGroup();
+            if (selectorLoopGroup == null)
+                throw new IllegalArgumentException("Non-blocking transport requires a selector loop group.");
+            dataLink = new ChannelDataLink(
+                    dataHandler,
+                    SocketChannel.open(new InetSocketAddress(hostName, portNumber)),
+                    selectorLoopGroup.next()
+            );
+        } else {
+            dataLink = new RemoteDataLink(dataHandler, new Socket(hostName, portNumber));
+            ExecutionMode executionMode = connectionOptions.getExecutionMode();
+            if (executionMode != null)
+                dataLink.setThreadFactory(executionMode.threadFactory());
+        }
+        beginHandshake(dataLink, connectionOptions.getSessionTicket());
+        return dataLink;
+    }
+
+    private static void beginHandshake(DataLink dataLink, SessionTicket sessionTicket) {
+        dataLink.start();
+        if (sessionTicket == null)
+            dataLink.initiateHandshake();
+        else
+            dataLink.resumeHandshake(sessionTicket);
     }
 }
@@ -0,0 +1,91 @@
+package main;
+
+import link.ExecutionMode;
+import link.SelectorLoopGroup;
+import link.SessionTicket;
+
+/**
+ * The options with which a Client connects or a Server accepts - see Client.connect() and the Server constructors.
+ * Under BLOCKING transport each link runs a thread of its own, of the specified ExecutionMode or, if that is null, of
+ * DataLink's default thread factory. Under NON_BLOCKING transport links are serviced by the specified
+ * SelectorLoopGroup - a Server which is not given one creates its own, while a Client must be given one, since every
+ * connection would otherwise start a group of its own. A Client resumes the session of an earlier link with the
+ * specified SessionTicket, if it is not null - servers ignore it.
+ * ConnectionOptions are immutable - each of the with methods returns a copy with a single option changed.
+ */
+public final class ConnectionOptions {
+
+    /**
+     * Blocking transport on threads from DataLink's default thread factory, with a full handshake.
+     */
+    public static final ConnectionOptions DEFAULT = new ConnectionOptions(
+            Server.TransportMode.BLOCKING,
+            null,
+            null,
+            null
+    );
+
+    private final Server.TransportMode transportMode;
+    private final ExecutionMode executionMode;
+    private final SelectorLoopGroup selectorLoopGroup;
+    private final SessionTicket sessionTicket;
+
+    private ConnectionOptions(
+            Server.TransportMode transportMode,
+            ExecutionMode executionMode,
+            SelectorLoopGroup selectorLoopGroup,
+            SessionTicket sessionTicket
+    ) {
+        if (transportMode == null) throw new IllegalArgumentException("Transport mode must not be null.");
+        this.transportMode = transportMode;
+        this.executionMode = executionMode;
+        this.selectorLoopGroup = selectorLoopGroup;
+        this.sessionTicket = sessionTicket;
+    }
+
+    public Server.TransportMode getTransportMode() {
+        return transportMode;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    public SelectorLoopGroup getSelectorLoopGroup() {
+        return selectorLoopGroup;
+    }
+
+    public SessionTicket getSessionTicket() {
+        return sessionTicket;
+    }
+
+    public ConnectionOptions withTransportMode(Server.TransportMode transportMode) {
+        return new ConnectionOptions(transportMode, executionMode, selectorLoopGroup, sessionTicket);
+    }
+
+    /**
+     * @param executionMode the kind of thread each link runs on under BLOCKING transport, or null for the default.
+     */
+    public ConnectionOptions withExecutionMode(ExecutionMode executionMode) {
+        return new ConnectionOptions(transportMode, executionMode, selectorLoopGroup, sessionTicket);
+    }
+
+    /**
+     * @param selectorLoopGroup the group servicing links under NON_BLOCKING transport - setting one selects it.
+     */
+    public ConnectionOptions withSelectorLoopGroup(SelectorLoopGroup selectorLoopGroup) {
+        return new ConnectionOptions(
+                selectorLoopGroup == null ? transportMode : Server.TransportMode.NON_BLOCKING,
+                executionMode,
+                selectorLoopGroup,
+                sessionTicket
+        );
+    }
+
+    /**
+     * @param sessionTicket a ticket issued by the server on an earlier link - see DataLink.getSessionTicket().
+     */
+    public ConnectionOptions withSessionTicket(SessionTicket sessionTicket) {
+        return new ConnectionOptions(transportMode, executionMode, selectorLoopGroup, sessionTicket);
+    }
+}
@@ -1,39 +1,118 @@
 package main;
 
+import link.ChannelDataLink;
 import link.DataHandler;
+import link.DataLink;
+import link.ExecutionMode;
+import link.LinkMetrics;
 import link.RemoteDataLink;
+import link.SelectorLoopGroup;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
 
 public class Server extends Thread {
+
+    /**
+     * BLOCKING transport runs a thread per accepted connection.
+     * NON_BLOCKING transport services all accepted connections from a small group of selector loop threads.
+     */
+    public enum TransportMode {
+        BLOCKING,
+        NON_BLOCKING
+    }
+
     private final DataHandler dataHandler;
     private final DataLinkAggregator openDataLinks;
     private final ServerSocket serverSocket;
+    private final ServerSocketChannel serverSocketChannel;
+    private final SelectorLoopGroup selectorLoopGroup;
+    private final ThreadFactory linkThreadFactory;
+    //every accepted link records into this, so what links recorded is kept once they close
+    private final LinkMetrics metrics = LinkMetrics.newAggregate();
 
     public Server(DataHandler dataHandler, DataLinkAggregator dataLinkAggregator, int portNumber) throws IOException {
+        this(dataHandler, dataLinkAggregator, portNumber, ConnectionOptions.DEFAULT);
+    }
+
+    /**
+     * Construct a server which accepts links with the specified options - under BLOCKING transport each runs on a
+     * thread of the options' execution mode, and under NON_BLOCKING transport each is a ChannelDataLink serviced by
+     * the options' SelectorLoopGroup, or by a group of the server's own if it has none.
+     */
+    public Server(
+            DataHandler dataHandler,
+            DataLinkAggregator dataLinkAggregator,
+            int portNumber,
+            ConnectionOptions connectionOptions
+    ) throws IOException {
+        SelectorLoopGroup selectorLoopGroup = null;
+        if (connectionOptions.getTransportMode() == TransportMode.NON_BLOCKING) {
+            selectorLoopGroup = connectionOptions.getSelectorLoopGroup();
+            if (selectorLoopGroup == null)
+                selectorLoopGroup = new SelectorLoopGroup();
+        }
+        ExecutionMode executionMode = connectionOptions.getExecutionMode();
         this.dataHandler = dataHandler;
         openDataLinks = dataLinkAggregator;
-        serverSocket = new ServerSocket(portNumber);
+        this.selectorLoopGroup = selectorLoopGroup;
+        linkThreadFactory = executionMode == null ? null : executionMode.threadFactory();
+        if (selectorLoopGroup == null) {
+            serverSocket = new ServerSocket(portNumber);
+            serverSocketChannel = null;
+        } else {
+            serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.bind(new InetSocketAddress(portNumber));
+            serverSocket = serverSocketChannel.socket();
+        }
+    }
+
+    /**
+     * @return everything recorded by the links this server has accepted, including those since closed, and the queue
+     * depths of those still open. These change as the links continue to record.
+     */
+    public LinkMetrics getMetrics() {
+        return metrics;
     }
 
     @Override
     public void run() {
-        Socket socket;
+        DataLink dataLink;
         for(;;) {
             try {
-                socket = serverSocket.accept();
-                LiveLog.log(
-                        "Accepted new connection on " + socket.getLocalPort(),
-                        LiveLog.LogEntryPriority.ALERT
-                );
-                RemoteDataLink rdl = new RemoteDataLink(dataHandler, socket);
-                openDataLinks.addDataLink(rdl);
-                rdl.start();
+                dataLink = serverSocketChannel == null ? acceptSocket() : acceptChannel();
+                dataLink.getMetrics().join(metrics);
+                openDataLinks.addDataLink(dataLink);
+                dataLink.start();
             } catch (IOException e) { //no need to kill the server here, log the error and continue
                 LogHub.logNonFatalError("Failed to accept connection", e);
             }
         }
     }
+
+    private DataLink acceptSocket() throws IOException {
+        Socket socket = serverSocket.accept();
+        LiveLog.log(
+                "Accepted new connection on " + socket.getLocalPort(),
+                LiveLog.LogEntryPriority.ALERT
+        );
+        RemoteDataLink rdl = new RemoteDataLink(dataHandler, socket);
+        if (linkThreadFactory != null)
+            rdl.setThreadFactory(linkThreadFactory);
+        return rdl;
+    }
+
+    private DataLink acceptChannel() throws IOException {
+        SocketChannel socketChannel = serverSocketChannel.accept();
+        LiveLog.log(
+                "Accepted new connection on " + socketChannel.socket().getLocalPort(),
+                LiveLog.LogEntryPriority.ALERT
+        );
+        return new ChannelDataLink(dataHandler, socketChannel, selectorLoopGroup.next());
+    }
 }